@@ -0,0 +1,130 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decompression speed of Pbd8InputStream and Pbd16InputStream, from 
+ * memory, so that file system speed does not enter the result.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PbdDecodeBenchmark 
+{
+	@Param({"8", "16"})
+	public int bitDepth;
+	
+	@Param({"SPARSE_MASK", "NOISY", "CONSTANT"})
+	public SyntheticVolumes.Kind kind;
+	
+	@Param({"256x256x16", "1024x1024x32"})
+	public String size;
+	
+	private byte[] pbdFile;
+	private long dataBytes;
+	private byte[] byteSlice;
+	private short[] shortSlice;
+	
+	@Setup
+	public void createVolume() 
+	throws IOException
+	{
+		int pixelBytes = bitDepth / 8;
+		int[] dims = SyntheticVolumes.parseSize(size);
+		pbdFile = SyntheticVolumes.createFile(kind, pixelBytes, dims, true);
+		dataBytes = (long)pixelBytes * dims[0] * dims[1] * dims[2];
+		byteSlice = new byte[pixelBytes * dims[0] * dims[1]];
+		shortSlice = new short[dims[0] * dims[1]];
+	}
+	
+	/**
+	 * The decoder alone, through the InputStream read(byte[]) contract.
+	 */
+	@Benchmark
+	public void decodeBytes(ThroughputCounter counter, Blackhole blackhole) 
+	throws IOException
+	{
+		InputStream compressed = new ByteArrayInputStream(pbdFile, 
+				V3dRawImageStream.HEADER_BYTES, pbdFile.length - V3dRawImageStream.HEADER_BYTES);
+		PbdInputStream decoder = (bitDepth == 8)
+				? new Pbd8InputStream(compressed)
+				: new Pbd16InputStream(compressed, ByteOrder.LITTLE_ENDIAN);
+		long remaining = dataBytes;
+		while (remaining > 0) {
+			int count = decoder.read(byteSlice, 0, (int)Math.min(remaining, byteSlice.length));
+			if (count < 0)
+				throw new EOFException();
+			remaining -= count;
+		}
+		blackhole.consume(byteSlice);
+		counter.add(dataBytes);
+	}
+	
+	/**
+	 * Header parsing plus decoding straight into pixel arrays, as done when 
+	 * loading a volume.
+	 */
+	@Benchmark
+	public void readSliceInto(ThroughputCounter counter, Blackhole blackhole) 
+	throws IOException
+	{
+		V3dRawImageStream stream = new V3dRawImageStream(new ByteArrayInputStream(pbdFile));
+		int sliceCount = stream.getDimension(2) * stream.getDimension(3);
+		for (int s = 0; s < sliceCount; ++s) {
+			if (bitDepth == 8)
+				stream.readSliceInto(byteSlice);
+			else
+				stream.readSliceInto(shortSlice);
+		}
+		blackhole.consume(bitDepth == 8 ? byteSlice : shortSlice);
+		counter.add(dataBytes);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Uncompressed slice reading from a v3draw file, by stream and by mapping.
+ * 
+ * The file is small enough to stay in the page cache, so this measures 
+ * the reader's overhead rather than the disk.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RawSliceBenchmark 
+{
+	@Param({"8", "16"})
+	public int bitDepth;
+	
+	@Param({"256x256x16", "1024x1024x32"})
+	public String size;
+	
+	private File rawFile;
+	private long dataBytes;
+	private byte[] byteSlice;
+	private short[] shortSlice;
+	
+	@Setup
+	public void createVolume() 
+	throws IOException
+	{
+		int pixelBytes = bitDepth / 8;
+		int[] dims = SyntheticVolumes.parseSize(size);
+		rawFile = SyntheticVolumes.createTempFile(SyntheticVolumes.Kind.NOISY, pixelBytes, dims, false);
+		dataBytes = (long)pixelBytes * dims[0] * dims[1] * dims[2];
+		byteSlice = new byte[pixelBytes * dims[0] * dims[1]];
+		shortSlice = new short[dims[0] * dims[1]];
+	}
+	
+	/**
+	 * Sequential reading into the stream's own slice buffer.
+	 */
+	@Benchmark
+	public void loadNextSlice(ThroughputCounter counter, Blackhole blackhole) 
+	throws IOException
+	{
+		V3dRawImageStream stream = new V3dRawImageStream(rawFile);
+		try {
+			int sliceCount = stream.getDimension(2) * stream.getDimension(3);
+			for (int s = 0; s < sliceCount; ++s) {
+				stream.loadNextSlice();
+				blackhole.consume(stream.getCurrentSlice());
+			}
+		}
+		finally {
+			stream.close();
+		}
+		counter.add(dataBytes);
+	}
+	
+	/**
+	 * Sequential reading into caller-owned pixel arrays.
+	 */
+	@Benchmark
+	public void readSliceInto(ThroughputCounter counter, Blackhole blackhole) 
+	throws IOException
+	{
+		V3dRawImageStream stream = new V3dRawImageStream(rawFile);
+		try {
+			int sliceCount = stream.getDimension(2) * stream.getDimension(3);
+			for (int s = 0; s < sliceCount; ++s) {
+				if (bitDepth == 8)
+					stream.readSliceInto(byteSlice);
+				else
+					stream.readSliceInto(shortSlice);
+			}
+		}
+		finally {
+			stream.close();
+		}
+		blackhole.consume(bitDepth == 8 ? byteSlice : shortSlice);
+		counter.add(dataBytes);
+	}
+	
+	/**
+	 * Copying every plane out of a memory mapping.
+	 */
+	@Benchmark
+	public void mappedPlanes(ThroughputCounter counter, Blackhole blackhole) 
+	throws IOException
+	{
+		MappedV3dRawImage image = new MappedV3dRawImage(rawFile);
+		try {
+			for (int z = 0; z < image.getDimension(2); ++z) {
+				ByteBuffer plane = image.getPlane(z, 0);
+				if (bitDepth == 8)
+					plane.get(byteSlice);
+				else
+					plane.asShortBuffer().get(shortSlice);
+			}
+		}
+		finally {
+			image.close();
+		}
+		blackhole.consume(bitDepth == 8 ? byteSlice : shortSlice);
+		counter.add(dataBytes);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end loading of a local file into an ImageJ stack, following the 
+ * same steps as Vaa3d_Reader.parse but without any display.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StackLoadBenchmark 
+{
+	@Param({"false", "true"})
+	public boolean compressed;
+	
+	@Param({"8", "16"})
+	public int bitDepth;
+	
+	@Param({"SPARSE_MASK", "NOISY", "CONSTANT"})
+	public SyntheticVolumes.Kind kind;
+	
+	@Param({"256x256x16", "1024x1024x32"})
+	public String size;
+	
+	private File file;
+	private long dataBytes;
+	
+	@Setup
+	public void createVolume() 
+	throws IOException
+	{
+		int pixelBytes = bitDepth / 8;
+		int[] dims = SyntheticVolumes.parseSize(size);
+		file = SyntheticVolumes.createTempFile(kind, pixelBytes, dims, compressed);
+		dataBytes = (long)pixelBytes * dims[0] * dims[1] * dims[2];
+	}
+	
+	@Benchmark
+	public ImageStack load(ThroughputCounter counter) 
+	throws IOException
+	{
+		V3dRawImageStream sliceStream = new V3dRawImageStream(file);
+		MappedV3dRawImage mappedImage = compressed ? null : new MappedV3dRawImage(file);
+		ImageStack stack = new ImageStack(sliceStream.getDimension(0), sliceStream.getDimension(1), 
+				sliceStream.getDimension(2) * sliceStream.getDimension(3));
+		try {
+			new Vaa3dStackLoader(sliceStream, mappedImage).load(stack);
+		}
+		finally {
+			if (mappedImage != null)
+				mappedImage.close();
+			sliceStream.close();
+		}
+		counter.add(dataBytes);
+		return stack;
+	}
+}
@@ -0,0 +1,150 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic volumes for benchmarks.
+ * 
+ * The same kind, size and bit depth always give the same voxels, so 
+ * results are comparable between runs and between decoder versions.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public final class SyntheticVolumes 
+{
+	/**
+	 * Content of a synthetic volume, chosen to exercise different PBD runs.
+	 */
+	public enum Kind {
+		/** A few bright blobs on a zero background; mostly repeat runs */
+		SPARSE_MASK,
+		/** Smooth signal with sensor noise; mostly difference and literal runs */
+		NOISY,
+		/** Large flat regions of a few levels; repeat runs */
+		CONSTANT
+	}
+	
+	private static final long SEED = 20121210L;
+	
+	private SyntheticVolumes() {}
+	
+	/**
+	 * @param size "XxYxZ", for example "1024x1024x32"
+	 */
+	static int[] parseSize(String size) {
+		String[] fields = size.split("x");
+		return new int[] {Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), 
+				Integer.parseInt(fields[2]), 1};
+	}
+	
+	/**
+	 * @return uncompressed voxel bytes, little-endian, one channel
+	 */
+	static byte[] createVoxels(Kind kind, int pixelBytes, int[] dims) {
+		Random random = new Random(SEED + 31 * kind.ordinal() + pixelBytes);
+		int maxValue = (pixelBytes == 1) ? 255 : 4095;
+		int planeSize = dims[0] * dims[1];
+		ByteBuffer voxels = ByteBuffer.allocate(pixelBytes * planeSize * dims[2])
+				.order(ByteOrder.LITTLE_ENDIAN);
+		int[] plane = new int[planeSize];
+		for (int z = 0; z < dims[2]; ++z) {
+			switch (kind) {
+			case SPARSE_MASK:
+				Arrays.fill(plane, 0);
+				for (int blob = 0; blob < 20; ++blob) {
+					int cx = random.nextInt(dims[0]);
+					int cy = random.nextInt(dims[1]);
+					int r = 2 + random.nextInt(Math.max(1, dims[0] / 64));
+					for (int y = Math.max(0, cy - r); y < Math.min(dims[1], cy + r); ++y)
+						for (int x = Math.max(0, cx - r); x < Math.min(dims[0], cx + r); ++x)
+							plane[y * dims[0] + x] = maxValue;
+				}
+				break;
+			case NOISY:
+				for (int y = 0; y < dims[1]; ++y) {
+					for (int x = 0; x < dims[0]; ++x) {
+						double signal = 0.5 + 0.25 * Math.sin(x / 37.0 + z / 5.0) * Math.cos(y / 23.0);
+						int value = (int)(signal * maxValue + 0.02 * maxValue * random.nextGaussian());
+						plane[y * dims[0] + x] = Math.max(0, Math.min(maxValue, value));
+					}
+				}
+				break;
+			case CONSTANT:
+				for (int y = 0; y < dims[1]; ++y)
+					for (int x = 0; x < dims[0]; ++x)
+						plane[y * dims[0] + x] = ((x / 128 + y / 128 + z / 8) % 4) * (maxValue / 4);
+				break;
+			}
+			for (int value : plane) {
+				if (pixelBytes == 1)
+					voxels.put((byte)value);
+				else
+					voxels.putShort((short)value);
+			}
+		}
+		return voxels.array();
+	}
+	
+	/**
+	 * @return a whole v3draw or v3dpbd file
+	 */
+	static byte[] createFile(Kind kind, int pixelBytes, int[] dims, boolean compressed) 
+	throws IOException
+	{
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		V3dRawImageStream.writeHeader(raw, V3dRawImageStream.Format.FORMAT_PENG_RAW, 
+				ByteOrder.LITTLE_ENDIAN, pixelBytes, dims);
+		raw.write(createVoxels(kind, pixelBytes, dims));
+		if (! compressed)
+			return raw.toByteArray();
+		ByteArrayOutputStream pbd = new ByteArrayOutputStream();
+		new ParallelPbdEncoder().encode(
+				new V3dRawImageStream(new ByteArrayInputStream(raw.toByteArray())), pbd);
+		return pbd.toByteArray();
+	}
+	
+	/**
+	 * Writes a volume to a temporary file, deleted when the JVM exits.
+	 */
+	static File createTempFile(Kind kind, int pixelBytes, int[] dims, boolean compressed) 
+	throws IOException
+	{
+		File file = File.createTempFile("synthetic", compressed ? ".v3dpbd" : ".v3draw");
+		file.deleteOnExit();
+		Files.write(file.toPath(), createFile(kind, pixelBytes, dims, compressed));
+		return file;
+	}
+}
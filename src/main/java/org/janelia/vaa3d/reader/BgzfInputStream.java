@@ -0,0 +1,347 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates a block-gzipped (BGZF) stream on several cores at once.
+ * 
+ * A BGZF file is a series of small, complete gzip members, each of which 
+ * records its own compressed size in a "BC" extra field. Members are read
+ * in order on the calling thread, but each is inflated on a 
+ * <code>ForkJoinPool</code>, with only a few in flight at once. 
+ * <code>BgzfOutputStream</code> writes such files; the format is the same 
+ * as that of bgzip and samtools.
+ * 
+ * <code>decompress</code> recognizes gzip-wrapped v3draw and v3dpbd data,
+ * so callers need not know in advance whether a file was compressed.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class BgzfInputStream extends InputStream 
+{
+	static final int MEMBER_HEADER_BYTES = 12; // up to and including XLEN
+	static final int MAX_BLOCK_DATA = 65536; // uncompressed bytes per member
+	private static final int FEXTRA = 4, FNAME = 8, FCOMMENT = 16, FHCRC = 2;
+	
+	private InputStream in; // compressed
+	private ForkJoinPool pool;
+	private Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+	private boolean endOfMembers = false;
+	private byte[] block = new byte[0]; // inflated member being delivered
+	private int blockPos = 0;
+	private byte[] singleByte = new byte[1]; // reused by the one-byte read()
+	// Inflate on the calling thread when there is no core to spare
+	private boolean inline = Runtime.getRuntime().availableProcessors() < 2;
+	
+	/**
+	 * Wraps a stream in the decompressor its first bytes call for.
+	 * 
+	 * @return a BgzfInputStream for block-gzipped data, a 
+	 * <code>GZIPInputStream</code> for other gzip data, and otherwise a 
+	 * stream delivering the same bytes as <code>in</code>
+	 * @throws IOException
+	 */
+	public static InputStream decompress(InputStream in) 
+	throws IOException
+	{
+		PushbackInputStream pushback = new PushbackInputStream(in, 18);
+		byte[] head = new byte[18];
+		int length = 0;
+		while (length < head.length) {
+			int count = pushback.read(head, length, head.length - length);
+			if (count < 0)
+				break;
+			length += count;
+		}
+		pushback.unread(head, 0, length);
+		return decompress(pushback, head, length);
+	}
+	
+	/**
+	 * Wraps a stream in the decompressor its first bytes call for, when 
+	 * the caller has already peeked at those bytes without consuming them.
+	 * 
+	 * @param in stream still positioned before <code>head</code>
+	 * @param head at least the first 18 bytes of <code>in</code>, if it 
+	 * has that many
+	 * @param length number of valid bytes in <code>head</code>
+	 * @return as for <code>decompress(InputStream)</code>; 
+	 * <code>in</code> itself if the data are not gzipped
+	 * @throws IOException
+	 */
+	public static InputStream decompress(InputStream in, byte[] head, int length) 
+	throws IOException
+	{
+		if (isBgzf(head, length))
+			return new BgzfInputStream(in);
+		if (isGzip(head, length))
+			return new GZIPInputStream(in, 1 << 16);
+		return in;
+	}
+	
+	/**
+	 * 
+	 * @return true if the bytes begin with the gzip magic number
+	 */
+	public static boolean isGzip(byte[] head, int length) {
+		return (length >= 2) && ((head[0] & 0xff) == 0x1f) && ((head[1] & 0xff) == 0x8b);
+	}
+	
+	/**
+	 * 
+	 * @return true if the bytes begin a gzip member carrying a BGZF 
+	 * block size
+	 */
+	public static boolean isBgzf(byte[] head, int length) {
+		if ( !isGzip(head, length) || (length < 18) || ((head[3] & FEXTRA) == 0) )
+			return false;
+		// The BC subfield comes first in members written by bgzip
+		return (head[12] == 'B') && (head[13] == 'C') && (head[14] == 2) && (head[15] == 0);
+	}
+	
+	/**
+	 * Inflater using the common ForkJoin pool.
+	 */
+	public BgzfInputStream(InputStream in) {
+		this(in, ForkJoinPool.commonPool());
+	}
+	
+	public BgzfInputStream(InputStream in, ForkJoinPool pool) {
+		this.in = in;
+		this.pool = pool;
+	}
+	
+	@Override
+	public int read() 
+	throws IOException
+	{
+		if (read(singleByte, 0, 1) < 1)
+			return -1;
+		return singleByte[0] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) 
+	throws IOException
+	{
+		if (len == 0)
+			return 0;
+		while (blockPos >= block.length) {
+			fillQueue();
+			if (inFlight.isEmpty())
+				return -1;
+			block = take(inFlight.removeFirst());
+			blockPos = 0;
+		}
+		int count = Math.min(len, block.length - blockPos);
+		System.arraycopy(block, blockPos, b, off, count);
+		blockPos += count;
+		return count;
+	}
+	
+	@Override
+	public int available() {
+		return block.length - blockPos;
+	}
+	
+	@Override
+	public void close() 
+	throws IOException
+	{
+		for (Future<byte[]> member : inFlight)
+			member.cancel(false);
+		inFlight.clear();
+		in.close();
+	}
+	
+	/**
+	 * Reads compressed members ahead of the caller, until enough are 
+	 * being inflated to keep the pool busy.
+	 */
+	private void fillQueue() 
+	throws IOException
+	{
+		int maxInFlight = 2 * pool.getParallelism();
+		while ( !endOfMembers && (inFlight.size() < maxInFlight) ) {
+			final byte[] member = readMember();
+			if (member == null) {
+				endOfMembers = true;
+				break;
+			}
+			if (inline) {
+				// Handing members to another thread only costs time here
+				inFlight.add(CompletableFuture.completedFuture(inflateMember(member)));
+				break;
+			}
+			inFlight.add(pool.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return inflateMember(member);
+				}
+			}));
+		}
+	}
+	
+	/**
+	 * Reads one complete gzip member, using its BGZF block size.
+	 * 
+	 * @return the member's bytes, or null at the end of the stream
+	 */
+	private byte[] readMember() 
+	throws IOException
+	{
+		byte[] header = new byte[MEMBER_HEADER_BYTES];
+		int length = readFully(header, 0, header.length);
+		if (length == 0)
+			return null;
+		if ( (length < header.length) || !isGzip(header, length) )
+			throw new ZipException("Corrupt gzip member header");
+		if ((header[3] & FEXTRA) == 0)
+			throw new ZipException("Gzip member has no block size; not a block-gzipped file");
+		int extraLength = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+		byte[] extra = new byte[extraLength];
+		if (readFully(extra, 0, extraLength) < extraLength)
+			throw new EOFException("Gzip member is truncated");
+		int memberBytes = -1;
+		for (int pos = 0; pos + 4 <= extraLength; ) {
+			int subfieldLength = (extra[pos + 2] & 0xff) | ((extra[pos + 3] & 0xff) << 8);
+			if ( (extra[pos] == 'B') && (extra[pos + 1] == 'C') && (subfieldLength == 2) 
+					&& (pos + 6 <= extraLength) )
+				memberBytes = ((extra[pos + 4] & 0xff) | ((extra[pos + 5] & 0xff) << 8)) + 1;
+			pos += 4 + subfieldLength;
+		}
+		if (memberBytes < MEMBER_HEADER_BYTES + extraLength + 8)
+			throw new ZipException("Gzip member has no valid block size; not a block-gzipped file");
+		byte[] member = new byte[memberBytes];
+		System.arraycopy(header, 0, member, 0, header.length);
+		System.arraycopy(extra, 0, member, header.length, extraLength);
+		int pos = header.length + extraLength;
+		if (readFully(member, pos, memberBytes - pos) < memberBytes - pos)
+			throw new EOFException("Gzip member is truncated");
+		return member;
+	}
+	
+	/**
+	 * Inflates one complete gzip member, and checks its CRC.
+	 */
+	static byte[] inflateMember(byte[] member) 
+	throws IOException
+	{
+		int flags = member[3] & 0xff;
+		int pos = MEMBER_HEADER_BYTES 
+				+ ((member[10] & 0xff) | ((member[11] & 0xff) << 8));
+		int trailer = member.length - 8;
+		if ((flags & FNAME) != 0)
+			while ( (pos < trailer) && (member[pos++] != 0) ) {}
+		if ((flags & FCOMMENT) != 0)
+			while ( (pos < trailer) && (member[pos++] != 0) ) {}
+		if ((flags & FHCRC) != 0)
+			pos += 2;
+		long crc = getUInt32(member, trailer);
+		long isize = getUInt32(member, trailer + 4);
+		if ( (pos > trailer) || (isize > MAX_BLOCK_DATA) )
+			throw new ZipException("Corrupt gzip member: not a BGZF block");
+		int size = (int)isize;
+		byte[] data = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(member, pos, trailer - pos);
+			int count = 0;
+			while ( (count < size) && !inflater.finished() && !inflater.needsInput() )
+				count += inflater.inflate(data, count, size - count);
+			// Any further output means the recorded size is too small
+			if ( (count < size) || (inflater.inflate(new byte[1]) > 0) || !inflater.finished() )
+				throw new ZipException("Gzip member size does not match its data");
+		}
+		catch (DataFormatException exc) {
+			throw new ZipException("Corrupt gzip member: " + exc.getMessage());
+		}
+		finally {
+			inflater.end();
+		}
+		CRC32 check = new CRC32();
+		check.update(data, 0, size);
+		if (check.getValue() != crc)
+			throw new ZipException("Gzip member CRC mismatch");
+		return data;
+	}
+	
+	private static long getUInt32(byte[] b, int off) {
+		return (b[off] & 0xffL) | ((b[off + 1] & 0xffL) << 8) 
+				| ((b[off + 2] & 0xffL) << 16) | ((b[off + 3] & 0xffL) << 24);
+	}
+	
+	/**
+	 * @return number of bytes read, less than <code>len</code> only at 
+	 * the end of the stream
+	 */
+	private int readFully(byte[] b, int off, int len) 
+	throws IOException
+	{
+		int total = 0;
+		while (total < len) {
+			int count = in.read(b, off + total, len - total);
+			if (count < 0)
+				break;
+			total += count;
+		}
+		return total;
+	}
+	
+	private static byte[] take(Future<byte[]> member) 
+	throws IOException
+	{
+		try {
+			return member.get();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while inflating", exc);
+		}
+		catch (ExecutionException exc) {
+			if (exc.getCause() instanceof IOException)
+				throw (IOException)exc.getCause();
+			throw new IOException(exc.getCause());
+		}
+	}
+}
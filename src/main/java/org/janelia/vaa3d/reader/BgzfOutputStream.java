@@ -0,0 +1,225 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a block-gzipped (BGZF) stream, compressing blocks on several
+ * cores at once.
+ * 
+ * Output is cut into blocks of <code>BLOCK_DATA_BYTES</code>, each
+ * written as a complete gzip member that records its own compressed size.
+ * Any gzip reader can inflate the result, and <code>BgzfInputStream</code>
+ * can inflate it in parallel. As in <code>ParallelPbdEncoder</code>, 
+ * blocks are compressed on a <code>ForkJoinPool</code>, and only a few are 
+ * in flight at once.
+ * 
+ * <code>close</code> finishes the stream with the standard empty end 
+ * block, and closes the underlying stream.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class BgzfOutputStream extends OutputStream 
+{
+	// Leaves room for incompressible data to fit in one 64 KiB member
+	public static final int BLOCK_DATA_BYTES = 0xff00;
+	private static final int MAX_MEMBER_BYTES = 1 << 16;
+	private static final int MEMBER_OVERHEAD = 26; // header, BC field and trailer
+	private static final byte[] EMPTY_BLOCK = {
+		0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 'B', 'C', 2, 0, 
+		0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+	
+	private OutputStream out;
+	private ForkJoinPool pool;
+	private int level;
+	private Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+	private byte[] block = new byte[BLOCK_DATA_BYTES];
+	private int blockLength = 0;
+	private boolean closed = false;
+	
+	/**
+	 * Compressor using the default level and the common ForkJoin pool.
+	 */
+	public BgzfOutputStream(OutputStream out) {
+		this(out, Deflater.DEFAULT_COMPRESSION, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * @param level <code>Deflater</code> compression level
+	 */
+	public BgzfOutputStream(OutputStream out, int level, ForkJoinPool pool) {
+		this.out = out;
+		this.level = level;
+		this.pool = pool;
+	}
+	
+	@Override
+	public void write(int b) 
+	throws IOException
+	{
+		block[blockLength++] = (byte)b;
+		if (blockLength == block.length)
+			submitBlock();
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) 
+	throws IOException
+	{
+		while (len > 0) {
+			int count = Math.min(len, block.length - blockLength);
+			System.arraycopy(b, off, block, blockLength, count);
+			blockLength += count;
+			off += count;
+			len -= count;
+			if (blockLength == block.length)
+				submitBlock();
+		}
+	}
+	
+	/**
+	 * Compresses the data written so far, even if the current block is 
+	 * not full, and flushes the underlying stream.
+	 */
+	@Override
+	public void flush() 
+	throws IOException
+	{
+		if (blockLength > 0)
+			submitBlock();
+		while (! inFlight.isEmpty())
+			writeMember(inFlight.removeFirst());
+		out.flush();
+	}
+	
+	@Override
+	public void close() 
+	throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		try {
+			flush();
+			out.write(EMPTY_BLOCK);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private void submitBlock() 
+	throws IOException
+	{
+		final byte[] data = block;
+		final int length = blockLength;
+		inFlight.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return deflateMember(data, length, level);
+			}
+		}));
+		block = new byte[BLOCK_DATA_BYTES];
+		blockLength = 0;
+		if (inFlight.size() >= 2 * pool.getParallelism())
+			writeMember(inFlight.removeFirst());
+	}
+	
+	/**
+	 * Compresses one block into a complete BGZF gzip member.
+	 */
+	static byte[] deflateMember(byte[] data, int length, int level) {
+		byte[] member = new byte[MAX_MEMBER_BYTES];
+		int compressed = deflate(data, length, level, member);
+		if (compressed < 0) // incompressible; store it instead
+			compressed = deflate(data, length, Deflater.NO_COMPRESSION, member);
+		int memberBytes = compressed + MEMBER_OVERHEAD;
+		System.arraycopy(EMPTY_BLOCK, 0, member, 0, 16);
+		member[16] = (byte)(memberBytes - 1);
+		member[17] = (byte)((memberBytes - 1) >> 8);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		putUInt32(member, 18 + compressed, crc.getValue());
+		putUInt32(member, 22 + compressed, length);
+		byte[] result = new byte[memberBytes];
+		System.arraycopy(member, 0, result, 0, memberBytes);
+		return result;
+	}
+	
+	/**
+	 * Raw-deflates data into <code>member</code>, after the 18 header bytes.
+	 * 
+	 * @return compressed length, or -1 if it does not fit in one member
+	 */
+	private static int deflate(byte[] data, int length, int level, byte[] member) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			int capacity = MAX_MEMBER_BYTES - MEMBER_OVERHEAD;
+			int count = 0;
+			while ( !deflater.finished() && (count < capacity) )
+				count += deflater.deflate(member, 18 + count, capacity - count);
+			return deflater.finished() ? count : -1;
+		}
+		finally {
+			deflater.end();
+		}
+	}
+	
+	private static void putUInt32(byte[] b, int off, long value) {
+		for (int i = 0; i < 4; ++i)
+			b[off + i] = (byte)(value >> (8 * i));
+	}
+	
+	private void writeMember(Future<byte[]> member) 
+	throws IOException
+	{
+		byte[] compressed;
+		try {
+			compressed = member.get();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new IOException(exc.getCause());
+		}
+		out.write(compressed);
+	}
+}
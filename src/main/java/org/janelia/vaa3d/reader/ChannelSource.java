@@ -0,0 +1,338 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Source of volume file bytes, reading from a channel in large blocks.
+ * 
+ * Network file systems such as NFS and Lustre are slow at small reads, so
+ * bytes are requested from the channel <code>readAheadBytes</code> at a 
+ * time, and reads at least that large go straight into the caller's 
+ * array. Short reads from the channel are retried, so 
+ * <code>readFully</code> either fills its destination or throws.
+ * 
+ * Seekable channels, such as files, also support <code>position</code>,
+ * skipping without reading, and positional reads that leave the stream 
+ * position alone. Any other <code>ReadableByteChannel</code>, for example
+ * one over a network protocol, can be read sequentially.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class ChannelSource extends InputStream 
+{
+	public static final int DEFAULT_READ_AHEAD_BYTES = 1 << 20;
+	
+	private ReadableByteChannel channel;
+	private SeekableByteChannel seekable; // null for sequential channels
+	private ByteBuffer buffer; // read ahead, between position and limit
+	private byte[] singleByte = new byte[1]; // reused by the one-byte read()
+	
+	/**
+	 * Opens a file for reading with the default read-ahead.
+	 */
+	public static ChannelSource open(File file) 
+	throws IOException
+	{
+		return open(file, DEFAULT_READ_AHEAD_BYTES);
+	}
+	
+	public static ChannelSource open(File file, int readAheadBytes) 
+	throws IOException
+	{
+		return new ChannelSource(FileChannel.open(file.toPath(), StandardOpenOption.READ), 
+				readAheadBytes);
+	}
+	
+	/**
+	 * Sequential source over a stream, which is read from its current 
+	 * position on.
+	 */
+	public ChannelSource(InputStream in, int readAheadBytes) {
+		this(Channels.newChannel(in), readAheadBytes);
+		seekable = null; // positions would not count from where the stream started
+	}
+	
+	/**
+	 * @param channel seekable channels also permit random access
+	 * @param readAheadBytes smallest number of bytes requested from the 
+	 * channel at a time
+	 */
+	public ChannelSource(ReadableByteChannel channel, int readAheadBytes) {
+		if (readAheadBytes < 1)
+			throw new IllegalArgumentException("Read-ahead must be at least one byte");
+		this.channel = channel;
+		if (channel instanceof SeekableByteChannel)
+			seekable = (SeekableByteChannel)channel;
+		buffer = ByteBuffer.allocate(readAheadBytes);
+		buffer.limit(0);
+	}
+	
+	public int getReadAheadBytes() {
+		return buffer.capacity();
+	}
+	
+	public boolean isSeekable() {
+		return seekable != null;
+	}
+	
+	@Override
+	public int read() 
+	throws IOException
+	{
+		if (read(singleByte, 0, 1) < 1)
+			return -1;
+		return singleByte[0] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) 
+	throws IOException
+	{
+		if (len == 0)
+			return 0;
+		if (buffer.hasRemaining()) {
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+		if (len >= buffer.capacity()) { // large reads bypass the buffer
+			buffer.limit(0);
+			return readChannel(ByteBuffer.wrap(b, off, len));
+		}
+		if (! fillBuffer())
+			return -1;
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		return count;
+	}
+	
+	/**
+	 * Reads exactly <code>len</code> bytes, however many channel reads 
+	 * that takes.
+	 * 
+	 * @throws EOFException if the source ends first
+	 */
+	public void readFully(byte[] b, int off, int len) 
+	throws IOException
+	{
+		while (len > 0) {
+			int count = read(b, off, len);
+			if (count < 0)
+				throw new EOFException("Volume data end early");
+			off += count;
+			len -= count;
+		}
+	}
+	
+	/**
+	 * Copies up to <code>len</code> upcoming bytes without consuming them,
+	 * for recognizing a file by its first bytes.
+	 * 
+	 * @return number of bytes copied, less than <code>len</code> only 
+	 * near the end of the source
+	 */
+	public int peek(byte[] b, int off, int len) 
+	throws IOException
+	{
+		len = Math.min(len, buffer.capacity());
+		if (buffer.remaining() < len) {
+			buffer.compact();
+			try {
+				while (buffer.position() < len) {
+					if (readChannel(buffer) < 0)
+						break;
+				}
+			}
+			finally {
+				buffer.flip();
+			}
+		}
+		int count = Math.min(len, buffer.remaining());
+		buffer.duplicate().get(b, off, count);
+		return count;
+	}
+	
+	/**
+	 * Skips by moving the channel position where possible, and otherwise
+	 * by reading.
+	 */
+	@Override
+	public long skip(long n) 
+	throws IOException
+	{
+		if (n < 1)
+			return 0;
+		if (seekable == null) {
+			long remaining = n;
+			while (remaining > 0) {
+				if ( !buffer.hasRemaining() && !fillBuffer() )
+					break;
+				int count = (int)Math.min(remaining, buffer.remaining());
+				buffer.position(buffer.position() + count);
+				remaining -= count;
+			}
+			return n - remaining;
+		}
+		long position = position();
+		long skipped = Math.max(0, Math.min(n, seekable.size() - position));
+		position(position + skipped);
+		return skipped;
+	}
+	
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+	
+	/**
+	 * 
+	 * @return position of the next byte to be read
+	 */
+	public long position() 
+	throws IOException
+	{
+		return requireSeekable().position() - buffer.remaining();
+	}
+	
+	/**
+	 * Moves to another position, keeping the read-ahead buffer when the 
+	 * new position lies inside it.
+	 */
+	public void position(long newPosition) 
+	throws IOException
+	{
+		long channelPosition = requireSeekable().position();
+		long bufferStart = channelPosition - buffer.limit();
+		if ( (newPosition >= bufferStart) && (newPosition <= channelPosition) ) {
+			buffer.position((int)(newPosition - bufferStart));
+			return;
+		}
+		buffer.limit(0);
+		seekable.position(newPosition);
+	}
+	
+	/**
+	 * 
+	 * @return total number of bytes in a seekable source
+	 */
+	public long size() 
+	throws IOException
+	{
+		return requireSeekable().size();
+	}
+	
+	/**
+	 * Fills a buffer from an absolute position, without moving the
+	 * stream position. File channels read concurrently here.
+	 * 
+	 * @throws EOFException if the source ends first
+	 */
+	public void readFully(ByteBuffer destination, long position) 
+	throws IOException
+	{
+		requireSeekable();
+		if (channel instanceof FileChannel) {
+			FileChannel file = (FileChannel)channel;
+			while (destination.hasRemaining()) {
+				int count = file.read(destination, position);
+				if (count < 0)
+					throw new EOFException("Volume file is truncated");
+				position += count;
+			}
+			return;
+		}
+		synchronized (this) {
+			long savedPosition = seekable.position();
+			try {
+				seekable.position(position);
+				while (destination.hasRemaining()) {
+					if (readChannel(destination) < 0)
+						throw new EOFException("Volume file is truncated");
+				}
+			}
+			finally {
+				seekable.position(savedPosition);
+			}
+		}
+	}
+	
+	@Override
+	public void close() 
+	throws IOException
+	{
+		channel.close();
+	}
+	
+	/**
+	 * Replaces the consumed read-ahead buffer with the next block.
+	 * 
+	 * @return false at the end of the source
+	 */
+	private boolean fillBuffer() 
+	throws IOException
+	{
+		buffer.clear();
+		int count;
+		try {
+			count = readChannel(buffer);
+		}
+		finally {
+			buffer.flip();
+		}
+		return count >= 0;
+	}
+	
+	/**
+	 * One channel read that delivers at least one byte, or -1 at the end.
+	 */
+	private int readChannel(ByteBuffer destination) 
+	throws IOException
+	{
+		int count = 0;
+		while (count == 0)
+			count = channel.read(destination);
+		return count;
+	}
+	
+	private SeekableByteChannel requireSeekable() 
+	throws IOException
+	{
+		if (seekable == null)
+			throw new IOException("Volume source is not seekable");
+		return seekable;
+	}
+}
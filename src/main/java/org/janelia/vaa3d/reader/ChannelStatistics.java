@@ -0,0 +1,273 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+
+/**
+ * Running intensity statistics of one color channel: pixel count, 
+ * minimum, maximum, mean and, for integer pixels, a full histogram.
+ * 
+ * Integer pixels only increment their histogram bin as they are added;
+ * minimum, maximum and mean are derived from the histogram when asked
+ * for, so accumulating costs one pass with one store per pixel.
+ * 32-bit float pixels have no histogram, and NaN values are not counted.
+ * 
+ * Statistics gathered separately, for example by several threads each 
+ * taking different planes, are combined with <code>merge</code>.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public final class ChannelStatistics 
+{
+	private final int pixelBytes;
+	// One bin per intensity, for 8- and 16-bit pixels
+	private final long[] histogram;
+	// Used only for float pixels
+	private long count = 0;
+	private double sum = 0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	
+	/**
+	 * Creates empty statistics.
+	 * 
+	 * @param pixelBytes 1, 2 or 4 bytes per pixel
+	 */
+	public ChannelStatistics(int pixelBytes) {
+		if (pixelBytes == 1)
+			histogram = new long[256];
+		else if (pixelBytes == 2)
+			histogram = new long[65536];
+		else if (pixelBytes == 4)
+			histogram = null;
+		else
+			throw new IllegalArgumentException("Unsupported number of bytes per pixel: " 
+					+ pixelBytes);
+		this.pixelBytes = pixelBytes;
+	}
+	
+	/**
+	 * Computes the statistics of one pixel array.
+	 * 
+	 * @param pixels byte[], short[] or float[] array
+	 */
+	public static ChannelStatistics of(Object pixels) {
+		int pixelBytes = (pixels instanceof byte[]) ? 1 : (pixels instanceof short[]) ? 2 : 4;
+		ChannelStatistics statistics = new ChannelStatistics(pixelBytes);
+		statistics.add(pixels);
+		return statistics;
+	}
+	
+	public int getPixelBytes() {
+		return pixelBytes;
+	}
+	
+	/**
+	 * Adds every pixel of an array. Integer pixels are unsigned.
+	 * 
+	 * @param pixels byte[], short[] or float[] array matching 
+	 * <code>getPixelBytes()</code>
+	 */
+	public void add(Object pixels) {
+		add(pixels, 0, Array.getLength(pixels));
+	}
+	
+	/**
+	 * Adds <code>length</code> pixels of an array, starting at 
+	 * <code>offset</code>.
+	 */
+	public void add(Object pixels, int offset, int length) {
+		int end = offset + length;
+		if ( (pixelBytes == 1) && (pixels instanceof byte[]) ) {
+			byte[] p = (byte[])pixels;
+			long[] h = histogram;
+			for (int i = offset; i < end; ++i)
+				h[p[i] & 0xff]++;
+		}
+		else if ( (pixelBytes == 2) && (pixels instanceof short[]) ) {
+			short[] p = (short[])pixels;
+			long[] h = histogram;
+			for (int i = offset; i < end; ++i)
+				h[p[i] & 0xffff]++;
+		}
+		else if ( (pixelBytes == 4) && (pixels instanceof float[]) ) {
+			float[] p = (float[])pixels;
+			for (int i = offset; i < end; ++i)
+				addFloat(p[i]);
+		}
+		else
+			throw new IllegalArgumentException("Pixel array does not match " 
+					+ pixelBytes + "-byte statistics");
+	}
+	
+	/**
+	 * Adds every pixel of a plane buffer, from index zero to its limit,
+	 * in the buffer's byte order.
+	 */
+	public void add(ByteBuffer plane) {
+		int end = plane.limit();
+		if (pixelBytes == 1) {
+			for (int i = 0; i < end; ++i)
+				histogram[plane.get(i) & 0xff]++;
+		}
+		else if (pixelBytes == 2) {
+			for (int i = 0; i + 1 < end; i += 2)
+				histogram[plane.getShort(i) & 0xffff]++;
+		}
+		else {
+			for (int i = 0; i + 3 < end; i += 4)
+				addFloat(plane.getFloat(i));
+		}
+	}
+	
+	private void addFloat(float f) {
+		if (f != f) // NaN
+			return;
+		++count;
+		sum += f;
+		if (f < min)
+			min = f;
+		if (f > max)
+			max = f;
+	}
+	
+	/**
+	 * Adds everything counted by another statistics object of the same 
+	 * pixel type. 
+	 * 
+	 * Safe to call from several threads merging into the same total.
+	 */
+	public synchronized void merge(ChannelStatistics other) {
+		if (other.pixelBytes != pixelBytes)
+			throw new IllegalArgumentException("Cannot merge statistics of different pixel types");
+		if (histogram != null) {
+			for (int i = 0; i < histogram.length; ++i)
+				histogram[i] += other.histogram[i];
+			return;
+		}
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+	
+	/**
+	 * 
+	 * @return number of pixels counted
+	 */
+	public synchronized long getCount() {
+		if (histogram == null)
+			return count;
+		long total = 0;
+		for (long n : histogram)
+			total += n;
+		return total;
+	}
+	
+	/**
+	 * 
+	 * @return dimmest intensity counted, or NaN if there are no pixels
+	 */
+	public synchronized double getMin() {
+		if (histogram == null)
+			return (count > 0) ? min : Double.NaN;
+		for (int i = 0; i < histogram.length; ++i)
+			if (histogram[i] > 0)
+				return i;
+		return Double.NaN;
+	}
+	
+	/**
+	 * 
+	 * @return brightest intensity counted, or NaN if there are no pixels
+	 */
+	public synchronized double getMax() {
+		if (histogram == null)
+			return (count > 0) ? max : Double.NaN;
+		for (int i = histogram.length - 1; i >= 0; --i)
+			if (histogram[i] > 0)
+				return i;
+		return Double.NaN;
+	}
+	
+	/**
+	 * 
+	 * @return mean intensity, or NaN if there are no pixels
+	 */
+	public synchronized double getMean() {
+		if (histogram == null)
+			return (count > 0) ? sum / count : Double.NaN;
+		double total = 0;
+		long n = 0;
+		for (int i = 0; i < histogram.length; ++i) {
+			total += (double)i * histogram[i];
+			n += histogram[i];
+		}
+		return (n > 0) ? total / n : Double.NaN;
+	}
+	
+	/**
+	 * 
+	 * @return copy of the histogram, one bin per intensity, 
+	 * or null for float pixels
+	 */
+	public synchronized long[] getHistogram() {
+		return (histogram == null) ? null : histogram.clone();
+	}
+	
+	/**
+	 * Finds the intensity below which a given fraction of pixels lie,
+	 * for example to saturate the brightest 0.35% when auto-contrasting.
+	 * 
+	 * @param fraction between 0 and 1
+	 * @return smallest intensity with at least <code>fraction</code> of
+	 * the pixels at or below it, or NaN if there are no pixels
+	 * @throws IllegalStateException for float pixels, which have no histogram
+	 */
+	public synchronized double getQuantile(double fraction) {
+		if (histogram == null)
+			throw new IllegalStateException("Float statistics have no histogram");
+		long total = getCount();
+		if (total == 0)
+			return Double.NaN;
+		double target = Math.max(1.0, fraction * total);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; ++i) {
+			seen += histogram[i];
+			if (seen >= target)
+				return i;
+		}
+		return histogram.length - 1;
+	}
+	
+	@Override
+	public String toString() {
+		return "ChannelStatistics[n=" + getCount() + ", min=" + getMin() 
+				+ ", max=" + getMax() + ", mean=" + getMean() + "]";
+	}
+}
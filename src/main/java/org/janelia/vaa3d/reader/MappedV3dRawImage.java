@@ -0,0 +1,185 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+
+/**
+ * Memory-mapped access to an uncompressed v3draw file.
+ * 
+ * Each (z, c) plane is exposed as a <code>ByteBuffer</code> view directly 
+ * into the mapped file, so no pixel data are copied onto the Java heap
+ * until the caller asks for them.
+ * 
+ * A single <code>MappedByteBuffer</code> cannot exceed 2 GB, so larger 
+ * files are mapped as several windows. Each window holds a whole number 
+ * of planes, so a plane never straddles two windows.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class MappedV3dRawImage implements Closeable
+{
+	private FileChannel channel;
+	private ByteOrder endian;
+	private int pixelBytes;
+	private int[] dimensions;
+	private long planeBytes;
+	private int planesPerWindow;
+	private MappedByteBuffer[] windows;
+
+	/**
+	 * Maps an uncompressed v3draw file into memory.
+	 * 
+	 * Only the 43-byte header is actually read during construction.
+	 * 
+	 * @param file uncompressed v3draw file
+	 * @throws IOException if the file is compressed, truncated or unreadable
+	 */
+	public MappedV3dRawImage(File file) 
+	throws IOException
+	{
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			mapFile();
+		}
+		catch (IOException exc) {
+			channel.close();
+			throw exc;
+		}
+		catch (IllegalArgumentException exc) {
+			channel.close();
+			throw new IOException(exc);
+		}
+	}
+	
+	private void mapFile() 
+	throws IOException
+	{
+		ByteBuffer headerBytes = ByteBuffer.allocate(V3dRawImageStream.HEADER_BYTES);
+		while (headerBytes.hasRemaining()) {
+			if (channel.read(headerBytes, headerBytes.position()) < 0)
+				throw new EOFException("File too short for v3draw header");
+		}
+		if (BgzfInputStream.isGzip(headerBytes.array(), headerBytes.position()))
+			throw new IOException("Gzip-compressed files cannot be memory mapped");
+		V3dRawHeader header;
+		try {
+			header = V3dRawHeader.parse(headerBytes.array());
+		}
+		catch (DataFormatException exc) {
+			throw new IOException(exc.getMessage(), exc);
+		}
+		if (header.getFormat() != V3dRawImageStream.Format.FORMAT_PENG_RAW)
+			throw new IOException("Only uncompressed v3draw files can be memory mapped");
+		endian = header.getByteOrder();
+		pixelBytes = header.getPixelBytes();
+		dimensions = new int[4];
+		for (int d = 0; d < 4; ++d)
+			dimensions[d] = header.getDimension(d);
+		
+		planeBytes = (long)dimensions[0] * dimensions[1] * pixelBytes;
+		if (planeBytes > Integer.MAX_VALUE)
+			throw new IOException("Plane of " + planeBytes + " bytes is too large to map");
+		long planeCount = (long)dimensions[2] * dimensions[3];
+		if (channel.size() < V3dRawImageStream.HEADER_BYTES + planeCount * planeBytes)
+			throw new EOFException("v3draw file is truncated");
+		
+		planesPerWindow = (int)Math.max(1, Integer.MAX_VALUE / Math.max(1, planeBytes));
+		int windowCount = (int)((planeCount + planesPerWindow - 1) / planesPerWindow);
+		windows = new MappedByteBuffer[windowCount];
+		for (int w = 0; w < windowCount; ++w) {
+			long firstPlane = (long)w * planesPerWindow;
+			long planesInWindow = Math.min(planesPerWindow, planeCount - firstPlane);
+			windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, 
+					V3dRawImageStream.HEADER_BYTES + firstPlane * planeBytes,
+					planesInWindow * planeBytes);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return little or big endian byte order
+	 */
+	public ByteOrder getByteOrder() {
+		return endian;
+	}
+	
+	/**
+	 * 
+	 * @param index Zero(0) for x-axis, 1 for y-axis, 2 for z-axis, 3 for color channel.
+	 * @return number of pixels in a particular axial direction
+	 */
+	public int getDimension(int index) {
+		return dimensions[index];
+	}
+	
+	/**
+	 * 
+	 * @return number of bytes in each pixel, per color channel
+	 */
+	public int getPixelBytes() {
+		return pixelBytes;
+	}
+	
+	/**
+	 * Returns a view of one plane of the mapped file.
+	 * 
+	 * The returned buffer shares storage with the file mapping; it is
+	 * positioned at zero, has the file byte order, and must not be used
+	 * after <code>close</code>.
+	 * 
+	 * @param z zero-based slice index
+	 * @param c zero-based color channel index
+	 * @return read-only buffer holding exactly one plane
+	 */
+	public ByteBuffer getPlane(int z, int c) {
+		if ( (z < 0) || (z >= dimensions[2]) || (c < 0) || (c >= dimensions[3]) )
+			throw new IndexOutOfBoundsException("No plane at z=" + z + ", c=" + c);
+		long planeIndex = (long)c * dimensions[2] + z; // channels are stored one after another
+		ByteBuffer view = windows[(int)(planeIndex / planesPerWindow)].duplicate();
+		int offset = (int)((planeIndex % planesPerWindow) * planeBytes);
+		view.limit(offset + (int)planeBytes);
+		view.position(offset);
+		return view.slice().order(endian);
+	}
+	
+	@Override
+	public void close() 
+	throws IOException
+	{
+		windows = null;
+		channel.close();
+	}
+}
@@ -0,0 +1,377 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decompresses a whole v3dpbd file on several cores at once.
+ * 
+ * The compressed stream is split into segments at points where decoding 
+ * can start afresh, and the segments are decoded concurrently on a 
+ * <code>ForkJoinPool</code>, each straight into its place in the output.
+ * 
+ * Split points come from the file's <code>PbdSliceIndex</code> when one is 
+ * available. Otherwise a quick first pass reads only the run headers, 
+ * and splits where a literal or repeat run begins; such runs do not 
+ * depend on any earlier voxel value.
+ * 
+ * The result is identical to sequential decoding with 
+ * <code>V3dRawImageStream</code>.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class ParallelPbdDecoder 
+{
+	public static final long DEFAULT_SEGMENT_BYTES = 4L << 20; // uncompressed
+	private static final int SCAN_BLOCK_SIZE = 1 << 20;
+	
+	private File pbdFile;
+	private ForkJoinPool pool;
+	private long segmentBytes = DEFAULT_SEGMENT_BYTES;
+	private PbdSliceIndex sliceIndex;
+	
+	/**
+	 * Decoder using the common ForkJoin pool.
+	 * 
+	 * @param pbdFile compressed v3dpbd volume
+	 */
+	public ParallelPbdDecoder(File pbdFile) {
+		this(pbdFile, ForkJoinPool.commonPool());
+	}
+	
+	public ParallelPbdDecoder(File pbdFile, ForkJoinPool pool) {
+		this.pbdFile = pbdFile;
+		this.pool = pool;
+	}
+	
+	/**
+	 * 
+	 * @param segmentBytes approximate number of uncompressed bytes decoded by 
+	 * each task
+	 */
+	public void setSegmentBytes(long segmentBytes) {
+		if (segmentBytes < 1)
+			throw new IllegalArgumentException("Segment size must be positive");
+		this.segmentBytes = segmentBytes;
+	}
+	
+	/**
+	 * Use checkpoints from a slice index as split points, instead of 
+	 * scanning run headers.
+	 */
+	public void setSliceIndex(PbdSliceIndex sliceIndex) {
+		this.sliceIndex = sliceIndex;
+	}
+	
+	/**
+	 * Decodes every slice of the volume.
+	 * 
+	 * @return one array per slice, in file order (channel by channel), 
+	 * holding raw voxel bytes in the file byte order.
+	 * @throws IOException
+	 */
+	public byte[][] decodeSlices() 
+	throws IOException
+	{
+		V3dRawImageStream header = new V3dRawImageStream(pbdFile);
+		long sliceCount;
+		int sliceByteCount;
+		try {
+			if (header.isGzipped())
+				throw new IOException("Cannot split a gzip-compressed file: " + pbdFile);
+			sliceCount = (long)header.getDimension(2) * header.getDimension(3);
+			sliceByteCount = V3dRawImageStream.toArrayLength(header.getSliceByteCount(), "Slice");
+			if (sliceIndex == null)
+				sliceIndex = header.getSliceIndex();
+		}
+		finally {
+			header.close();
+		}
+		byte[][] slices = new byte[(int)sliceCount][];
+		for (int s = 0; s < slices.length; ++s)
+			slices[s] = new byte[sliceByteCount];
+		decodeInto(slices);
+		return slices;
+	}
+	
+	/**
+	 * Decodes every slice of the volume into caller-supplied arrays.
+	 * 
+	 * @param slices one array per slice, in file order, each exactly one 
+	 * slice long.
+	 * @throws IOException
+	 */
+	public void decodeInto(final byte[][] slices) 
+	throws IOException
+	{
+		final FileChannel channel = FileChannel.open(pbdFile.toPath(), StandardOpenOption.READ);
+		try {
+			V3dRawImageStream header = new V3dRawImageStream(
+					new PositionalInputStream(channel, 0));
+			if (header.getFormat() != V3dRawImageStream.Format.FORMAT_MURPHY_PBD)
+				throw new IOException("Not a v3dpbd file: " + pbdFile);
+			final int pixelBytes = header.getPixelBytes();
+			final ByteOrder byteOrder = header.getByteOrder();
+			final long sliceByteCount = header.getSliceByteCount();
+			final long totalBytes = sliceByteCount * slices.length;
+			
+			List<SplitPoint> splits = (sliceIndex != null) && sliceIndex.matches(header)
+					? findCheckpointSplits(sliceByteCount)
+					: findRunSplits(channel, pixelBytes, totalBytes);
+			
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			for (int i = 0; i < splits.size(); ++i) {
+				final SplitPoint split = splits.get(i);
+				final long end = (i + 1 < splits.size()) 
+						? splits.get(i + 1).uncompressedOffset : totalBytes;
+				tasks.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected void compute() {
+						try {
+							decodeSegment(channel, pixelBytes, byteOrder, split, end, 
+									sliceByteCount, slices);
+						}
+						catch (IOException exc) {
+							throw new UncheckedIOException(exc);
+						}
+					}
+				});
+			}
+			try {
+				pool.submit(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected void compute() {
+						ForkJoinTask.invokeAll(tasks);
+					}
+				}).join();
+			}
+			catch (UncheckedIOException exc) {
+				throw exc.getCause();
+			}
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Split at the slice checkpoint nearest each multiple of segmentBytes.
+	 */
+	private List<SplitPoint> findCheckpointSplits(long sliceByteCount) {
+		List<SplitPoint> splits = new ArrayList<SplitPoint>();
+		long nextSplit = 0;
+		for (int s = 0; s < sliceIndex.getSliceCount(); ++s) {
+			long offset = s * sliceByteCount;
+			if (offset < nextSplit)
+				continue;
+			splits.add(new SplitPoint(offset, sliceIndex.getCheckpoint(s)));
+			nextSplit = offset + segmentBytes;
+		}
+		return splits;
+	}
+	
+	/**
+	 * Walks the run headers of the compressed data without decoding any 
+	 * voxels, and splits at the first literal or repeat run after each
+	 * multiple of segmentBytes.
+	 */
+	List<SplitPoint> findRunSplits(FileChannel channel, int pixelBytes, long totalBytes) 
+	throws IOException
+	{
+		List<SplitPoint> splits = new ArrayList<SplitPoint>();
+		ByteBuffer block = ByteBuffer.allocate(SCAN_BLOCK_SIZE);
+		long blockStart = 0; // compressed offset of block[0]
+		block.limit(0);
+		long compressedOffset = 0;
+		long uncompressedOffset = 0;
+		long nextSplit = 0;
+		while (uncompressedOffset < totalBytes) {
+			// Fetch the block containing the next run header
+			long blockOffset = compressedOffset - blockStart;
+			if (blockOffset >= block.limit()) {
+				blockStart = compressedOffset;
+				blockOffset = 0;
+				block.clear();
+				while (block.hasRemaining()) {
+					if (channel.read(block, V3dRawImageStream.HEADER_BYTES 
+							+ blockStart + block.position()) < 0)
+						break;
+				}
+				block.flip();
+				if (! block.hasRemaining())
+					throw new EOFException("v3dpbd file is truncated: " + pbdFile);
+			}
+			int code = block.get((int)blockOffset) & 0xff;
+			
+			long valueCount, payloadBytes;
+			boolean canStartHere; // literal and repeat runs need no prior
+			if (pixelBytes == 1) {
+				if (code < 33) { // literal
+					valueCount = code + 1;
+					payloadBytes = valueCount;
+					canStartHere = true;
+				}
+				else if (code < 128) { // difference
+					valueCount = code - 32;
+					payloadBytes = (valueCount + 3) / 4;
+					canStartHere = false;
+				}
+				else { // repeat
+					valueCount = code - 127;
+					payloadBytes = 1;
+					canStartHere = true;
+				}
+			}
+			else {
+				if (code < 32) { // literal
+					valueCount = code + 1;
+					payloadBytes = 2 * valueCount;
+					canStartHere = true;
+				}
+				else if (code < 80) { // difference
+					valueCount = code - 31;
+					payloadBytes = (3 * valueCount + 7) / 8;
+					canStartHere = false;
+				}
+				else if (code < 223) {
+					throw new IOException("Received unimplemented code of " + code);
+				}
+				else { // repeat
+					valueCount = code - 222;
+					payloadBytes = 2;
+					canStartHere = true;
+				}
+			}
+			
+			// The very start needs no prior either; it is implicitly zero
+			if ( (canStartHere || (uncompressedOffset == 0)) 
+					&& (uncompressedOffset >= nextSplit) ) {
+				splits.add(new SplitPoint(uncompressedOffset, 
+						new PbdInputStream.Checkpoint(compressedOffset, 
+								PbdInputStream.State.STATE_BEGIN, 0, 0, 0, new int[0])));
+				nextSplit = uncompressedOffset + segmentBytes;
+			}
+			compressedOffset += 1 + payloadBytes;
+			uncompressedOffset += valueCount * pixelBytes;
+		}
+		return splits;
+	}
+	
+	private static void decodeSegment(FileChannel channel, int pixelBytes, ByteOrder byteOrder,
+			SplitPoint split, long end, long sliceByteCount, byte[][] slices) 
+	throws IOException
+	{
+		PbdInputStream.Checkpoint checkpoint = split.checkpoint;
+		InputStream compressed = new PositionalInputStream(channel, 
+				V3dRawImageStream.HEADER_BYTES + checkpoint.getCompressedOffset());
+		PbdInputStream decoder = (pixelBytes == 1)
+				? new Pbd8InputStream(compressed)
+				: new Pbd16InputStream(compressed, byteOrder);
+		decoder.restoreCheckpoint(checkpoint);
+		long position = split.uncompressedOffset;
+		while (position < end) {
+			byte[] slice = slices[(int)(position / sliceByteCount)];
+			int offset = (int)(position % sliceByteCount);
+			int count = (int)Math.min(end - position, sliceByteCount - offset);
+			count = decoder.read(slice, offset, count);
+			if (count < 0)
+				throw new EOFException("v3dpbd data end early");
+			position += count;
+		}
+	}
+	
+	/**
+	 * A place where decoding can start, and the uncompressed offset it 
+	 * corresponds to.
+	 */
+	static class SplitPoint 
+	{
+		final long uncompressedOffset;
+		final PbdInputStream.Checkpoint checkpoint;
+		
+		SplitPoint(long uncompressedOffset, PbdInputStream.Checkpoint checkpoint) {
+			this.uncompressedOffset = uncompressedOffset;
+			this.checkpoint = checkpoint;
+		}
+	}
+	
+	/**
+	 * Reads a FileChannel from a private position, so that many threads 
+	 * can read the same channel at once.
+	 */
+	static class PositionalInputStream extends InputStream 
+	{
+		private FileChannel channel;
+		private long position;
+		
+		PositionalInputStream(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+		
+		@Override
+		public int read() 
+		throws IOException
+		{
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 1) ? -1 : (b[0] & 0xff);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) 
+		throws IOException
+		{
+			if (len < 1)
+				return 0;
+			int count = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (count > 0)
+				position += count;
+			return count;
+		}
+		
+		@Override
+		public long skip(long n) {
+			position += Math.max(0, n);
+			return Math.max(0, n);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses a whole volume to v3dpbd on several cores at once.
+ * 
+ * The uncompressed data are cut into slabs, and each slab is encoded on a 
+ * <code>ForkJoinPool</code> into its own compressed segment. A slab's 
+ * first difference run is encoded relative to the last voxel of the slab 
+ * before it, so the segments simply concatenate into one ordinary PBD 
+ * stream, readable by <code>V3dRawImageStream</code>.
+ * 
+ * Slabs are read in order on the calling thread, and only a few are in 
+ * flight at once, so memory use does not grow with the volume size. Callers
+ * encoding several volumes at once on one pool should lower that number 
+ * with {@link #setMaxSlabsInFlight}, so the total stays near the default.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class ParallelPbdEncoder 
+{
+	public static final int DEFAULT_SLAB_BYTES = 4 << 20; // uncompressed
+	
+	private ForkJoinPool pool;
+	private int slabBytes = DEFAULT_SLAB_BYTES;
+	private int maxSlabsInFlight;
+	
+	/**
+	 * Encoder using the common ForkJoin pool.
+	 */
+	public ParallelPbdEncoder() {
+		this(ForkJoinPool.commonPool());
+	}
+	
+	public ParallelPbdEncoder(ForkJoinPool pool) {
+		this.pool = pool;
+		this.maxSlabsInFlight = 2 * pool.getParallelism();
+	}
+	
+	/**
+	 * 
+	 * @param slabBytes approximate number of uncompressed bytes encoded by 
+	 * each task
+	 */
+	public void setSlabBytes(int slabBytes) {
+		if (slabBytes < 2)
+			throw new IllegalArgumentException("Slab size must be at least one voxel");
+		this.slabBytes = slabBytes;
+	}
+	
+	/**
+	 * 
+	 * @param maxSlabsInFlight number of slabs each call to 
+	 * <code>encodeData</code> holds in memory at once; twice the pool's 
+	 * parallelism by default
+	 */
+	public void setMaxSlabsInFlight(int maxSlabsInFlight) {
+		if (maxSlabsInFlight < 1)
+			throw new IllegalArgumentException("At least one slab must be in flight");
+		this.maxSlabsInFlight = maxSlabsInFlight;
+	}
+	
+	/**
+	 * Compresses a v3draw or v3dpbd file into a new v3dpbd file.
+	 */
+	public void encode(File inputFile, File pbdFile) 
+	throws IOException
+	{
+		V3dRawImageStream source = new V3dRawImageStream(inputFile);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(pbdFile), 1 << 20);
+			try {
+				encode(source, out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			source.close();
+		}
+	}
+	
+	/**
+	 * Writes a v3dpbd header and the compressed form of all remaining voxel 
+	 * data in <code>source</code>, which must not have been read yet.
+	 * 
+	 * @throws IllegalArgumentException for volumes that PBD cannot encode
+	 */
+	public void encode(V3dRawImageStream source, OutputStream out) 
+	throws IOException
+	{
+		int pixelBytes = source.getPixelBytes();
+		if ( (pixelBytes != 1) && (pixelBytes != 2) )
+			throw new IllegalArgumentException("PBD compression supports only 8- and 16-bit volumes");
+		source.writeHeader(out, V3dRawImageStream.Format.FORMAT_MURPHY_PBD);
+		long totalBytes = source.getSliceByteCount() 
+				* source.getDimension(2) * source.getDimension(3);
+		encodeData(source.getDataInputStream(), totalBytes, 
+				pixelBytes, source.getByteOrder(), out);
+	}
+	
+	/**
+	 * Writes the compressed form of <code>totalBytes</code> of uncompressed 
+	 * voxel data, without any header.
+	 * 
+	 * @param data uncompressed voxels, in <code>byteOrder</code>
+	 * @param pixelBytes 1 or 2
+	 */
+	public void encodeData(InputStream data, long totalBytes, 
+			final int pixelBytes, final ByteOrder byteOrder, OutputStream out) 
+	throws IOException
+	{
+		long remaining = totalBytes;
+		Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+		int prior = 0;
+		while (remaining > 0) {
+			int count = (int)Math.min(remaining, slabBytes - (slabBytes % pixelBytes));
+			final byte[] slab = new byte[count];
+			readFully(data, slab);
+			remaining -= count;
+			final int slabPrior = prior;
+			inFlight.add(pool.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return encodeSlab(slab, slabPrior, pixelBytes, byteOrder);
+				}
+			}));
+			prior = (pixelBytes == 1) 
+					? slab[count - 1] 
+					: getShort(slab, count - 2, byteOrder);
+			if (inFlight.size() >= maxSlabsInFlight)
+				writeSegment(inFlight.removeFirst(), out);
+		}
+		while (! inFlight.isEmpty())
+			writeSegment(inFlight.removeFirst(), out);
+		out.flush();
+	}
+	
+	static byte[] encodeSlab(byte[] slab, int prior, int pixelBytes, ByteOrder byteOrder) 
+	throws IOException
+	{
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(slab.length / 2);
+		PbdOutputStream encoder = (pixelBytes == 1)
+				? new Pbd8OutputStream(compressed, slab.length)
+				: new Pbd16OutputStream(compressed, byteOrder, slab.length);
+		encoder.setPrior(prior);
+		encoder.write(slab);
+		encoder.close();
+		return compressed.toByteArray();
+	}
+	
+	private static void writeSegment(Future<byte[]> segment, OutputStream out) 
+	throws IOException
+	{
+		byte[] compressed;
+		try {
+			compressed = segment.get();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", exc);
+		}
+		catch (ExecutionException exc) {
+			if (exc.getCause() instanceof IOException)
+				throw (IOException)exc.getCause();
+			throw new IOException(exc.getCause());
+		}
+		out.write(compressed);
+	}
+	
+	private static void readFully(InputStream in, byte[] b) 
+	throws IOException
+	{
+		int pos = 0;
+		while (pos < b.length) {
+			int count = in.read(b, pos, b.length - pos);
+			if (count < 0)
+				throw new EOFException("v3draw data end early");
+			pos += count;
+		}
+	}
+	
+	private static short getShort(byte[] b, int off, ByteOrder byteOrder) {
+		if (byteOrder == ByteOrder.BIG_ENDIAN)
+			return (short)((b[off] << 8) | (b[off + 1] & 0xff));
+		return (short)((b[off + 1] << 8) | (b[off] & 0xff));
+	}
+	
+	/**
+	 * Compresses one file to v3dpbd, by default beside the original.
+	 * 
+	 * Usage: ParallelPbdEncoder input.v3draw [output.v3dpbd]
+	 */
+	public static void main(String[] args) {
+		if ( (args.length < 1) || (args.length > 2) ) {
+			System.err.println("Usage: ParallelPbdEncoder input.v3draw [output.v3dpbd]");
+			System.exit(2);
+		}
+		File inputFile = new File(args[0]);
+		File pbdFile = (args.length > 1) 
+				? new File(args[1]) 
+				: new File(args[0].replaceFirst("\\.[^./\\\\]*$", "") + ".v3dpbd");
+		if (pbdFile.getAbsoluteFile().equals(inputFile.getAbsoluteFile())) {
+			System.err.println(args[0] + ": output would overwrite input");
+			System.exit(2);
+		}
+		try {
+			long start = System.currentTimeMillis();
+			new ParallelPbdEncoder().encode(inputFile, pbdFile);
+			System.out.println(pbdFile + ": " + pbdFile.length() + " bytes from " 
+					+ inputFile.length() + " in " 
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (IOException exc) {
+			System.err.println(args[0] + ": " + exc.getMessage());
+			System.exit(1);
+		}
+	}
+}
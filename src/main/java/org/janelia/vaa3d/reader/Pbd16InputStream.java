@@ -26,11 +26,8 @@ package org.janelia.vaa3d.reader;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Arrays;
 
 
 /**
@@ -41,307 +38,415 @@ import java.util.Deque;
  * Adapted from ImageLoader.cpp in Vaa3d project.
  * Used by V3dRawImageStream class.
  * 
+ * Decoded values are written straight into primitive arrays, one whole
+ * run at a time, so no per-voxel objects are created during decompression.
+ * 
  * @author Christopher M. Bruns
  *
  */
 public class Pbd16InputStream extends PbdInputStream 
 {
-	private ByteOrder byteOrder= ByteOrder.BIG_ENDIAN;
+	private static final int MAX_LITERAL_SHORTS = 32; // literal codes 0-31
+	private static final int SHORT_BUFFER_SIZE = 4096;
 	
-	private byte[] nibbleBytes = new byte[2];
-	private ByteBuffer nibbleByteBuffer = ByteBuffer.wrap(nibbleBytes);
-	private ShortBuffer nibbleShortBuffer;
+	private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+	private boolean bigEndian;
 	
-    private byte[] singleShortBytes = new byte[2];
-    private ByteBuffer singleShortByteBuffer = ByteBuffer.wrap(singleShortBytes);
-    private ShortBuffer singleShortShortBuffer;
-    
 	private short repeatValue;
 	private short decompressionPrior;
-	private byte d0,d1,d2,d3;
-	// private byte sourceChar;
-	private byte carryOver;
-	private byte oooooool = 1;
-	// private byte oooooolo = 2;
-	private byte ooooooll = 3;
-	// private byte oooooloo = 4;
-	// private byte ooooolol = 5;
-	// private byte ooooollo = 6;
-	private byte ooooolll = 7;
-
-	// differenceCache is used in case read method ends mid-difference run.
-	private Deque<Short> shortValueCache = new ArrayDeque<Short>();
+	// Raw bytes of one literal run or one difference group
+	private byte[] packedBytes = new byte[2 * MAX_LITERAL_SHORTS];
+	// One three-byte difference group unpacks to at most eight values.
+	// The group is kept here only for the rare case where a read ends
+	// part way through it.
+	private short[] differenceGroup = new short[8];
+	private int dgPos = 0; // next unread position in differenceGroup
+	private int fillNumber = 0; // number of used positions in differenceGroup
 	
-	// TODO Support reading one byte at a time, by cacheing half-shorts
+	// Decoded values waiting to be split into bytes by read(byte[],int,int)
+	private short[] shortBuffer = new short[SHORT_BUFFER_SIZE];
+	// Second half of a short that was split between two read calls
+	private byte cachedNibble;
 	private boolean haveCachedNibble = false;
 	
 	public Pbd16InputStream(InputStream in, ByteOrder byteOrder) {
-		super(in);
+		this(in, byteOrder, DEFAULT_BLOCK_SIZE);
+	}
+
+	public Pbd16InputStream(InputStream in, ByteOrder byteOrder, int blockSize) {
+		super(in, blockSize);
 		this.byteOrder = byteOrder;
-		nibbleByteBuffer.order(byteOrder);
-		nibbleShortBuffer = nibbleByteBuffer.asShortBuffer();
-		
-        singleShortByteBuffer.order(byteOrder);
-        singleShortShortBuffer = singleShortByteBuffer.asShortBuffer();
+		bigEndian = (byteOrder == ByteOrder.BIG_ENDIAN);
 	}
 
-	// for debugging
-	/*
-	private short checkValue(short v) {
-		if (v < 0) {
-			// System.out.println("fizz");
-		}
-		if (v > 5000) {
-			// System.out.println("buzz");			
-		}
-		return v;
+	public ByteOrder getByteOrder() {
+		return byteOrder;
 	}
-	*/
 	
 	@Override
-	public int read(byte[] b, int off0, int len0) 
+	public int read(byte[] b, int off, int len) 
 	throws IOException
 	{
-		if (len0 < 1) return 0;
-		
-		int bytesRead = 0;
+		if (len < 1) return 0;
 		
+		int pos = off;
+		int end = off + len;
 		// Second half-short
 		// Is there a leftover byte (half-short) from last time?
-		int off, len;
 		if (haveCachedNibble) {
-		    // Write one byte to output
-		    b[off0] = nibbleBytes[1];
-		    off = off0 + 1;
-		    len = len0 - 1;
-		    haveCachedNibble = false;
-		    bytesRead += 1;
-		    if (len == 0)
-		        return bytesRead;
-		}
-		else {
-            off = off0;
-            len = len0;		    
+			b[pos++] = cachedNibble;
+			haveCachedNibble = false;
 		}
 		
-		ByteBuffer byteOut = ByteBuffer.wrap(b, off, len);
-		byteOut.order(this.byteOrder);
-		ShortBuffer out = byteOut.asShortBuffer();
+		while (end - pos >= 2) {
+			int wanted = Math.min(SHORT_BUFFER_SIZE, (end - pos) / 2);
+			int count = read(shortBuffer, 0, wanted);
+			if (count < 0)
+				break;
+			for (int s = 0; s < count; ++s) {
+				putShort(b, pos, shortBuffer[s]);
+				pos += 2;
+			}
+			if (count < wanted)
+				break; // end of stream
+		}
 		
-        int shortValue = getNextShort();
-        
-        if ( (shortValue < 0) && (bytesRead == 0) )
-            return shortValue; // -1 means read failed
-        
-        // Special case for read of length 1
-        if ( !out.hasRemaining() ) {
-            if ( cacheNibble(shortValue) ) {
-                b[off0 + len0 - 1] = nibbleBytes[0];
-                bytesRead += 1;
-            }
-        }
-        
-        while ( out.hasRemaining() && (shortValue >= 0) )
-        {
-            out.put((short)shortValue);
-            bytesRead += 2;
-            if (out.hasRemaining())
-                shortValue = getNextShort();
-        }
-        
-        // First half-short
-        // Sometimes we might have room for just one more byte,
-        // the first byte of a two-byte short
-        if ((len0 - bytesRead) == 1) {
-            shortValue = getNextShort();
-            if ( cacheNibble(shortValue) ) {
-                b[off0 + len0 - 1] = nibbleBytes[0];
-                bytesRead += 1;
-            }
-        }
+		// First half-short
+		// Sometimes we might have room for just one more byte,
+		// the first byte of a two-byte short
+		if (end - pos == 1) {
+			if (read(shortBuffer, 0, 1) == 1) {
+				putShort(packedBytes, 0, shortBuffer[0]);
+				b[pos++] = packedBytes[0];
+				cachedNibble = packedBytes[1];
+				haveCachedNibble = true;
+			}
+		}
 		
+		int bytesRead = pos - off;
+		if (bytesRead == 0)
+			return -1; // end of stream
 		return bytesRead;
 	}
 	
-	/** Save one short data value that must be divided between two read calls
+	/**
+	 * Decompresses up to <code>len</code> 16-bit values directly into 
+	 * an array of shorts.
+	 * 
+	 * Fewer than <code>len</code> values are delivered only at the end of
+	 * the stream.
+	 * 
+	 * @param b destination array
+	 * @param off index of first value to write
+	 * @param len maximum number of values to write
+	 * @return number of values written, or -1 at end of stream
+	 * @throws IOException
+	 */
+	public int read(short[] b, int off, int len) 
+	throws IOException
+	{
+		if (len < 1) return 0;
+		
+		int pos = off;
+		int end = off + len;
+		while (pos < end)
+		{
+			if (state == State.STATE_BEGIN)
+			{
+				if (! startRun()) // end of stream
+					break;
+			}
+			else if (state == State.STATE_LITERAL)
+			{
+				int count = Math.min(leftToFill, end - pos);
+				readCompressedBytes(packedBytes, 0, 2 * count);
+				for (int s = 0; s < count; ++s)
+					b[pos++] = getShort(packedBytes, 2 * s);
+				decompressionPrior = b[pos - 1];
+				leftToFill -= count;
+				if (leftToFill < 1)
+					state = State.STATE_BEGIN;
+			}
+			else if (state == State.STATE_DIFFERENCE)
+			{
+				while ( (leftToFill > 0) && (pos < end) ) 
+				{
+					int count = Math.min(leftToFill, 8);
+					leftToFill -= count;
+					if (end - pos >= count) {
+						unpackDifferenceGroup(b, pos, count);
+						pos += count;
+					}
+					else {
+						// Ouch, output buffer ends in the middle of one group
+						unpackDifferenceGroup(differenceGroup, 0, count);
+						fillNumber = count;
+						dgPos = end - pos;
+						System.arraycopy(differenceGroup, 0, b, pos, dgPos);
+						pos = end;
+						state = State.STATE_DIFFERENCE_SUBPIXEL;
+					}
+				}
+				if ( (state == State.STATE_DIFFERENCE) && (leftToFill < 1) )
+					state = State.STATE_BEGIN;
+			}
+			else if (state == State.STATE_DIFFERENCE_SUBPIXEL)
+			{
+				int count = Math.min(fillNumber - dgPos, end - pos);
+				System.arraycopy(differenceGroup, dgPos, b, pos, count);
+				dgPos += count;
+				pos += count;
+				if (dgPos >= fillNumber)
+					state = (leftToFill > 0) ? State.STATE_DIFFERENCE : State.STATE_BEGIN;
+			}
+			else if (state == State.STATE_REPEAT)
+			{
+				int count = Math.min(leftToFill, end - pos);
+				Arrays.fill(b, pos, pos + count, repeatValue);
+				pos += count;
+				leftToFill -= count;
+				if (leftToFill < 1)
+					state = State.STATE_BEGIN;
+				decompressionPrior = repeatValue;
+			}
+			else {
+				throw new IOException("Unexpected state");
+			}
+		}
+		
+		int valuesRead = pos - off;
+		if (valuesRead == 0)
+			return -1; // end of stream
+		return valuesRead;
+	}
+	
+	/**
+	 * Reads the header of the next run.
+	 * 
+	 * @return false at the end of the compressed stream
+	 */
+	private boolean startRun() 
+	throws IOException
+	{
+		// Read one byte
+		int code = readCompressedByte(); // unsigned
+		if (code < 0)  // end of stream
+			return false;
+		if (code < 32) { // literal 0-31
+			state = State.STATE_LITERAL;
+			leftToFill = code + 1;
+		}
+		else if (code < 80) { // Difference 3-bit 32-79
+			state = State.STATE_DIFFERENCE;
+			leftToFill = code - 31;
+		}
+		else if (code < 223) { // Repeat 223-255
+			throw new IOException("Received unimplemented code of " + code);
+		}
+		else { // Repeat 223-255
+			state = State.STATE_REPEAT;
+			leftToFill = code - 222;
+			readCompressedBytes(packedBytes, 0, 2);
+			repeatValue = getShort(packedBytes, 0);
+		}
+		return true;
+	}
+	
+	/**
+	 * Skips decoded bytes, without producing the values in between.
+	 * 
+	 * Like read(byte[],int,int), an odd count leaves the second half of 
+	 * the last voxel to be returned by the next read.
+	 */
+	@Override
+	public long skip(long n) 
+	throws IOException
+	{
+		if (n < 1) return 0;
+		long remaining = n;
+		if (haveCachedNibble) {
+			haveCachedNibble = false;
+			--remaining;
+		}
+		long wanted = remaining / 2;
+		long skipped = skipValues(wanted);
+		remaining -= 2 * skipped;
+		if ( (skipped == wanted) && (remaining == 1) ) {
+			byte[] firstHalf = new byte[1];
+			if (read(firstHalf, 0, 1) == 1)
+				remaining = 0;
+		}
+		return n - remaining;
+	}
+	
+	/**
+	 * Skips up to <code>n</code> decoded 16-bit values by run arithmetic.
 	 * 
-	 * @param value
-	 * @return number of bytes read
+	 * Repeat runs are skipped without touching compressed data, literal
+	 * runs by skipping their compressed bytes, and difference runs by 
+	 * summing their deltas into the prior.
+	 * 
+	 * @return number of values skipped, fewer than <code>n</code> only
+	 * at the end of the stream
 	 */
-	private boolean cacheNibble(int value) {
-	    if (value < 0) {
-	        haveCachedNibble = false;
-	        return false; // don't cache invalid values
-	    }
-        nibbleShortBuffer.rewind();
-        nibbleShortBuffer.put((short)value);
-        // b[off0 + len0 - 1] = nibbleBytes[0];
-        haveCachedNibble = true;
-	    return true;
+	public long skipValues(long n) 
+	throws IOException
+	{
+		long remaining = n;
+		while (remaining > 0)
+		{
+			if (state == State.STATE_BEGIN)
+			{
+				if (! startRun()) // end of stream
+					break;
+			}
+			else if (state == State.STATE_LITERAL)
+			{
+				int count = (int)Math.min(leftToFill, remaining);
+				// Only the last skipped value is needed, as the prior
+				skipCompressedBytes(2 * (count - 1));
+				readCompressedBytes(packedBytes, 0, 2);
+				decompressionPrior = getShort(packedBytes, 0);
+				remaining -= count;
+				leftToFill -= count;
+				if (leftToFill < 1)
+					state = State.STATE_BEGIN;
+			}
+			else if (state == State.STATE_DIFFERENCE)
+			{
+				while ( (leftToFill > 0) && (remaining > 0) ) 
+				{
+					int count = Math.min(leftToFill, 8);
+					leftToFill -= count;
+					if (remaining >= count) {
+						skipDifferenceGroup(count);
+						remaining -= count;
+					}
+					else {
+						// Skip ends in the middle of one group
+						unpackDifferenceGroup(differenceGroup, 0, count);
+						fillNumber = count;
+						dgPos = (int)remaining;
+						remaining = 0;
+						state = State.STATE_DIFFERENCE_SUBPIXEL;
+					}
+				}
+				if ( (state == State.STATE_DIFFERENCE) && (leftToFill < 1) )
+					state = State.STATE_BEGIN;
+			}
+			else if (state == State.STATE_DIFFERENCE_SUBPIXEL)
+			{
+				int count = (int)Math.min(fillNumber - dgPos, remaining);
+				dgPos += count;
+				remaining -= count;
+				if (dgPos >= fillNumber)
+					state = (leftToFill > 0) ? State.STATE_DIFFERENCE : State.STATE_BEGIN;
+			}
+			else if (state == State.STATE_REPEAT)
+			{
+				int count = (int)Math.min(leftToFill, remaining);
+				remaining -= count;
+				leftToFill -= count;
+				if (leftToFill < 1)
+					state = State.STATE_BEGIN;
+				decompressionPrior = repeatValue;
+			}
+			else {
+				throw new IOException("Unexpected state");
+			}
+		}
+		return n - Math.max(remaining, 0);
+	}
+	
+	/**
+	 * Adds one group of up to eight 3-bit differences to the prior,
+	 * without storing the intermediate values.
+	 */
+	private void skipDifferenceGroup(int count) 
+	throws IOException
+	{
+		int byteCount = (3 * count + 7) / 8;
+		readCompressedBytes(packedBytes, 0, byteCount);
+		int bits = 0;
+		for (int i = 0; i < 3; ++i) {
+			bits <<= 8;
+			if (i < byteCount)
+				bits |= packedBytes[i] & 0xff;
+		}
+		int sum = 0;
+		for (int i = 0; i < count; ++i) {
+			int d = (bits >>> (21 - 3 * i)) & 0x7;
+			sum += (d < 5 ? d : 4 - d);
+		}
+		decompressionPrior = (short)(decompressionPrior + sum);
 	}
 	
 	/**
+	 * Unpacks up to eight 3-bit differences from one group of at most three
+	 * compressed bytes.
 	 * 
-	 * @return -1 means no more data
-	 * @throws IOException 
+	 * Differences are packed most significant bit first, 
+	 * 332 / 1331 / 233 bits per byte.
 	 */
-	private int getNextShort() throws IOException {
-	    while (true) {            
-            if (! shortValueCache.isEmpty() )
-                return shortValueCache.pollFirst();
-	        
-            if (state == State.STATE_BEGIN)
-            {
-                // Read one byte
-                int code = in.read(); // unsigned
-                if (code < 0)  // read failed, end of stream?
-                    return code;
-                assert(code >= 0);
-                if (code < 32) { // literal 0-31
-                    state = State.STATE_LITERAL;
-                    leftToFill = code + 1;
-                }
-                else if (code < 80) { // Difference 3-bit 32-79
-                    state = State.STATE_DIFFERENCE;
-                    leftToFill = code - 31;
-                }
-                else if (code < 223) { // Repeat 223-255
-                    throw new IOException("Received unimplemented code of " + code);
-                }
-                else { // Repeat 223-255
-                    state = State.STATE_REPEAT;
-                    leftToFill = code - 222;
-                    in.read(singleShortBytes, 0, 2);
-                    repeatValue = singleShortShortBuffer.get(0);
-                }
-            }
-            else if (state == State.STATE_LITERAL)
-            {
-                for (int s = 0; s < leftToFill; ++s) {
-                    in.read(singleShortBytes, 0, 2);
-                    short value = singleShortShortBuffer.get(0);
-                    shortValueCache.add(value);
-                }
-                state = State.STATE_BEGIN;
-                leftToFill = 1;
-                decompressionPrior = shortValueCache.peekLast();
-            }
-            else if (state == State.STATE_DIFFERENCE)
-            {
-                while (leftToFill > 0)
-                {
-                    //
-                    // 332
-                    d0=d1=d2=d3=0;
-                    int sourceChar2 = in.read();
-                    // sourceChar=(byte)sourceChar2;
-                    d0 = (byte)(sourceChar2 >>> 5);
-                    short value = (short)(decompressionPrior+(d0<5?d0:4-d0));
-                    shortValueCache.add(value); // out.put(value);
-                    // out.put(checkValue(value));
-                    //if (debug) qDebug() << "debug: position " << (dp-1) << " diff value=" << target16Data[dp-1] << " d0=" << d0;
-                    leftToFill--;
-                    if (leftToFill==0) {
-                        break;
-                    }
-                    d1 = (byte)((sourceChar2 >>> 2) & ooooolll);
-                    value = (short)(value + (d1<5?d1:4-d1));
-                    shortValueCache.add(value); // out.put(value);
-                    // out.put(checkValue(value));
-                    //if (debug) qDebug() << "debug: position " << (dp-1) << " diff value=" << target16Data[dp-1];
-                    leftToFill--;
-                    if (leftToFill==0) {
-                        break;
-                    }
-                    d2 = (byte)((sourceChar2) & ooooooll);
-                    carryOver=d2;
-    
-                    // 1331
-                    d0=d1=d2=d3=0;
-                    sourceChar2 = in.read();
-                    // sourceChar=(byte)sourceChar2;
-                    carryOver <<= 1;
-                    d0 = (byte)((sourceChar2 >>> 7) | carryOver);
-                    value = (short)(value + (d0<5?d0:4-d0));
-                    shortValueCache.add(value); // out.put(value);
-                    // out.put(checkValue(value));
-                    //if (debug) qDebug() << "debug: position " << (dp-1) << " diff value=" << target16Data[dp-1];
-                    leftToFill--;
-                    if (leftToFill==0) {
-                        break;
-                    }
-                    d1 = (byte)((sourceChar2 >>> 4) & ooooolll);
-                    value = (short)(value + (d1<5?d1:4-d1));
-                    shortValueCache.add(value); // out.put(value);
-                    // out.put(checkValue(value));
-                    //if (debug) qDebug() << "debug: position " << (dp-1) << " diff value=" << target16Data[dp-1];
-                    leftToFill--;
-                    if (leftToFill==0) {
-                        break;
-                    }
-                    d2 = (byte)((sourceChar2 >>> 1) & ooooolll);
-                    value = (short)(value + (d2<5?d2:4-d2));
-                    shortValueCache.add(value); // out.put(value);
-                    // out.put(checkValue(value));
-                    //if (debug) qDebug() << "debug: position " << (dp-1) << " diff value=" << target16Data[dp-1];
-                    leftToFill--;
-                    if (leftToFill==0) {
-                        break;
-                    }
-                    d3 = (byte)((sourceChar2) & oooooool);
-                    carryOver=d3;
-    
-                    // 233
-                    d0=d1=d2=d3=0;
-                    sourceChar2 = in.read();
-                    // sourceChar=(byte)sourceChar2;
-                    carryOver <<= 2;
-                    d0 = (byte)((sourceChar2 >>> 6) | carryOver);
-                    value = (short)(value + (d0<5?d0:4-d0));
-                    shortValueCache.add(value); // out.put(value);
-                    // out.put(checkValue(value));
-                    //if (debug) qDebug() << "debug: position " << (dp-1) << " diff value=" << target16Data[dp-1];
-                    leftToFill--;
-                    if (leftToFill==0) {
-                        break;
-                    }
-                    d1 = (byte)((sourceChar2 >>> 3) & ooooolll);
-                    value = (short)(value + (d1<5?d1:4-d1));
-                    shortValueCache.add(value); // out.put(value);
-                    // out.put(checkValue(value));
-                    //if (debug) qDebug() << "debug: position " << (dp-1) << " diff value=" << target16Data[dp-1];
-                    leftToFill--;
-                    if (leftToFill==0) {
-                        break;
-                    }
-                    d2 = (byte)((sourceChar2) & ooooolll);
-                    value = (short)(value + (d2<5?d2:4-d2));
-                    shortValueCache.add(value); // out.put(value);
-                    // out.put(checkValue(value));
-                    //if (debug) qDebug() << "debug: position " << (dp-1) << " diff value=" << target16Data[dp-1];
-                    leftToFill--;
-                    if (leftToFill==0) {
-                        break;
-                    }
-                    // Does this statement ever get executed?
-                    decompressionPrior = shortValueCache.peekLast();
-                }
-                if (! shortValueCache.isEmpty())
-                    decompressionPrior = shortValueCache.peekLast();
-                if (leftToFill < 1)
-                    state = State.STATE_BEGIN;
-            }
-            else if (state == State.STATE_REPEAT)
-            {
-                for (int j = 0; j < leftToFill; ++j)
-                    shortValueCache.add(repeatValue);
-                leftToFill = 0;
-                state = State.STATE_BEGIN;
-                decompressionPrior = repeatValue;
-            }
-            else {
-                throw new IOException("Unexpected state");
-            }
-	    }
+	private void unpackDifferenceGroup(short[] b, int off, int count) 
+	throws IOException
+	{
+		int byteCount = (3 * count + 7) / 8;
+		readCompressedBytes(packedBytes, 0, byteCount);
+		int bits = 0;
+		for (int i = 0; i < 3; ++i) {
+			bits <<= 8;
+			if (i < byteCount)
+				bits |= packedBytes[i] & 0xff;
+		}
+		short value = decompressionPrior;
+		for (int i = 0; i < count; ++i) {
+			int d = (bits >>> (21 - 3 * i)) & 0x7;
+			value = (short)(value + (d < 5 ? d : 4 - d));
+			b[off + i] = value;
+		}
+		decompressionPrior = value;
+	}
+	
+	@Override
+	public Checkpoint getCheckpoint() {
+		if (haveCachedNibble)
+			throw new IllegalStateException("Cannot checkpoint between the two bytes of a voxel");
+		int[] pending = new int[0];
+		if (state == State.STATE_DIFFERENCE_SUBPIXEL) {
+			pending = new int[fillNumber - dgPos];
+			for (int i = 0; i < pending.length; ++i)
+				pending[i] = differenceGroup[dgPos + i];
+		}
+		return createCheckpoint(decompressionPrior, repeatValue, pending);
+	}
+	
+	@Override
+	public void restoreCheckpoint(Checkpoint checkpoint) {
+		restoreRunState(checkpoint);
+		decompressionPrior = (short)checkpoint.prior;
+		repeatValue = (short)checkpoint.repeatValue;
+		fillNumber = checkpoint.pending.length;
+		dgPos = 0;
+		for (int i = 0; i < fillNumber; ++i)
+			differenceGroup[i] = (short)checkpoint.pending[i];
+		haveCachedNibble = false;
+	}
+	
+	private short getShort(byte[] b, int off) {
+		if (bigEndian)
+			return (short)((b[off] << 8) | (b[off + 1] & 0xff));
+		return (short)((b[off + 1] << 8) | (b[off] & 0xff));
+	}
+	
+	private void putShort(byte[] b, int off, short value) {
+		if (bigEndian) {
+			b[off] = (byte)(value >>> 8);
+			b[off + 1] = (byte)value;
+		}
+		else {
+			b[off] = (byte)value;
+			b[off + 1] = (byte)(value >>> 8);
+		}
 	}
 }
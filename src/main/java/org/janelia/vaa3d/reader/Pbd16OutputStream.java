@@ -0,0 +1,188 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compresses 16-bit voxel data with Sean Murphy's fast PBD pack-bits plus 
+ * difference encoding, in the form read by Pbd16InputStream.
+ * 
+ * Runs are chosen greedily: a repeat run wherever a value repeats a few 
+ * times, a difference run wherever successive values change by -3 to 4, 
+ * and literal runs for everything else.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class Pbd16OutputStream extends PbdOutputStream 
+{
+	private static final int MAX_LITERAL = 32; // codes 0-31
+	private static final int MAX_DIFFERENCE = 48; // codes 32-79
+	private static final int MAX_REPEAT = 33; // codes 223-255
+	// Shortest runs worth starting, by encoded size
+	private static final int MIN_REPEAT = 3;
+	private static final int MIN_DIFFERENCE = 3;
+	// Equal values inside a difference run cost three bits each;
+	// only this many are worth ending the difference run for.
+	private static final int DIFFERENCE_REPEAT_CUT = 16;
+	
+	private ByteOrder byteOrder;
+	private short prior = 0;
+	// Voxel values of the block being encoded
+	private short[] values;
+	
+	public Pbd16OutputStream(OutputStream out, ByteOrder byteOrder) {
+		this(out, byteOrder, DEFAULT_BLOCK_SIZE);
+	}
+	
+	public Pbd16OutputStream(OutputStream out, ByteOrder byteOrder, int blockSize) {
+		// worst case is all literal runs
+		super(out, blockSize, blockSize + (blockSize / 2 + MAX_LITERAL - 1) / MAX_LITERAL);
+		this.byteOrder = byteOrder;
+		values = new short[blockSize / 2];
+	}
+	
+	public ByteOrder getByteOrder() {
+		return byteOrder;
+	}
+	
+	@Override
+	void setPrior(int prior) {
+		this.prior = (short)prior;
+	}
+	
+	@Override
+	protected int getPixelBytes() {
+		return 2;
+	}
+	
+	@Override
+	protected int encode(byte[] b, int off, int len) {
+		int end = len / 2;
+		ByteBuffer.wrap(b, off, len).order(byteOrder).asShortBuffer().get(values, 0, end);
+		int pos = 0;
+		int n = 0;
+		while (pos < end) {
+			int count = repeatLength(values, pos, end, MAX_REPEAT);
+			if (count >= MIN_REPEAT) {
+				packed[n++] = (byte)(222 + count);
+				// voxel bytes are already in the file byte order
+				packed[n++] = b[off + 2 * pos];
+				packed[n++] = b[off + 2 * pos + 1];
+			}
+			else {
+				count = differenceLength(values, pos, end, prior, MAX_DIFFERENCE);
+				if (count >= MIN_DIFFERENCE) {
+					packed[n++] = (byte)(31 + count);
+					n = packDifferences(pos, count, n);
+				}
+				else {
+					count = literalLength(values, pos, end);
+					packed[n++] = (byte)(count - 1);
+					System.arraycopy(b, off + 2 * pos, packed, n, 2 * count);
+					n += 2 * count;
+				}
+			}
+			pos += count;
+			prior = values[pos - 1];
+		}
+		return n;
+	}
+	
+	private static int repeatLength(short[] v, int pos, int end, int limit) {
+		short value = v[pos];
+		int k = pos + 1;
+		int stop = Math.min(end, pos + limit);
+		while ( (k < stop) && (v[k] == value) )
+			++k;
+		return k - pos;
+	}
+	
+	/**
+	 * Number of voxels from <code>pos</code> whose deltas fit in three bits,
+	 * stopping short of any long stretch of equal values.
+	 */
+	private static int differenceLength(short[] v, int pos, int end, short prior, int limit) {
+		int stop = Math.min(end, pos + limit);
+		short previous = prior;
+		int equalStart = pos;
+		int k = pos;
+		while (k < stop) {
+			int delta = (short)(v[k] - previous);
+			if ( (delta < -3) || (delta > 4) )
+				break;
+			if ( (k == pos) || (v[k] != v[k - 1]) )
+				equalStart = k;
+			else if ( (k + 1 - equalStart >= DIFFERENCE_REPEAT_CUT) && (equalStart > pos) )
+				return equalStart - pos;
+			previous = v[k];
+			++k;
+		}
+		return k - pos;
+	}
+	
+	/**
+	 * Number of voxels from <code>pos</code> to copy verbatim, ending where
+	 * a repeat or difference run could begin.
+	 */
+	private static int literalLength(short[] v, int pos, int end) {
+		int stop = Math.min(end, pos + MAX_LITERAL);
+		int k = pos + 1;
+		while (k < stop) {
+			if (repeatLength(v, k, end, MIN_REPEAT) >= MIN_REPEAT)
+				break;
+			if (differenceLength(v, k, end, v[k - 1], MIN_DIFFERENCE) >= MIN_DIFFERENCE)
+				break;
+			++k;
+		}
+		return k - pos;
+	}
+	
+	/**
+	 * Packs groups of eight 3-bit deltas into three bytes, most significant
+	 * bit first. A final partial group uses only as many bytes as it needs.
+	 */
+	private int packDifferences(int pos, int count, int n) {
+		short previous = prior;
+		for (int i = 0; i < count; i += 8) {
+			int groupSize = Math.min(8, count - i);
+			int bits = 0;
+			for (int k = 0; k < groupSize; ++k) {
+				short value = values[pos + i + k];
+				int delta = (short)(value - previous);
+				int d = (delta < 0) ? 4 - delta : delta;
+				bits |= d << (21 - 3 * k);
+				previous = value;
+			}
+			int byteCount = (3 * groupSize + 7) / 8;
+			for (int k = 0; k < byteCount; ++k)
+				packed[n++] = (byte)(bits >>> (16 - 8 * k));
+		}
+		return n;
+	}
+}
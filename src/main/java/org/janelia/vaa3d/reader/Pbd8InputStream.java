@@ -24,9 +24,10 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package org.janelia.vaa3d.reader;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Decompresses a binary InputStream using Sean Murphy's fast PBD 
@@ -36,12 +37,20 @@ import java.nio.ByteBuffer;
  * Adapted from ImageLoader.cpp in Vaa3d project.
  * Used by V3dRawImageStream class.
  * 
+ * Each difference byte packs four 2-bit deltas. Rather than unpacking
+ * those bit by bit, the decoder looks up the running sums of all four
+ * deltas in a precomputed table. The same table lets <code>skip</code>
+ * pass over difference runs without producing their values.
+ * 
  * @author Christopher M. Bruns
  *
  */
 public class Pbd8InputStream extends PbdInputStream 
 {
-	private final byte mask = 0x0003;
+	// DIFFERENCE_SUMS[4*b + k] is the sum of the first k+1 deltas packed 
+	// into difference byte b.
+	private static final byte[] DIFFERENCE_SUMS = createDifferenceSums();
+	
 	private byte decompressionPrior = 0; // Value of locally canonical voxel
 	private byte repeatValue = 0; // Current repeat run value
 	// These differenceGroup values are global only because of the rare
@@ -53,6 +62,23 @@ public class Pbd8InputStream extends PbdInputStream
 	protected Pbd8InputStream(InputStream in) {
 		super(in);
 	}
+
+	protected Pbd8InputStream(InputStream in, int blockSize) {
+		super(in, blockSize);
+	}
+	
+	private static byte[] createDifferenceSums() {
+		byte[] sums = new byte[4 * 256];
+		for (int b = 0; b < 256; ++b) {
+			int sum = 0;
+			for (int k = 0; k < 4; ++k) {
+				int p = (b >>> (2 * k)) & 0x3;
+				sum += (p == 3 ? -1 : p);
+				sums[4 * b + k] = (byte)sum;
+			}
+		}
+		return sums;
+	}
 		
 	@Override
 	public int read(byte[] b, int off, int len) 
@@ -60,102 +86,193 @@ public class Pbd8InputStream extends PbdInputStream
 	{
 		if (len < 1) return 0;
 		
-		ByteBuffer out = ByteBuffer.wrap(b, off, len);
-		while (out.hasRemaining())
+		int pos = off;
+		int end = off + len;
+		while (pos < end)
 		{
 			if (state == State.STATE_BEGIN)
 			{
-				// Read one byte
-				int value = in.read(); // unsigned
-				assert(value >= 0);
-				if (value < 33) { // literal 0-32
-					state = State.STATE_LITERAL;
-					leftToFill = value + 1;
-				}
-				else if (value < 128) {
-					state = State.STATE_DIFFERENCE;
-					leftToFill = value - 32;
+				if (! startRun()) // end of stream
+					break;
+			}
+			else if (state == State.STATE_LITERAL)
+			{
+				int count = Math.min(leftToFill, end - pos);
+				readCompressedBytes(b, pos, count); // copy block
+				pos += count;
+				leftToFill -= count;
+				if (leftToFill < 1)
+					state = State.STATE_BEGIN;
+				decompressionPrior = b[pos - 1];
+			}
+			else if (state == State.STATE_DIFFERENCE)
+			{
+				// Whole groups of four deltas that fit in the output
+				int groupCount = Math.min(leftToFill, end - pos) / 4;
+				byte prior = decompressionPrior;
+				for (int g = 0; g < groupCount; ++g) {
+					if (blockPos >= blockLimit)
+						requireBlock();
+					int t = (block[blockPos++] & 0xff) << 2;
+					b[pos] = (byte)(prior + DIFFERENCE_SUMS[t]);
+					b[pos + 1] = (byte)(prior + DIFFERENCE_SUMS[t + 1]);
+					b[pos + 2] = (byte)(prior + DIFFERENCE_SUMS[t + 2]);
+					prior = (byte)(prior + DIFFERENCE_SUMS[t + 3]);
+					b[pos + 3] = prior;
+					pos += 4;
 				}
-				else { // Repeat 128-255
-					state = State.STATE_REPEAT;
-					leftToFill = value - 127;
-					repeatValue = (byte)in.read();
+				decompressionPrior = prior;
+				leftToFill -= 4 * groupCount;
+				
+				// At most one partial group remains
+				if ( (leftToFill > 0) && (pos < end) ) {
+					fillNumber = Math.min(leftToFill, 4);
+					unpackDifferenceGroup();
+					leftToFill -= fillNumber;
+					int count = Math.min(fillNumber, end - pos);
+					System.arraycopy(differenceGroup, 0, b, pos, count);
+					pos += count;
+					dgPos = count;
+					if (dgPos < fillNumber) {
+						// Ouch, output buffer ended in the middle of unpacking one byte
+						state = State.STATE_DIFFERENCE_SUBPIXEL;
+					}
 				}
+				if ( (state == State.STATE_DIFFERENCE) && (leftToFill < 1) )
+					state = State.STATE_BEGIN;
+			}
+			else if (state == State.STATE_DIFFERENCE_SUBPIXEL)
+			{
+				int count = Math.min(fillNumber - dgPos, end - pos);
+				System.arraycopy(differenceGroup, dgPos, b, pos, count);
+				dgPos += count;
+				pos += count;
+				if (dgPos >= fillNumber)
+					state = (leftToFill > 0) ? State.STATE_DIFFERENCE : State.STATE_BEGIN;
+			}
+			else if (state == State.STATE_REPEAT)
+			{
+				int repeatCount = Math.min(leftToFill, end - pos);
+				Arrays.fill(b, pos, pos + repeatCount, repeatValue);
+				pos += repeatCount;
+				leftToFill -= repeatCount;
+				if (leftToFill < 1)
+					state = State.STATE_BEGIN;
+				decompressionPrior = repeatValue;
+			}
+			else {
+				throw new IOException("Unexpected state");
+			}
+		}
+		
+		int bytesRead = pos - off;
+		if (bytesRead == 0)
+			return -1; // end of stream
+		return bytesRead;
+	}
+	
+	/**
+	 * Reads the header of the next run.
+	 * 
+	 * @return false at the end of the compressed stream
+	 */
+	private boolean startRun() 
+	throws IOException
+	{
+		// Read one byte
+		int value = readCompressedByte(); // unsigned
+		if (value < 0) // end of stream
+			return false;
+		if (value < 33) { // literal 0-32
+			state = State.STATE_LITERAL;
+			leftToFill = value + 1;
+		}
+		else if (value < 128) {
+			state = State.STATE_DIFFERENCE;
+			leftToFill = value - 32;
+		}
+		else { // Repeat 128-255
+			state = State.STATE_REPEAT;
+			leftToFill = value - 127;
+			if (blockPos >= blockLimit)
+				requireBlock();
+			repeatValue = block[blockPos++];
+		}
+		return true;
+	}
+	
+	/**
+	 * Skips decoded bytes by run arithmetic, without producing them.
+	 * 
+	 * Repeat runs are skipped without touching compressed data, literal
+	 * runs by skipping their compressed bytes, and difference runs by 
+	 * summing their deltas into the prior, one packed byte at a time.
+	 */
+	@Override
+	public long skip(long n) 
+	throws IOException
+	{
+		long remaining = n;
+		while (remaining > 0)
+		{
+			if (state == State.STATE_BEGIN)
+			{
+				if (! startRun()) // end of stream
+					break;
 			}
 			else if (state == State.STATE_LITERAL)
 			{
-				int numBytesToRead = Math.min(out.remaining(), leftToFill);
-				in.read(out.array(), off+out.position(), numBytesToRead); // copy block
-				out.position(out.position() + numBytesToRead);
-				leftToFill -= numBytesToRead;
-				if (leftToFill == 0) {
+				int count = (int)Math.min(leftToFill, remaining);
+				// Only the last skipped byte is needed, as the prior
+				skipCompressedBytes(count - 1);
+				int last = readCompressedByte();
+				if (last < 0)
+					throw new EOFException("Compressed stream ended inside a run");
+				decompressionPrior = (byte)last;
+				remaining -= count;
+				leftToFill -= count;
+				if (leftToFill < 1)
 					state = State.STATE_BEGIN;
-					leftToFill = 1;
-				}
-				decompressionPrior = out.get(out.position() - 1);
 			}
 			else if (state == State.STATE_DIFFERENCE)
 			{
-				while ( (leftToFill > 0) && out.hasRemaining() ) {
-	                fillNumber = (leftToFill < 4 ? leftToFill : 4);
-	                byte sourceChar = (byte)in.read();
-	                
-	                byte p0 = (byte)(sourceChar & mask);
-	                sourceChar >>>= 2;
-	                byte p1 = (byte)(sourceChar & mask);
-	                sourceChar >>>= 2;
-	                byte p2 = (byte)(sourceChar & mask);
-	                sourceChar >>>= 2;
-	                byte p3 = (byte)(sourceChar & mask);
-	                
-	                // Precompute the sequence of four possible difference 
-	                // bytes before trying to write them.
-	                byte[] pv = differenceGroup;
-	                pv[0] = (byte)((p0==3 ? -1:p0) + decompressionPrior);
-	                pv[1] = (byte)(pv[0]+(p1==3?-1:p1));
-	                pv[2] = (byte)((p2==3?-1:p2)+pv[1]);
-	                pv[3] = (byte)((p3==3?-1:p3)+pv[2]);
-	                dgPos = 0;
-	                
-	                while (dgPos < fillNumber) {
-	                		// multiple difference bytes might overflow OUT buffer
-	                		if (out.hasRemaining()) {
-	                			out.put(pv[dgPos++]);
-	                			leftToFill--;
-	                		} else {
-	                			// Ouch, output buffer ended in the middle of unpacking one byte
-	                			state = State.STATE_DIFFERENCE_SUBPIXEL;
-	                			break;
-	                		}
-	                }
-
-	                decompressionPrior = out.get(out.position() - 1);
+				int groupCount = (int)(Math.min(leftToFill, remaining) / 4);
+				byte prior = decompressionPrior;
+				for (int g = 0; g < groupCount; ++g) {
+					if (blockPos >= blockLimit)
+						requireBlock();
+					prior = (byte)(prior + DIFFERENCE_SUMS[((block[blockPos++] & 0xff) << 2) + 3]);
 				}
-				if (leftToFill < 1)
+				decompressionPrior = prior;
+				leftToFill -= 4 * groupCount;
+				remaining -= 4 * groupCount;
+				
+				// At most one partial group remains
+				if ( (leftToFill > 0) && (remaining > 0) ) {
+					fillNumber = Math.min(leftToFill, 4);
+					unpackDifferenceGroup();
+					leftToFill -= fillNumber;
+					dgPos = (int)Math.min(fillNumber, remaining);
+					remaining -= dgPos;
+					if (dgPos < fillNumber)
+						state = State.STATE_DIFFERENCE_SUBPIXEL;
+				}
+				if ( (state == State.STATE_DIFFERENCE) && (leftToFill < 1) )
 					state = State.STATE_BEGIN;
 			}
 			else if (state == State.STATE_DIFFERENCE_SUBPIXEL)
 			{
-				state = State.STATE_DIFFERENCE; // Initially assume we will return to DIFFERENCE_STATE
-                byte[] pv = differenceGroup;
-                while (dgPos < fillNumber) {
-                		// multiple difference bytes might overflow OUT buffer
-                		if (out.hasRemaining()) {
-                			out.put(pv[dgPos++]);
-                			leftToFill--;
-                		} else {
-                			// Ouch, output buffer ended in the middle of unpacking one byte AGAIN
-                			state = State.STATE_DIFFERENCE_SUBPIXEL;
-                			break;
-                		}
-                }
+				int count = (int)Math.min(fillNumber - dgPos, remaining);
+				dgPos += count;
+				remaining -= count;
+				if (dgPos >= fillNumber)
+					state = (leftToFill > 0) ? State.STATE_DIFFERENCE : State.STATE_BEGIN;
 			}
 			else if (state == State.STATE_REPEAT)
 			{
-				int repeatCount = Math.min(leftToFill, out.remaining());
-				for (int j = 0; j < repeatCount; ++j)
-					out.put(repeatValue);
-				leftToFill -= repeatCount;
+				int count = (int)Math.min(leftToFill, remaining);
+				remaining -= count;
+				leftToFill -= count;
 				if (leftToFill < 1)
 					state = State.STATE_BEGIN;
 				decompressionPrior = repeatValue;
@@ -164,6 +281,43 @@ public class Pbd8InputStream extends PbdInputStream
 				throw new IOException("Unexpected state");
 			}
 		}
-		return out.position();
+		return n - Math.max(remaining, 0);
+	}
+	
+	/**
+	 * Unpacks the first <code>fillNumber</code> deltas of the next 
+	 * difference byte into differenceGroup.
+	 */
+	private void unpackDifferenceGroup() 
+	throws IOException
+	{
+		if (blockPos >= blockLimit)
+			requireBlock();
+		int t = (block[blockPos++] & 0xff) << 2;
+		for (int k = 0; k < fillNumber; ++k)
+			differenceGroup[k] = (byte)(decompressionPrior + DIFFERENCE_SUMS[t + k]);
+		decompressionPrior = differenceGroup[fillNumber - 1];
+	}
+	
+	@Override
+	public Checkpoint getCheckpoint() {
+		int[] pending = new int[0];
+		if (state == State.STATE_DIFFERENCE_SUBPIXEL) {
+			pending = new int[fillNumber - dgPos];
+			for (int i = 0; i < pending.length; ++i)
+				pending[i] = differenceGroup[dgPos + i];
+		}
+		return createCheckpoint(decompressionPrior, repeatValue, pending);
+	}
+	
+	@Override
+	public void restoreCheckpoint(Checkpoint checkpoint) {
+		restoreRunState(checkpoint);
+		decompressionPrior = (byte)checkpoint.prior;
+		repeatValue = (byte)checkpoint.repeatValue;
+		fillNumber = checkpoint.pending.length;
+		dgPos = 0;
+		for (int i = 0; i < fillNumber; ++i)
+			differenceGroup[i] = (byte)checkpoint.pending[i];
 	}
 }
@@ -0,0 +1,168 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.OutputStream;
+
+/**
+ * Compresses 8-bit voxel data with Sean Murphy's fast PBD pack-bits plus 
+ * difference encoding, in the form read by Pbd8InputStream.
+ * 
+ * Runs are chosen greedily: a repeat run wherever a value repeats a few 
+ * times, a difference run wherever successive values change by -1 to 2, 
+ * and literal runs for everything else.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class Pbd8OutputStream extends PbdOutputStream 
+{
+	private static final int MAX_LITERAL = 33; // codes 0-32
+	private static final int MAX_DIFFERENCE = 95; // codes 33-127
+	private static final int MAX_REPEAT = 128; // codes 128-255
+	// Shortest runs worth starting, by encoded size
+	private static final int MIN_REPEAT = 3;
+	private static final int MIN_DIFFERENCE = 4;
+	// Equal values inside a difference run cost a quarter byte each;
+	// only this many are worth ending the difference run for.
+	private static final int DIFFERENCE_REPEAT_CUT = 16;
+	
+	private byte prior = 0;
+	
+	public Pbd8OutputStream(OutputStream out) {
+		this(out, DEFAULT_BLOCK_SIZE);
+	}
+	
+	public Pbd8OutputStream(OutputStream out, int blockSize) {
+		// worst case is all literal runs
+		super(out, blockSize, blockSize + (blockSize + MAX_LITERAL - 1) / MAX_LITERAL);
+	}
+	
+	@Override
+	void setPrior(int prior) {
+		this.prior = (byte)prior;
+	}
+	
+	@Override
+	protected int getPixelBytes() {
+		return 1;
+	}
+	
+	@Override
+	protected int encode(byte[] b, int off, int len) {
+		int pos = off;
+		int end = off + len;
+		int n = 0;
+		while (pos < end) {
+			int count = repeatLength(b, pos, end, MAX_REPEAT);
+			if (count >= MIN_REPEAT) {
+				packed[n++] = (byte)(127 + count);
+				packed[n++] = b[pos];
+			}
+			else {
+				count = differenceLength(b, pos, end, prior, MAX_DIFFERENCE);
+				if (count >= MIN_DIFFERENCE) {
+					packed[n++] = (byte)(32 + count);
+					n = packDifferences(b, pos, count, n);
+				}
+				else {
+					count = literalLength(b, pos, end);
+					packed[n++] = (byte)(count - 1);
+					System.arraycopy(b, pos, packed, n, count);
+					n += count;
+				}
+			}
+			pos += count;
+			prior = b[pos - 1];
+		}
+		return n;
+	}
+	
+	private static int repeatLength(byte[] b, int pos, int end, int limit) {
+		byte value = b[pos];
+		int k = pos + 1;
+		int stop = Math.min(end, pos + limit);
+		while ( (k < stop) && (b[k] == value) )
+			++k;
+		return k - pos;
+	}
+	
+	/**
+	 * Number of voxels from <code>pos</code> whose deltas fit in two bits,
+	 * stopping short of any long stretch of equal values.
+	 */
+	private static int differenceLength(byte[] b, int pos, int end, byte prior, int limit) {
+		int stop = Math.min(end, pos + limit);
+		int previous = prior;
+		int equalStart = pos;
+		int k = pos;
+		while (k < stop) {
+			int delta = (b[k] - previous) & 0xff;
+			if ( (delta > 2) && (delta != 0xff) )
+				break;
+			if ( (k == pos) || (b[k] != b[k - 1]) )
+				equalStart = k;
+			else if ( (k + 1 - equalStart >= DIFFERENCE_REPEAT_CUT) && (equalStart > pos) )
+				return equalStart - pos;
+			previous = b[k];
+			++k;
+		}
+		return k - pos;
+	}
+	
+	/**
+	 * Number of voxels from <code>pos</code> to copy verbatim, ending where
+	 * a repeat or difference run could begin.
+	 */
+	private static int literalLength(byte[] b, int pos, int end) {
+		int stop = Math.min(end, pos + MAX_LITERAL);
+		int k = pos + 1;
+		while (k < stop) {
+			if (repeatLength(b, k, end, MIN_REPEAT) >= MIN_REPEAT)
+				break;
+			if (differenceLength(b, k, end, b[k - 1], MIN_DIFFERENCE) >= MIN_DIFFERENCE)
+				break;
+			++k;
+		}
+		return k - pos;
+	}
+	
+	/**
+	 * Packs four 2-bit deltas per byte, first delta in the lowest bits.
+	 */
+	private int packDifferences(byte[] b, int pos, int count, int n) {
+		int previous = prior;
+		for (int i = 0; i < count; i += 4) {
+			int bits = 0;
+			for (int k = 0; (k < 4) && (i + k < count); ++k) {
+				int value = b[pos + i + k];
+				bits |= ((value - previous) & 0x3) << (2 * k);
+				previous = value;
+			}
+			packed[n++] = (byte)bits;
+		}
+		return n;
+	}
+}
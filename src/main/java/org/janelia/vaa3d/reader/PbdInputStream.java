@@ -24,6 +24,9 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package org.janelia.vaa3d.reader;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,10 +38,20 @@ import java.io.InputStream;
  * input stream.  But only after the 43-byte header section has already been
  * read from the stream.
  * 
+ * Compressed input is pulled from the underlying stream in large blocks,
+ * so decoders never issue one read call per compressed byte.
+ * 
+ * <code>skip</code> counts uncompressed bytes, like <code>read</code>.
+ * 
+ * A PBD stream cannot be entered at an arbitrary compressed offset, 
+ * because a slice may begin inside a run. <code>getCheckpoint</code>
+ * records everything needed to resume decoding at the current point, and
+ * <code>restoreCheckpoint</code> resumes from such a record.
+ * 
  * @author Christopher M. Bruns
  *
  */
-public class PbdInputStream extends FilterInputStream 
+public abstract class PbdInputStream extends FilterInputStream 
 {
 	/**
 	 * Finite state representation of the current decompressor state
@@ -55,6 +68,15 @@ public class PbdInputStream extends FilterInputStream
 	}
 	protected State state = State.STATE_BEGIN;
 	protected int leftToFill = 0; // How many bytes left in the current run
+	private byte[] singleByte = new byte[1]; // reused by the one-byte read()
+	
+	public static final int DEFAULT_BLOCK_SIZE = 65536;
+	// Block of compressed input not yet consumed by the decoder
+	protected byte[] block;
+	protected int blockPos = 0; // next unread position in block
+	protected int blockLimit = 0; // number of valid bytes in block
+	// Compressed stream offset of block[0]
+	private long blockStart = 0;
 
 	/** 
 	 * Protected constructor to encourage use of createPbdInputStream factory.
@@ -62,7 +84,17 @@ public class PbdInputStream extends FilterInputStream
 	 * @param in compressed input stream.
 	 */
 	protected PbdInputStream(InputStream in) {
+		this(in, DEFAULT_BLOCK_SIZE);
+	}
+
+	/** 
+	 * @param in compressed input stream.
+	 * @param blockSize number of compressed bytes to request from 
+	 * <code>in</code> at a time.
+	 */
+	protected PbdInputStream(InputStream in, int blockSize) {
 		super(in);
+		block = new byte[blockSize];
 	}
 
 	@Override
@@ -77,15 +109,36 @@ public class PbdInputStream extends FilterInputStream
 	public int read() 
 	throws IOException
 	{
-		byte[] b = new byte[1];
 		try {
-			read(b, 0, 1);
-			return b[0] & 0xff;
+			if (read(singleByte, 0, 1) < 1)
+				return -1;
+			return singleByte[0] & 0xff;
 		} catch (IOException exc) {
 			return -1;
 		}
 	}
 	
+	/**
+	 * Skips decoded bytes, not compressed ones as FilterInputStream would.
+	 * 
+	 * This fallback decodes into a scratch buffer; subclasses override
+	 * it to skip by run arithmetic.
+	 */
+	@Override
+	public long skip(long n) 
+	throws IOException
+	{
+		byte[] scratch = new byte[(int)Math.min(Math.max(n, 1), 8192)];
+		long remaining = n;
+		while (remaining > 0) {
+			int count = read(scratch, 0, (int)Math.min(remaining, scratch.length));
+			if (count < 0)
+				break;
+			remaining -= count;
+		}
+		return n - Math.max(remaining, 0);
+	}
+	
 	@Override
 	public int read(byte[] b) 
 	throws IOException
@@ -94,10 +147,225 @@ public class PbdInputStream extends FilterInputStream
 	}
 	
 	
+	/**
+	 * Reads one byte of compressed input.
+	 * 
+	 * @return unsigned byte value, or -1 at the end of the compressed stream
+	 * @throws IOException
+	 */
+	protected int readCompressedByte() 
+	throws IOException
+	{
+		if ( (blockPos >= blockLimit) && !fillBlock() )
+			return -1;
+		return block[blockPos++] & 0xff;
+	}
+	
+	/**
+	 * Reads exactly <code>len</code> bytes of compressed input, 
+	 * even if the underlying stream delivers them in several pieces.
+	 * 
+	 * @throws EOFException if the compressed stream ends first
+	 */
+	protected void readCompressedBytes(byte[] b, int off, int len) 
+	throws IOException
+	{
+		while (len > 0) {
+			if (blockPos >= blockLimit)
+				requireBlock();
+			int count = Math.min(len, blockLimit - blockPos);
+			System.arraycopy(block, blockPos, b, off, count);
+			blockPos += count;
+			off += count;
+			len -= count;
+		}
+	}
+	
+	/**
+	 * Discards exactly <code>n</code> bytes of compressed input, skipping
+	 * them in the underlying stream where they are not yet buffered.
+	 * 
+	 * @throws EOFException if the compressed stream ends first
+	 */
+	protected void skipCompressedBytes(long n) 
+	throws IOException
+	{
+		int buffered = (int)Math.min(n, blockLimit - blockPos);
+		blockPos += buffered;
+		n -= buffered;
+		if (n < 1)
+			return;
+		// Drop the whole block; fillBlock resumes after the skipped bytes
+		blockStart += blockLimit + n;
+		blockPos = 0;
+		blockLimit = 0;
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped > 0)
+				n -= skipped;
+			else if (in.read() >= 0) // skip() may stall before the end
+				n -= 1;
+			else
+				throw new EOFException("Compressed stream ended inside a run");
+		}
+	}
+	
+	/**
+	 * Replaces the consumed compressed block with the next one.
+	 * 
+	 * @return false at the end of the compressed stream
+	 * @throws IOException
+	 */
+	protected boolean fillBlock() 
+	throws IOException
+	{
+		int count = 0;
+		while (count == 0)
+			count = in.read(block, 0, block.length);
+		if (count < 0)
+			return false;
+		blockStart += blockLimit;
+		blockPos = 0;
+		blockLimit = count;
+		return true;
+	}
+	
+	/**
+	 * Like fillBlock, for use where a run requires more compressed data.
+	 * 
+	 * @throws EOFException if the compressed stream ends first
+	 */
+	protected void requireBlock() 
+	throws IOException
+	{
+		if (! fillBlock())
+			throw new EOFException("Compressed stream ended inside a run");
+	}
+	
+	/**
+	 * 
+	 * @return number of compressed bytes consumed by the decoder so far,
+	 * counted from the start of the stream it was created with.
+	 */
+	public long getCompressedPosition() {
+		return blockStart + blockPos;
+	}
+	
+	/**
+	 * Records the decoder state at the current point in the uncompressed 
+	 * stream.
+	 * 
+	 * @throws IllegalStateException if the current point falls inside
+	 * a single multi-byte voxel
+	 */
+	public abstract Checkpoint getCheckpoint();
+	
+	/**
+	 * Resumes decoding from an earlier checkpoint.
+	 * 
+	 * The underlying stream must already be positioned at 
+	 * <code>checkpoint.getCompressedOffset()</code>, and nothing may have 
+	 * been read yet from this decoder.
+	 */
+	public abstract void restoreCheckpoint(Checkpoint checkpoint);
+	
+	/**
+	 * Base-class part of getCheckpoint: the run state and stream offset.
+	 * 
+	 * @param prior value of the last decoded voxel
+	 * @param repeatValue value of the current repeat run
+	 * @param pending unpacked difference values not yet delivered
+	 */
+	protected Checkpoint createCheckpoint(int prior, int repeatValue, int[] pending) {
+		return new Checkpoint(getCompressedPosition(), state, leftToFill, 
+				prior, repeatValue, pending);
+	}
+	
+	/**
+	 * Base-class part of restoreCheckpoint: the run state and stream offset.
+	 */
+	protected void restoreRunState(Checkpoint checkpoint) {
+		state = checkpoint.state;
+		leftToFill = checkpoint.leftToFill;
+		blockStart = checkpoint.compressedOffset;
+		blockPos = 0;
+		blockLimit = 0;
+	}
+	
 	@Override
 	public void reset() 
 	throws IOException
 	{
 		throw new IOException();
 	}
+	
+	/**
+	 * Everything needed to resume PBD decoding at one point of the 
+	 * uncompressed stream.
+	 * 
+	 * Checkpoints can be written to and read back from a binary stream,
+	 * so they can be saved in a small index file.
+	 * 
+	 * @author Christopher M. Bruns
+	 *
+	 */
+	public static final class Checkpoint 
+	{
+		final long compressedOffset;
+		final State state;
+		final int leftToFill;
+		final int prior;
+		final int repeatValue;
+		final int[] pending;
+		
+		Checkpoint(long compressedOffset, State state, int leftToFill,
+				int prior, int repeatValue, int[] pending) 
+		{
+			this.compressedOffset = compressedOffset;
+			this.state = state;
+			this.leftToFill = leftToFill;
+			this.prior = prior;
+			this.repeatValue = repeatValue;
+			this.pending = pending;
+		}
+		
+		/**
+		 * 
+		 * @return offset in the compressed data where decoding resumes,
+		 * not counting the file header.
+		 */
+		public long getCompressedOffset() {
+			return compressedOffset;
+		}
+		
+		public void write(DataOutput out) 
+		throws IOException
+		{
+			out.writeLong(compressedOffset);
+			out.writeByte(state.ordinal());
+			out.writeInt(leftToFill);
+			out.writeInt(prior);
+			out.writeInt(repeatValue);
+			out.writeByte(pending.length);
+			for (int value : pending)
+				out.writeInt(value);
+		}
+		
+		public static Checkpoint read(DataInput in) 
+		throws IOException
+		{
+			long compressedOffset = in.readLong();
+			int stateIndex = in.readUnsignedByte();
+			if (stateIndex >= State.values().length)
+				throw new IOException("Corrupt PBD checkpoint");
+			int leftToFill = in.readInt();
+			int prior = in.readInt();
+			int repeatValue = in.readInt();
+			int[] pending = new int[in.readUnsignedByte()];
+			for (int i = 0; i < pending.length; ++i)
+				pending[i] = in.readInt();
+			return new Checkpoint(compressedOffset, State.values()[stateIndex],
+					leftToFill, prior, repeatValue, pending);
+		}
+	}
 }
@@ -0,0 +1,143 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base class for Pbd8OutputStream and Pbd16OutputStream.
+ * 
+ * Converts an uncompressed v3draw data stream to a compressed v3dpbd 
+ * data stream, readable by Pbd8InputStream and Pbd16InputStream. The 
+ * 43-byte header is not part of the compressed stream; write it first 
+ * with <code>V3dRawImageStream.writeHeader</code>.
+ * 
+ * Uncompressed bytes are collected into blocks, and each block is encoded
+ * as a whole, so runs can be chosen with some look-ahead. Runs never
+ * span two blocks.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public abstract class PbdOutputStream extends FilterOutputStream 
+{
+	public static final int DEFAULT_BLOCK_SIZE = 65536;
+	
+	// Uncompressed bytes not yet encoded
+	private byte[] block;
+	private int blockLimit = 0;
+	// Compressed bytes of one encoded block
+	protected byte[] packed;
+	private byte[] singleByte = new byte[1]; // reused by the one-byte write()
+	
+	protected PbdOutputStream(OutputStream out, int blockSize, int maxPackedSize) {
+		super(out);
+		block = new byte[blockSize];
+		packed = new byte[maxPackedSize];
+	}
+	
+	/**
+	 * Sets the value of the voxel just before the first one written, 
+	 * for streams that continue a longer compressed stream.
+	 * The first difference run is encoded relative to this value.
+	 */
+	abstract void setPrior(int prior);
+	
+	/**
+	 * Encodes uncompressed bytes into the <code>packed</code> array.
+	 * 
+	 * @return number of compressed bytes in <code>packed</code>
+	 */
+	protected abstract int encode(byte[] b, int off, int len);
+	
+	/**
+	 * 
+	 * @return number of bytes per voxel; only whole voxels are encoded.
+	 */
+	protected abstract int getPixelBytes();
+	
+	@Override
+	public void write(int b) 
+	throws IOException
+	{
+		singleByte[0] = (byte)b;
+		write(singleByte, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) 
+	throws IOException
+	{
+		while (len > 0) {
+			int count = Math.min(len, block.length - blockLimit);
+			System.arraycopy(b, off, block, blockLimit, count);
+			blockLimit += count;
+			off += count;
+			len -= count;
+			if (blockLimit == block.length)
+				encodeBlock();
+		}
+	}
+	
+	/**
+	 * Encodes and writes all complete voxels collected so far.
+	 */
+	private void encodeBlock() 
+	throws IOException
+	{
+		int voxelBytes = blockLimit - (blockLimit % getPixelBytes());
+		if (voxelBytes == 0)
+			return;
+		int count = encode(block, 0, voxelBytes);
+		out.write(packed, 0, count);
+		// keep the first half of a split voxel
+		System.arraycopy(block, voxelBytes, block, 0, blockLimit - voxelBytes);
+		blockLimit -= voxelBytes;
+	}
+	
+	@Override
+	public void flush() 
+	throws IOException
+	{
+		encodeBlock();
+		out.flush();
+	}
+	
+	@Override
+	public void close() 
+	throws IOException
+	{
+		try {
+			flush();
+			if (blockLimit > 0)
+				throw new IOException("Stream closed part way through a voxel");
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Index of decoder checkpoints at every slice boundary of a v3dpbd file.
+ * 
+ * Building the index costs one sequential pass over the file. The index 
+ * is kept in a small sidecar file next to the volume, named by appending
+ * ".idx" to the volume file name. Afterwards V3dRawImageStream can 
+ * resume decoding at the start of any slice.
+ * 
+ * A sidecar is only used while the volume's length, modification time 
+ * and a checksum of its first and last compressed bytes are unchanged, 
+ * so a file re-encoded in place is not decoded with stale checkpoints.
+ * 
+ * Usage from the command line:
+ * <pre>
+ * java org.janelia.vaa3d.reader.PbdSliceIndex volume1.v3dpbd [volume2.v3dpbd ...]
+ * </pre>
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class PbdSliceIndex 
+{
+	public static final String SIDECAR_EXTENSION = ".idx";
+	private static final String MAGIC = "v3dpbd_slice_index";
+	private static final int VERSION = 2;
+	// Bytes checksummed at each end of the volume
+	private static final int FINGERPRINT_BYTES = 65536;
+	
+	// Identity of the indexed volume, to detect stale sidecar files
+	private final long fileLength;
+	private final long lastModified;
+	private final long fingerprint;
+	private final int pixelBytes;
+	private final int[] dimensions;
+	// One checkpoint at the start of each slice, in file order
+	private final PbdInputStream.Checkpoint[] checkpoints;
+	
+	private PbdSliceIndex(long fileLength, long lastModified, long fingerprint,
+			int pixelBytes, int[] dimensions, PbdInputStream.Checkpoint[] checkpoints) 
+	{
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.fingerprint = fingerprint;
+		this.pixelBytes = pixelBytes;
+		this.dimensions = dimensions;
+		this.checkpoints = checkpoints;
+	}
+	
+	/**
+	 * Decodes a whole v3dpbd file once, recording a checkpoint at the 
+	 * start of every slice.
+	 * 
+	 * @param pbdFile compressed v3dpbd volume
+	 * @return new index; not yet saved
+	 * @throws IOException
+	 */
+	public static PbdSliceIndex build(File pbdFile) 
+	throws IOException
+	{
+		// Identify the file before reading it, so a change during indexing
+		// makes the index stale rather than wrong
+		long fileLength = pbdFile.length();
+		long lastModified = pbdFile.lastModified();
+		long fingerprint = fingerprint(pbdFile);
+		V3dRawImageStream stream = new V3dRawImageStream(pbdFile);
+		try {
+			if (stream.getFormat() != V3dRawImageStream.Format.FORMAT_MURPHY_PBD)
+				throw new IOException("Not a v3dpbd file: " + pbdFile);
+			if (stream.isGzipped())
+				throw new IOException("Cannot index a gzip-compressed file: " + pbdFile);
+			PbdInputStream decoder = (PbdInputStream)stream.getDataInputStream();
+			int[] dimensions = new int[4];
+			for (int d = 0; d < 4; ++d)
+				dimensions[d] = stream.getDimension(d);
+			int sliceCount = dimensions[2] * dimensions[3];
+			long sliceByteCount = stream.getSliceByteCount();
+			PbdInputStream.Checkpoint[] checkpoints = new PbdInputStream.Checkpoint[sliceCount];
+			for (int s = 0; s < sliceCount; ++s) {
+				checkpoints[s] = decoder.getCheckpoint();
+				// Skipping tracks the run state without producing voxels
+				if (decoder.skip(sliceByteCount) < sliceByteCount)
+					throw new EOFException("v3dpbd file is truncated: " + pbdFile);
+			}
+			return new PbdSliceIndex(fileLength, lastModified, fingerprint, 
+					stream.getPixelBytes(), dimensions, checkpoints);
+		}
+		finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return name of the sidecar index file for a v3dpbd file
+	 */
+	public static File getSidecarFile(File pbdFile) {
+		return new File(pbdFile.getPath() + SIDECAR_EXTENSION);
+	}
+	
+	/**
+	 * Loads the sidecar index of a v3dpbd file, if there is a current one.
+	 * 
+	 * @return null if there is no sidecar file, or if it does not match 
+	 * the volume.
+	 */
+	public static PbdSliceIndex loadSidecar(File pbdFile) {
+		File sidecar = getSidecarFile(pbdFile);
+		if (! sidecar.isFile())
+			return null;
+		try {
+			InputStream is = new FileInputStream(sidecar);
+			try {
+				PbdSliceIndex index = read(is);
+				if ( (index.fileLength != pbdFile.length())
+						|| (index.lastModified != pbdFile.lastModified())
+						|| (index.fingerprint != fingerprint(pbdFile)) )
+					return null; // volume changed since indexing
+				return index;
+			}
+			finally {
+				is.close();
+			}
+		}
+		catch (IOException exc) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Builds and saves the sidecar index of a v3dpbd file.
+	 * 
+	 * @return the new index
+	 * @throws IOException
+	 */
+	public static PbdSliceIndex createSidecar(File pbdFile) 
+	throws IOException
+	{
+		PbdSliceIndex index = build(pbdFile);
+		index.save(getSidecarFile(pbdFile));
+		return index;
+	}
+	
+	/**
+	 * Builds the index of a v3dpbd file, and keeps it as a sidecar when
+	 * the file's directory is writable, so that opening the volume again 
+	 * does not repeat the pass over the whole file.
+	 * 
+	 * Failing to write the sidecar is not an error; the index is still
+	 * returned.
+	 * 
+	 * @return the new index
+	 * @throws IOException if the volume cannot be indexed
+	 */
+	public static PbdSliceIndex buildAndSave(File pbdFile) 
+	throws IOException
+	{
+		PbdSliceIndex index = build(pbdFile);
+		File sidecar = getSidecarFile(pbdFile);
+		File directory = sidecar.getAbsoluteFile().getParentFile();
+		if ( (directory != null) && directory.canWrite() ) {
+			try {
+				index.save(sidecar);
+			}
+			catch (IOException exc) {
+				sidecar.delete(); // do not leave a partial index behind
+			}
+		}
+		return index;
+	}
+	
+	private void save(File sidecar) 
+	throws IOException
+	{
+		FileOutputStream os = new FileOutputStream(sidecar);
+		try {
+			write(os);
+		}
+		finally {
+			os.close();
+		}
+	}
+	
+	/**
+	 * Checksums the first and last compressed bytes of a file, which
+	 * change whenever the volume is re-encoded.
+	 */
+	private static long fingerprint(File pbdFile) 
+	throws IOException
+	{
+		FileChannel channel = FileChannel.open(pbdFile.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(size, FINGERPRINT_BYTES));
+			CRC32 crc = new CRC32();
+			for (long position : new long[] {0, size - buffer.capacity()}) {
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0)
+						throw new EOFException("v3dpbd file changed while reading: " + pbdFile);
+				}
+				crc.update(buffer.array(), 0, buffer.capacity());
+			}
+			return crc.getValue();
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	public static PbdSliceIndex read(InputStream is) 
+	throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		if (! MAGIC.equals(in.readUTF()))
+			throw new IOException("Not a v3dpbd slice index");
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported v3dpbd slice index version " + version);
+		long fileLength = in.readLong();
+		long lastModified = in.readLong();
+		long fingerprint = in.readLong();
+		int pixelBytes = in.readInt();
+		int[] dimensions = new int[4];
+		for (int d = 0; d < 4; ++d)
+			dimensions[d] = in.readInt();
+		int sliceCount = in.readInt();
+		if (sliceCount != dimensions[2] * dimensions[3])
+			throw new IOException("Corrupt v3dpbd slice index");
+		PbdInputStream.Checkpoint[] checkpoints = new PbdInputStream.Checkpoint[sliceCount];
+		for (int s = 0; s < sliceCount; ++s)
+			checkpoints[s] = PbdInputStream.Checkpoint.read(in);
+		return new PbdSliceIndex(fileLength, lastModified, fingerprint, 
+				pixelBytes, dimensions, checkpoints);
+	}
+	
+	public void write(OutputStream os) 
+	throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeUTF(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(fileLength);
+		out.writeLong(lastModified);
+		out.writeLong(fingerprint);
+		out.writeInt(pixelBytes);
+		for (int dim : dimensions)
+			out.writeInt(dim);
+		out.writeInt(checkpoints.length);
+		for (PbdInputStream.Checkpoint checkpoint : checkpoints)
+			checkpoint.write(out);
+		out.flush();
+	}
+	
+	/**
+	 * 
+	 * @return true if this index describes a volume of the same shape
+	 */
+	boolean matches(V3dRawImageStream stream) {
+		if (stream.getPixelBytes() != pixelBytes)
+			return false;
+		for (int d = 0; d < 4; ++d) {
+			if (stream.getDimension(d) != dimensions[d])
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @param sliceIndex zero-based slice index, in file order
+	 * @return decoder checkpoint at the start of that slice
+	 */
+	public PbdInputStream.Checkpoint getCheckpoint(long sliceIndex) {
+		return checkpoints[(int)sliceIndex];
+	}
+	
+	/**
+	 * 
+	 * @return number of slices indexed, including all color channels
+	 */
+	public int getSliceCount() {
+		return checkpoints.length;
+	}
+	
+	/**
+	 * Writes sidecar index files for each v3dpbd file named on the 
+	 * command line.
+	 */
+	public static void main(String[] args) {
+		int failures = 0;
+		for (String fileName : args) {
+			File pbdFile = new File(fileName);
+			try {
+				long start = System.currentTimeMillis();
+				PbdSliceIndex index = createSidecar(pbdFile);
+				System.out.println(getSidecarFile(pbdFile) + ": " 
+						+ index.getSliceCount() + " slices indexed in " 
+						+ (System.currentTimeMillis() - start) + " ms");
+			}
+			catch (IOException exc) {
+				System.err.println(fileName + ": " + exc.getMessage());
+				++failures;
+			}
+		}
+		if (failures > 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,190 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads and decodes the remaining slices of a V3dRawImageStream on a 
+ * background thread, up to <code>depth</code> slices ahead of the caller.
+ * 
+ * Ownership of each slice buffer passes explicitly between the two 
+ * threads. <code>take</code> hands the next slice to the caller, who owns
+ * it, and may keep reading it, until passing it back with 
+ * <code>release</code>. Only released buffers are refilled. A caller may
+ * hold several slices at once; the background thread simply waits when 
+ * every buffer is taken.
+ * 
+ * While a prefetcher is open, its stream must not be read directly; 
+ * reading methods of the stream throw IllegalStateException if called 
+ * from any thread but the prefetching one. Close the prefetcher to 
+ * regain direct use of the stream, which then continues after the last 
+ * slice decoded.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class SlicePrefetcher implements Closeable 
+{
+	// Queue entries that are not slices
+	private static final Object END_OF_VOLUME = new Object();
+	private static final Object STOP = new Object();
+	
+	private final V3dRawImageStream sliceStream;
+	private final long sliceCount;
+	// Empty buffers, and STOP when closing
+	private final BlockingQueue<Object> free;
+	// Decoded slices in order, then END_OF_VOLUME or the failure
+	private final BlockingQueue<Object> ready;
+	private final Thread thread;
+	private boolean closed = false;
+	
+	/**
+	 * Starts decoding on a background thread.
+	 * 
+	 * @param sliceStream stream positioned at the first slice to deliver
+	 * @param depth number of slices to decode ahead of the caller
+	 */
+	public SlicePrefetcher(V3dRawImageStream sliceStream, int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("Prefetch depth must be positive");
+		this.sliceStream = sliceStream;
+		sliceCount = (long)sliceStream.getDimension(2) * sliceStream.getDimension(3);
+		// One buffer for the caller, plus the slices decoded ahead
+		free = new ArrayBlockingQueue<Object>(depth + 2);
+		for (int i = 0; i <= depth; ++i)
+			free.add(sliceStream.createSlice());
+		ready = new ArrayBlockingQueue<Object>(depth + 2);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				decodeSlices();
+			}
+		}, "Vaa3d slice prefetch");
+		thread.setDaemon(true);
+		sliceStream.setPrefetchThread(thread);
+		thread.start();
+	}
+	
+	private void decodeSlices() {
+		Object last = END_OF_VOLUME;
+		try {
+			while (sliceStream.getNextSliceIndex() < sliceCount) {
+				Object buffer = free.take();
+				if (buffer == STOP)
+					return;
+				V3dRawImageStream.Slice slice = (V3dRawImageStream.Slice)buffer;
+				sliceStream.loadNextSlice(slice);
+				ready.put(slice);
+			}
+		}
+		catch (InterruptedException exc) {
+			return;
+		}
+		catch (Throwable exc) {
+			last = exc;
+		}
+		ready.add(last);
+	}
+	
+	/**
+	 * Waits for the next slice, and hands it to the caller.
+	 * 
+	 * The slice stays valid, and is never written to by the prefetcher, 
+	 * until it is passed to <code>release</code>.
+	 * 
+	 * @return next slice in file order, or null after the last one
+	 * @throws IOException if reading or decoding failed
+	 */
+	public V3dRawImageStream.Slice take() 
+	throws IOException
+	{
+		if (closed)
+			throw new IllegalStateException("Slice prefetcher is closed");
+		Object item;
+		try {
+			item = ready.take();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a slice");
+		}
+		if (item instanceof V3dRawImageStream.Slice)
+			return (V3dRawImageStream.Slice)item;
+		ready.add(item); // later calls see the same ending
+		if (item == END_OF_VOLUME)
+			return null;
+		Throwable failure = (Throwable)item;
+		if (failure instanceof IOException)
+			throw new IOException(failure.getMessage(), failure);
+		throw new IOException("Slice prefetch failed", failure);
+	}
+	
+	/**
+	 * Returns a slice obtained from <code>take</code>, so its buffer can
+	 * be refilled. The caller must not use the slice afterwards.
+	 */
+	public void release(V3dRawImageStream.Slice slice) {
+		if (closed)
+			return;
+		if (! free.offer(slice))
+			throw new IllegalStateException("More slices released than were taken");
+	}
+	
+	/**
+	 * Stops decoding and returns the stream to direct use.
+	 * 
+	 * Waits for the background thread to finish the slice it is 
+	 * decoding; it is not interrupted, because interrupting a thread 
+	 * blocked on a FileChannel would close the file.
+	 */
+	@Override
+	public void close() 
+	throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		free.clear();
+		free.add(STOP);
+		ready.clear(); // decoded slices nobody will take
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException exc) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		sliceStream.setPrefetchThread(null);
+	}
+}
@@ -0,0 +1,254 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Immutable metadata from the 43-byte header of a v3draw or v3dpbd file.
+ * 
+ * <code>probe</code> reads only the header, so it is cheap enough for 
+ * listing large archives: no slice buffer, decoder or stream is created.
+ * A gzip-wrapped volume is probed by inflating just enough of its first 
+ * member to recover the header.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public final class V3dRawHeader 
+{
+	private final V3dRawImageStream.Format format;
+	private final ByteOrder byteOrder;
+	private final int pixelBytes;
+	private final int[] dimensions;
+	private final boolean gzipped;
+	
+	public V3dRawHeader(V3dRawImageStream.Format format, ByteOrder byteOrder, 
+			int pixelBytes, int[] dimensions) 
+	{
+		this(format, byteOrder, pixelBytes, dimensions, false);
+	}
+	
+	private V3dRawHeader(V3dRawImageStream.Format format, ByteOrder byteOrder, 
+			int pixelBytes, int[] dimensions, boolean gzipped) 
+	{
+		this.format = format;
+		this.byteOrder = byteOrder;
+		this.pixelBytes = pixelBytes;
+		this.dimensions = dimensions.clone();
+		this.gzipped = gzipped;
+	}
+	
+	/**
+	 * Reads the header of a file with one positional read.
+	 * 
+	 * @throws IOException if the file cannot be read or is not a Vaa3D volume
+	 */
+	public static V3dRawHeader probe(File file) 
+	throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return probe(channel);
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Reads the header at the start of a channel, without moving the 
+	 * channel's position. A gzip or BGZF wrapped file is inflated only 
+	 * as far as the header.
+	 */
+	public static V3dRawHeader probe(FileChannel channel) 
+	throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(V3dRawImageStream.HEADER_BYTES);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) < 0)
+				break;
+		}
+		boolean gzipped = BgzfInputStream.isGzip(buffer.array(), buffer.position());
+		if (gzipped) {
+			// Small inflater buffer: only the first few hundred bytes are needed
+			InputStream in = new GZIPInputStream(positionalStream(channel), 512);
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+				if (n < 0)
+					break;
+				buffer.position(buffer.position() + n);
+			}
+		}
+		if (buffer.hasRemaining())
+			throw new EOFException("File is too short for a Vaa3D header");
+		try {
+			V3dRawHeader header = parse(buffer.array());
+			if (! gzipped)
+				return header;
+			return new V3dRawHeader(header.format, header.byteOrder, 
+					header.pixelBytes, header.dimensions, true);
+		}
+		catch (DataFormatException exc) {
+			throw new IOException(exc.getMessage(), exc);
+		}
+	}
+	
+	/**
+	 * Stream of a channel's bytes from offset zero, using positional reads 
+	 * so the channel's own position is left alone.
+	 */
+	private static InputStream positionalStream(final FileChannel channel) {
+		return new InputStream() {
+			private long position = 0;
+			
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+				if (n > 0)
+					position += n;
+				return n;
+			}
+		};
+	}
+	
+	/**
+	 * Interprets the 43 header bytes of a Vaa3D volume.
+	 */
+	public static V3dRawHeader parse(byte[] header) 
+	throws DataFormatException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(header, 0, V3dRawImageStream.HEADER_BYTES);
+		// Parse file type header string (24 bytes)
+		String headerKey = new String(header, 0, 24);
+		V3dRawImageStream.Format format = null;
+		for (V3dRawImageStream.Format f : V3dRawImageStream.Format.values()) {
+			if (headerKey.equals(V3dRawImageStream.V3DRAW_MAGIC_COOKIE[f.ordinal()])) {
+				format = f;
+				break;
+			}
+		}
+		if (format == null)
+		{
+			throw new DataFormatException(
+					"Vaa3D raw file header mismatch: " + headerKey);
+		}
+		// Parse data endian (one byte)
+		buffer.position(24);
+		char endianChar = (char)buffer.get(); // read endianness
+		ByteOrder byteOrder;
+		if (endianChar == 'B')
+			byteOrder = ByteOrder.BIG_ENDIAN;
+		else if (endianChar == 'L')
+			byteOrder = ByteOrder.LITTLE_ENDIAN;
+		else
+			throw new DataFormatException(
+					"Unrecognized endian field: " + endianChar);
+		buffer.order(byteOrder); // affects interpretation of subsequent multi-byte numbers
+		// Parse number of bytes per pixel
+		int pixelBytes = buffer.getShort();
+		if ( (pixelBytes <= 0) || (pixelBytes > 4) )
+			throw new DataFormatException(
+					"Illegal number of pixel bytes: " + pixelBytes);
+		// Parse dimensions of volume - four four-byte values = 16 bytes
+		int[] dimensions = new int[]{
+				buffer.getInt(),
+				buffer.getInt(),
+				buffer.getInt(),
+				buffer.getInt()};
+		return new V3dRawHeader(format, byteOrder, pixelBytes, dimensions);
+	}
+	
+	public V3dRawImageStream.Format getFormat() {
+		return format;
+	}
+	
+	/**
+	 * 
+	 * @return true if the probed file is wrapped in gzip or BGZF compression
+	 */
+	public boolean isGzipped() {
+		return gzipped;
+	}
+	
+	public ByteOrder getByteOrder() {
+		return byteOrder;
+	}
+	
+	/**
+	 * 
+	 * @return number of bytes in each pixel, per color channel
+	 */
+	public int getPixelBytes() {
+		return pixelBytes;
+	}
+	
+	/**
+	 * 
+	 * @param index Zero(0) for x-axis, 1 for y-axis, 2 for z-axis, 3 for color channel.
+	 * @return number of pixels in a particular axial direction
+	 */
+	public int getDimension(int index) {
+		return dimensions[index];
+	}
+	
+	/**
+	 * 
+	 * @return number of uncompressed bytes in one slice of one color channel
+	 */
+	public long getSliceByteCount() {
+		return (long)dimensions[0] * dimensions[1] * pixelBytes;
+	}
+	
+	/**
+	 * 
+	 * @return number of uncompressed voxel bytes in the whole volume
+	 */
+	public long getDataByteCount() {
+		return getSliceByteCount() * dimensions[2] * dimensions[3];
+	}
+	
+	@Override
+	public String toString() {
+		return format + " " + dimensions[0] + "x" + dimensions[1] + "x" + dimensions[2] 
+				+ "x" + dimensions[3] + " " + (8 * pixelBytes) + "-bit " + byteOrder;
+	}
+}
@@ -24,6 +24,9 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package org.janelia.vaa3d.reader;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,6 +34,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 
 /*
@@ -41,6 +45,17 @@ import java.util.zip.DataFormatException;
  * accordingly.
  * 
  * In an effort to conserve memory, only one Z-slice is processed at one time.
+ * All offsets into the data are 64-bit. Planes too large for one Java array
+ * can still be streamed a few rows at a time with <code>readSliceRows</code>.
+ * 
+ * Slices are normally delivered in file order by <code>loadNextSlice</code>.
+ * Streams opened from a <code>File</code> can also jump to any slice
+ * with <code>readSlice</code>.
+ * 
+ * Gzip-wrapped volumes, such as .v3draw.gz, are inflated transparently,
+ * in parallel when they are block-gzipped (see <code>BgzfInputStream</code>).
+ * Such volumes are read sequentially; moving backwards inflates them again
+ * from the start.
  * 
  * This class does NOT implement InputStream, but uses and InputStream.
  */
@@ -60,6 +75,14 @@ public class V3dRawImageStream
 		FORMAT_MYERS_PBD; // Modification by Gene Myers
 	}
 	
+	/**
+	 * How <code>readSliceBinned</code> combines each block of pixels.
+	 */
+	public enum BinMode {
+		MEAN,
+		MAX
+	}
+	
 	/**
 	 * The first 24-bytes of a v3draw file declare the particular subformat
 	 */
@@ -69,8 +92,23 @@ public class V3dRawImageStream
 		"v3d_stack_pkbit_by_gene1"
 	};
 	
+	public static final int HEADER_BYTES = 43;
+	
+	// Uncompressed voxel data, read from source
 	private InputStream inStream;
+	// The file or stream, read in large blocks
+	private ChannelSource source;
+	private boolean gzipped = false;
+	// Uncompressed data can be read at any offset of seekable sources
+	private boolean randomAccess = false;
+	// Number of slices consumed from inStream so far
+	private long nextSliceIndex = 0;
+	// Rows of slice nextSliceIndex already delivered by readSliceRows
+	private int nextRow = 0;
+	// Optional decoder checkpoints for random access into v3dpbd files
+	private PbdSliceIndex checkpointIndex;
 	// File metadata fields
+	private V3dRawHeader header;
 	private String headerKey;
 	private Format format;
 	private int pixelBytes = 0;
@@ -78,6 +116,16 @@ public class V3dRawImageStream
 	private int[] dimensions = {0,0,0,0};
 	// Keep one slice in memory for streaming
 	private Slice currentSlice;
+	// Small reusable buffer for converting raw bytes to wider pixel types
+	private static final int SCRATCH_BYTES = 65536;
+	// Largest array length all common JVMs will allocate
+	static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+	private byte[] scratchBuffer;
+	// Intensity statistics of each color channel
+	private ChannelStatistics[] channelStatistics;
+	private boolean collectStatistics = false;
+	// Background thread of an open SlicePrefetcher, the only permitted reader
+	private volatile Thread prefetchThread;
 
 	/**
 	 * Creates a new <code>V3dRawImageStream</code> from a v3draw file.
@@ -87,9 +135,9 @@ public class V3dRawImageStream
 	 * @param input <code>InputStream</code> representing the input v3draw volume image.
 	 */
 	public V3dRawImageStream(InputStream input) {
-		inStream = input;
+		source = new ChannelSource(input, ChannelSource.DEFAULT_READ_AHEAD_BYTES);
 		try {
-			loadHeader(input);
+			openData();
 		}
 		catch (IOException exc) {
 			throw new IllegalArgumentException(exc);
@@ -99,6 +147,129 @@ public class V3dRawImageStream
 		}
 	}
 	
+	/**
+	 * Creates a new <code>V3dRawImageStream</code> from a v3draw file on disk.
+	 * 
+	 * Unlike the <code>InputStream</code> constructor, this permits 
+	 * random access to slices via <code>readSlice</code>.
+	 * If a v3dpbd file has a current sidecar index (see 
+	 * <code>PbdSliceIndex</code>), it is loaded too.
+	 * 
+	 * @param file input v3draw or v3dpbd volume image.
+	 * @throws IOException if the file cannot be read or is not a v3draw file
+	 */
+	public V3dRawImageStream(File file) 
+	throws IOException
+	{
+		this(ChannelSource.open(file));
+		if ( (format == Format.FORMAT_MURPHY_PBD) && randomAccess ) {
+			PbdSliceIndex index = PbdSliceIndex.loadSidecar(file);
+			if ( (index != null) && index.matches(this) )
+				checkpointIndex = index;
+		}
+	}
+	
+	/**
+	 * Creates a new <code>V3dRawImageStream</code> from any source of 
+	 * volume bytes, for example a file opened with a larger read-ahead for
+	 * a network file system.
+	 * 
+	 * Seekable sources permit random access to slices, as files do.
+	 * 
+	 * @param source source positioned at the start of the v3draw header
+	 * @throws IOException if the source cannot be read or is not a v3draw file
+	 */
+	public V3dRawImageStream(ChannelSource source) 
+	throws IOException
+	{
+		this.source = source;
+		try {
+			openData();
+		}
+		catch (DataFormatException exc) {
+			closeQuietly();
+			throw new IOException(exc);
+		}
+		catch (IOException exc) {
+			closeQuietly();
+			throw exc;
+		}
+		catch (IllegalArgumentException exc) {
+			closeQuietly();
+			throw new IOException(exc);
+		}
+	}
+	
+	/**
+	 * Recognizes gzip compression, and reads the header.
+	 */
+	private void openData() 
+	throws IOException, DataFormatException
+	{
+		byte[] head = new byte[18];
+		int length = source.peek(head, 0, head.length);
+		gzipped = BgzfInputStream.isGzip(head, length);
+		// Compressed files are only read as streams
+		randomAccess = source.isSeekable() && !gzipped;
+		InputStream fileStream = source;
+		if (gzipped) {
+			// Closing the inflater must not close the source, which can
+			// be inflated again from the start
+			fileStream = new FilterInputStream(source) {
+				@Override
+				public void close() {}
+			};
+		}
+		fileStream = BgzfInputStream.decompress(fileStream, head, length);
+		inStream = fileStream;
+		loadHeader(fileStream);
+	}
+	
+	/**
+	 * Supplies decoder checkpoints, so that <code>readSlice</code> can 
+	 * start decoding a v3dpbd file at any slice.
+	 * 
+	 * @param index checkpoints for this volume, or null to decode from the 
+	 * start of the data
+	 */
+	public void setSliceIndex(PbdSliceIndex index) {
+		if ( (index != null) && !index.matches(this) )
+			throw new IllegalArgumentException("Slice index describes a different volume");
+		checkpointIndex = index;
+	}
+	
+	public PbdSliceIndex getSliceIndex() {
+		return checkpointIndex;
+	}
+	
+	/**
+	 * Closes the underlying stream or file.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() 
+	throws IOException
+	{
+		inStream.close();
+		source.close();
+	}
+	
+	private void closeQuietly() {
+		try {
+			close();
+		}
+		catch (IOException exc) {}
+	}
+	
+	/**
+	 * 
+	 * @return true if the volume is wrapped in gzip compression, which is
+	 * inflated as it is read
+	 */
+	public boolean isGzipped() {
+		return gzipped;
+	}
+	
 	/**
 	 * 
 	 * @return little or big endian byte order
@@ -107,6 +278,81 @@ public class V3dRawImageStream
 		return endian;
 	}
 	
+	/**
+	 * 
+	 * @return the metadata parsed from the file header
+	 */
+	public V3dRawHeader getHeader() {
+		return header;
+	}
+	
+	/**
+	 * Turns on accumulation of intensity statistics.
+	 * 
+	 * While on, every slice delivered by <code>loadNextSlice</code>, 
+	 * <code>readSliceInto</code> or <code>readSlice</code> is added to the
+	 * statistics of its channel, in the same pass that delivers it.
+	 * A slice delivered twice is counted twice.
+	 */
+	public void setCollectStatistics(boolean collect) {
+		collectStatistics = collect;
+	}
+	
+	public boolean isCollectingStatistics() {
+		return collectStatistics;
+	}
+	
+	/**
+	 * Statistics of each color channel, in channel order.
+	 * 
+	 * These hold the slices delivered while statistics collection was on,
+	 * plus anything merged in by other code; <code>Vaa3dStackLoader</code>
+	 * for instance merges statistics measured on its worker threads.
+	 * 
+	 * @return live statistics objects, one per channel
+	 */
+	public synchronized ChannelStatistics[] getChannelStatistics() {
+		if (channelStatistics == null) {
+			channelStatistics = new ChannelStatistics[dimensions[3]];
+			for (int c = 0; c < channelStatistics.length; ++c)
+				channelStatistics[c] = new ChannelStatistics(pixelBytes);
+		}
+		return channelStatistics;
+	}
+	
+	/**
+	 * @return statistics of the channel holding a slice, or null if 
+	 * statistics are not being collected
+	 */
+	private ChannelStatistics getStatistics(long sliceIndex) {
+		if (! collectStatistics)
+			return null;
+		return getChannelStatistics()[(int)(sliceIndex / dimensions[2])];
+	}
+	
+	/**
+	 * Adds whole voxels of file-order bytes to some statistics.
+	 */
+	private void countBytes(ChannelStatistics statistics, byte[] b, int off, int len) {
+		if (pixelBytes == 1)
+			statistics.add(b, off, len);
+		else
+			statistics.add(ByteBuffer.wrap(b, off, len).slice().order(endian));
+	}
+	
+	/**
+	 * Checks that a length computed in 64 bits fits in one Java array.
+	 * 
+	 * @param what description of the array, for the error message
+	 * @throws IllegalArgumentException if the length is too large
+	 */
+	static int toArrayLength(long length, String what) {
+		if ( (length < 0) || (length > MAX_ARRAY_LENGTH) )
+			throw new IllegalArgumentException(what + " of " + length 
+					+ " elements is too large for one Java array; read it in row strips instead");
+		return (int)length;
+	}
+	
 	public InputStream getDataInputStream() {
 	    return inStream;
 	}
@@ -120,6 +366,14 @@ public class V3dRawImageStream
 		return dimensions[index];
 	}
 	
+	/**
+	 * 
+	 * @return which subformat was declared in the file header
+	 */
+	public Format getFormat() {
+		return format;
+	}
+	
 	/**
 	 * 
 	 * @return number of bytes in each pixel, per color channel
@@ -130,6 +384,18 @@ public class V3dRawImageStream
 	
 	public void writeHeader(OutputStream headerOutputStream, Format v3dFormat) 
 	        throws IOException 
+	{
+		writeHeader(headerOutputStream, v3dFormat, endian, pixelBytes, dimensions);
+	}
+	
+	/**
+	 * Writes the 43-byte header of a new volume.
+	 * 
+	 * @param dimensions sizes of the x, y, z and color channel axes
+	 */
+	public static void writeHeader(OutputStream headerOutputStream, Format v3dFormat,
+			ByteOrder endian, int pixelBytes, int[] dimensions) 
+	        throws IOException 
 	{
         byte[] buffer0 = new byte[4];
         ByteBuffer buffer = ByteBuffer.wrap(buffer0);
@@ -162,79 +428,129 @@ public class V3dRawImageStream
 	throws IOException, DataFormatException
 	{
 		// header is 43 bytes long
-		byte[] buffer0 = new byte[43];
-		ByteBuffer buffer = ByteBuffer.wrap(buffer0);
-		headerInputStream.read(buffer.array(), 0, 43);
-		buffer.rewind();
-		// Parse file type header string (24 bytes)
-		headerKey = new String(buffer.array(), 0, 24);
-		format = null;
-		for (Format f : Format.values()) {
-			if (headerKey.equals(V3DRAW_MAGIC_COOKIE[f.ordinal()])) {
-				format = f;
-				break;
-			}
+		byte[] buffer0 = new byte[HEADER_BYTES];
+		int pos = 0;
+		while (pos < HEADER_BYTES) {
+			int count = headerInputStream.read(buffer0, pos, HEADER_BYTES - pos);
+			if (count < 0)
+				throw new EOFException("File is too short for a Vaa3D header");
+			pos += count;
 		}
-		if (format == null)
-		{
-			throw new DataFormatException(
-					"Vaa3D raw file header mismatch: " + headerKey);
-		}
-		// Parse data endian (one byte)
-		buffer.position(24);
-		char endianChar = (char)buffer.get(); // read endianness
-		if (endianChar == 'B')
-			endian = ByteOrder.BIG_ENDIAN;
-		else if (endianChar == 'L')
-			endian = ByteOrder.LITTLE_ENDIAN;
-		else
-			throw new DataFormatException(
-					"Unrecognized endian field: " + endianChar);
-		buffer.order(endian); // affects interpretation of subsequent multi-byte numbers
-		// Parse number of bytes per pixel
-		pixelBytes = buffer.getShort();
-		if ( (pixelBytes <= 0) || (pixelBytes > 4) )
-			throw new DataFormatException(
-					"Illegal number of pixel bytes: " + pixelBytes);
-		// Parse dimensions of volume - four four-byte values = 16 bytes
+		header = V3dRawHeader.parse(buffer0);
+		headerKey = new String(buffer0, 0, 24);
+		format = header.getFormat();
+		endian = header.getByteOrder();
+		pixelBytes = header.getPixelBytes();
 		dimensions = new int[]{
-				buffer.getInt(),
-				buffer.getInt(),
-				buffer.getInt(),
-				buffer.getInt()};
+				header.getDimension(0),
+				header.getDimension(1),
+				header.getDimension(2),
+				header.getDimension(3)};
 		// End of header.
-		// Allocate slice
-		currentSlice = new Slice(dimensions[0], dimensions[1], 
-				pixelBytes, endian);
+		// The slice buffer is allocated on first use, so header-only 
+		// clients do not pay for a whole plane.
 		
 		// wrap inStream, if compressed format
+		inStream = createDataInputStream(inStream);
+	}
+	
+	/**
+	 * @param fileStream stream positioned at the start of the data section
+	 * @return stream of uncompressed voxel data
+	 */
+	private InputStream createDataInputStream(InputStream fileStream) {
 		if (format == Format.FORMAT_MURPHY_PBD) {
+			// Decoders read whole read-ahead blocks straight from the source
+			int blockSize = (fileStream == source) 
+					? source.getReadAheadBytes() : PbdInputStream.DEFAULT_BLOCK_SIZE;
 			if (pixelBytes == 1)
-				inStream = new Pbd8InputStream(inStream);
+				return new Pbd8InputStream(fileStream, blockSize);
 			else
-				inStream = new Pbd16InputStream(inStream, endian);
+				return new Pbd16InputStream(fileStream, endian, blockSize);
 		}
 		else if (format == Format.FORMAT_MYERS_PBD) {
 			// TODO
 			throw new IllegalArgumentException("Loading Myers' pbd is not yet implemented");
 			// inStream = new PbdMyers1InputStream(inStream);
 		}
-		else if (format == Format.FORMAT_PENG_RAW) {
-			// leave instream alone. it is not compressed.
-			// inStream = new BufferedInputStream(inStream); // for testing
-		}
+		// else FORMAT_PENG_RAW:
+		// leave instream alone. it is not compressed.
+		// inStream = new BufferedInputStream(inStream); // for testing
+		return fileStream;
+	}
+	
+	/**
+	 * 
+	 * @return number of bytes in one slice of one color channel
+	 */
+	public long getSliceByteCount() {
+		return (long)dimensions[0] * dimensions[1] * pixelBytes;
 	}
 	
 	/**
 	 * 
 	 * @return a reference to the current Z-slice image buffer.
 	 * 
-	 * Becomes invalid after calling <code>loadNextSlice</code>
+	 * The stream owns this buffer, and overwrites it on the next call to
+	 * <code>loadNextSlice()</code> or <code>readSlice</code>. To keep
+	 * slices while later ones load, pass buffers from 
+	 * <code>createSlice</code> to <code>loadNextSlice(Slice)</code>, or use
+	 * <code>prefetch</code>, which hands each slice to the caller until
+	 * it is released.
 	 */
 	public Slice getCurrentSlice() {
+		if (currentSlice == null)
+			currentSlice = createSlice();
 		return currentSlice;
 	}
+	
+	/**
+	 * Allocates an additional slice buffer for this volume, for use with
+	 * <code>loadNextSlice(Slice)</code>.
+	 * 
+	 * @return new empty slice buffer
+	 */
+	public Slice createSlice() {
+		return new Slice(dimensions[0], dimensions[1], pixelBytes, endian);
+	}
 
+	/**
+	 * Starts decoding the remaining slices on a background thread, 
+	 * while the caller works on earlier ones.
+	 * 
+	 * The stream cannot be read directly until the returned prefetcher 
+	 * is closed.
+	 * 
+	 * @param depth number of slices to decode ahead of the caller
+	 * @see SlicePrefetcher
+	 */
+	public SlicePrefetcher prefetch(int depth) {
+		return new SlicePrefetcher(this, depth);
+	}
+	
+	void setPrefetchThread(Thread thread) {
+		if ( (thread != null) && (prefetchThread != null) )
+			throw new IllegalStateException("Slices are already being prefetched");
+		prefetchThread = thread;
+	}
+	
+	/**
+	 * 
+	 * @return file-order index of the next slice to be read sequentially
+	 */
+	long getNextSliceIndex() {
+		return nextSliceIndex;
+	}
+	
+	/**
+	 * Rejects direct reads while a SlicePrefetcher owns the stream.
+	 */
+	private void checkReader() {
+		Thread owner = prefetchThread;
+		if ( (owner != null) && (owner != Thread.currentThread()) )
+			throw new IllegalStateException("Slices are being prefetched; take them from the SlicePrefetcher");
+	}
+	
 	/**
 	 * Replaces the current slice buffer with a new Z-slice of image data
 	 * from the input volume.
@@ -244,7 +560,582 @@ public class V3dRawImageStream
 	public void loadNextSlice() 
 	throws IOException
 	{
-		currentSlice.read(inStream);
+		loadNextSlice(getCurrentSlice());
+	}
+	
+	/**
+	 * Loads the next Z-slice of image data into a caller-owned slice 
+	 * buffer, leaving the current slice untouched.
+	 * 
+	 * This lets callers keep several slices in flight, for example
+	 * while other threads process earlier slices.
+	 * 
+	 * @param slice buffer from <code>createSlice</code>
+	 * @throws IOException
+	 */
+	public void loadNextSlice(Slice slice) 
+	throws IOException
+	{
+		checkReader();
+		checkSliceStart();
+		readDataCounted(slice.sliceBuffer.array(), 0, slice.sliceByteCount, 
+				getStatistics(nextSliceIndex));
+		slice.sliceIndex = (int)nextSliceIndex;
+		++nextSliceIndex;
+	}
+	
+	/**
+	 * Reads the next Z-slice of raw voxel bytes directly into a 
+	 * caller-supplied array, bypassing the slice buffer.
+	 * 
+	 * For 8-bit volumes these bytes are the pixel values.
+	 * 
+	 * @param destination array of at least <code>getSliceByteCount()</code> bytes
+	 * @throws IOException
+	 */
+	public void readSliceInto(byte[] destination) 
+	throws IOException
+	{
+		checkReader();
+		checkSliceStart();
+		int sliceByteCount = toArrayLength(getSliceByteCount(), "Slice");
+		readDataCounted(destination, 0, sliceByteCount, getStatistics(nextSliceIndex));
+		++nextSliceIndex;
+	}
+	
+	/**
+	 * Reads the next rows of the current Z-slice as raw voxel bytes, 
+	 * so that planes too large for one array can be streamed in strips.
+	 * 
+	 * Once the last row of a slice has been read, sequential reading 
+	 * continues with the next slice. Whole-slice reads are only permitted 
+	 * between slices.
+	 * 
+	 * @param destination receives <code>rowCount * sizeX</code> voxels,
+	 * starting at <code>offset</code>
+	 * @param rowCount number of rows, no more than remain in the slice
+	 * @throws IOException
+	 */
+	public void readSliceRows(byte[] destination, int offset, int rowCount) 
+	throws IOException
+	{
+		checkReader();
+		if ( (rowCount < 0) || (nextRow + rowCount > dimensions[1]) )
+			throw new IndexOutOfBoundsException("Only " + (dimensions[1] - nextRow) 
+					+ " rows remain in the slice");
+		int byteCount = toArrayLength((long)rowCount * dimensions[0] * pixelBytes, "Row strip");
+		readDataCounted(destination, offset, byteCount, getStatistics(nextSliceIndex));
+		nextRow += rowCount;
+		if (nextRow >= dimensions[1]) {
+			nextRow = 0;
+			++nextSliceIndex;
+		}
+	}
+	
+	/**
+	 * Rejects whole-slice reads part way through a slice.
+	 */
+	private void checkSliceStart() {
+		if (nextRow != 0)
+			throw new IllegalStateException("Part way through a slice; finish it with readSliceRows");
+	}
+	
+	/**
+	 * Reads the next Z-slice of a 16-bit volume directly into a 
+	 * caller-supplied array, in native order.
+	 * 
+	 * Compressed data are decoded straight into the array.
+	 * 
+	 * @param destination array of at least sizeX * sizeY values
+	 * @throws IOException
+	 */
+	public void readSliceInto(short[] destination) 
+	throws IOException
+	{
+		checkReader();
+		checkSliceStart();
+		if (pixelBytes != 2)
+			throw new IllegalStateException("Not a 16-bit volume");
+		int pixelCount = toArrayLength((long)dimensions[0] * dimensions[1], "Slice");
+		ChannelStatistics statistics = getStatistics(nextSliceIndex);
+		if (inStream instanceof Pbd16InputStream) {
+			Pbd16InputStream decoder = (Pbd16InputStream)inStream;
+			int pos = 0;
+			while (pos < pixelCount) {
+				// while counting, decode in cache-sized pieces
+				int request = (statistics == null) ? pixelCount - pos 
+						: Math.min(pixelCount - pos, SCRATCH_BYTES / 2);
+				int count = decoder.read(destination, pos, request);
+				if (count < 0)
+					throw new EOFException("v3dpbd stream is truncated");
+				if (statistics != null)
+					statistics.add(destination, pos, count);
+				pos += count;
+			}
+		}
+		else {
+			byte[] scratch = getScratchBuffer();
+			int pos = 0;
+			while (pos < pixelCount) {
+				int count = Math.min(pixelCount - pos, scratch.length / 2);
+				readDataFully(scratch, 0, 2 * count);
+				ByteBuffer.wrap(scratch, 0, 2 * count).order(endian)
+						.asShortBuffer().get(destination, pos, count);
+				if (statistics != null)
+					statistics.add(destination, pos, count);
+				pos += count;
+			}
+		}
+		++nextSliceIndex;
+	}
+	
+	/**
+	 * Reads the next Z-slice of a 32-bit volume directly into a 
+	 * caller-supplied array, in native order.
+	 * 
+	 * @param destination array of at least sizeX * sizeY values
+	 * @throws IOException
+	 */
+	public void readSliceInto(float[] destination) 
+	throws IOException
+	{
+		checkReader();
+		checkSliceStart();
+		if (pixelBytes != 4)
+			throw new IllegalStateException("Not a 32-bit volume");
+		int pixelCount = toArrayLength((long)dimensions[0] * dimensions[1], "Slice");
+		ChannelStatistics statistics = getStatistics(nextSliceIndex);
+		byte[] scratch = getScratchBuffer();
+		int pos = 0;
+		while (pos < pixelCount) {
+			int count = Math.min(pixelCount - pos, scratch.length / 4);
+			readDataFully(scratch, 0, 4 * count);
+			ByteBuffer.wrap(scratch, 0, 4 * count).order(endian)
+					.asFloatBuffer().get(destination, pos, count);
+			if (statistics != null)
+				statistics.add(destination, pos, count);
+			pos += count;
+		}
+		++nextSliceIndex;
+	}
+	
+	private byte[] getScratchBuffer() {
+		if (scratchBuffer == null)
+			scratchBuffer = new byte[SCRATCH_BYTES];
+		return scratchBuffer;
+	}
+	
+	/**
+	 * Like readDataFully, but also adds the bytes to some statistics, 
+	 * one scratch-sized piece at a time while each piece is in cache.
+	 * 
+	 * @param statistics or null to only read
+	 */
+	private void readDataCounted(byte[] b, int off, int len, ChannelStatistics statistics) 
+	throws IOException
+	{
+		if (statistics == null) {
+			readDataFully(b, off, len);
+			return;
+		}
+		while (len > 0) {
+			int count = Math.min(len, SCRATCH_BYTES); // whole voxels
+			readDataFully(b, off, count);
+			countBytes(statistics, b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+	
+	/**
+	 * Reads exactly <code>len</code> uncompressed bytes from the data stream.
+	 */
+	private void readDataFully(byte[] b, int off, int len) 
+	throws IOException
+	{
+		while (len > 0) {
+			int count = inStream.read(b, off, len);
+			if (count < 0)
+				throw new EOFException("v3draw data end early");
+			off += count;
+			len -= count;
+		}
+	}
+	
+	/**
+	 * Replaces the current slice buffer with one particular Z-slice of 
+	 * image data from the input volume.
+	 * 
+	 * Uncompressed files are read directly at the slice offset. 
+	 * Compressed files resume at the slice's checkpoint when a slice index
+	 * is available, and otherwise are decoded forward from the current
+	 * position or the start of the data. Streams not opened from a 
+	 * <code>File</code> can only move forward.
+	 * 
+	 * Subsequent calls to <code>loadNextSlice</code> continue from the
+	 * slice after this one.
+	 * 
+	 * @param z zero-based slice index
+	 * @param c zero-based color channel index
+	 * @return the current slice, now holding slice (z, c)
+	 * @throws IOException
+	 */
+	public Slice readSlice(int z, int c) 
+	throws IOException
+	{
+		checkReader();
+		if ( (z < 0) || (z >= dimensions[2]) || (c < 0) || (c >= dimensions[3]) )
+			throw new IndexOutOfBoundsException("No slice at z=" + z + ", c=" + c);
+		long sliceIndex = (long)c * dimensions[2] + z; // channels are stored one after another
+		if ( (format == Format.FORMAT_PENG_RAW) && randomAccess ) {
+			Slice slice = getCurrentSlice();
+			long offset = HEADER_BYTES + sliceIndex * getSliceByteCount();
+			ByteBuffer buffer = slice.getByteBuffer();
+			buffer.clear();
+			ChannelStatistics statistics = getStatistics(sliceIndex);
+			if (statistics == null)
+				source.readFully(buffer, offset);
+			else {
+				// count each piece as it arrives
+				for (int pos = 0; pos < slice.sliceByteCount; pos += SCRATCH_BYTES) {
+					int count = Math.min(SCRATCH_BYTES, slice.sliceByteCount - pos);
+					buffer.limit(pos + count).position(pos);
+					source.readFully(buffer, offset + pos);
+					countBytes(statistics, buffer.array(), pos, count);
+				}
+				buffer.clear();
+			}
+			buffer.rewind();
+			source.position(offset + getSliceByteCount());
+			slice.sliceIndex = (int)sliceIndex;
+			nextSliceIndex = sliceIndex + 1;
+			nextRow = 0;
+			return slice;
+		}
+		seekSlice(sliceIndex);
+		loadNextSlice();
+		return getCurrentSlice();
+	}
+	
+	/**
+	 * Positions the data stream at the start of one slice, in file order.
+	 */
+	private void seekSlice(long sliceIndex) 
+	throws IOException
+	{
+		if ( (format == Format.FORMAT_PENG_RAW) && randomAccess ) {
+			source.position(HEADER_BYTES + sliceIndex * getSliceByteCount());
+			nextSliceIndex = sliceIndex;
+			nextRow = 0;
+			return;
+		}
+		if (nextRow > 0) {
+			// Finish the slice left part way by readSliceRows
+			skipDataBytes(getSliceByteCount() - (long)nextRow * dimensions[0] * pixelBytes);
+			nextRow = 0;
+			++nextSliceIndex;
+		}
+		if ( (checkpointIndex != null) && randomAccess && (sliceIndex != nextSliceIndex) ) {
+			// Resume decoding right at the start of the requested slice
+			PbdInputStream.Checkpoint checkpoint = checkpointIndex.getCheckpoint(sliceIndex);
+			source.position(HEADER_BYTES + checkpoint.getCompressedOffset());
+			PbdInputStream decoder = (PbdInputStream)createDataInputStream(source);
+			decoder.restoreCheckpoint(checkpoint);
+			inStream = decoder;
+			nextSliceIndex = sliceIndex;
+		}
+		else if (sliceIndex < nextSliceIndex) {
+			if (! source.isSeekable())
+				throw new IOException("Cannot seek backwards in a stream; open the volume from a File instead");
+			if (gzipped) {
+				// Inflate again from the start of the file
+				inStream.close();
+				source.position(0);
+				try {
+					openData();
+				}
+				catch (DataFormatException exc) {
+					throw new IOException(exc);
+				}
+			}
+			else {
+				// Start decoding again from the beginning of the data
+				source.position(HEADER_BYTES);
+				inStream = createDataInputStream(source);
+			}
+			nextSliceIndex = 0;
+		}
+		skipDataBytes((sliceIndex - nextSliceIndex) * getSliceByteCount());
+		nextSliceIndex = sliceIndex;
+	}
+	
+	/**
+	 * Reads a rectangle of one Z-slice, in file byte order, without 
+	 * reading the rest of the slice into memory.
+	 * 
+	 * Raw files opened from a File are read one row at a time with 
+	 * positional reads, touching only the bytes of the region. Otherwise 
+	 * the voxels outside the region are decoded and discarded as they
+	 * stream past. Either way, sequential reading continues with the 
+	 * next slice.
+	 * 
+	 * @param destination receives <code>height</code> rows of 
+	 * <code>width</code> voxels each, starting at <code>offset</code>
+	 * @throws IOException
+	 */
+	public void readSliceRegion(int z, int c, int x, int y, int width, int height, 
+			byte[] destination, int offset) 
+	throws IOException
+	{
+		readRegionRows(z, c, x, y, width, height, destination, offset);
+	}
+	
+	/**
+	 * Reads a rectangle of one Z-slice of a 16-bit volume, in native order.
+	 * 
+	 * Like the byte[] version, but each row is converted through a small 
+	 * scratch buffer, so no region-sized byte copy is made.
+	 * 
+	 * @param destination receives <code>height</code> rows of 
+	 * <code>width</code> values each, starting at <code>offset</code>
+	 * @throws IOException
+	 */
+	public void readSliceRegion(int z, int c, int x, int y, int width, int height, 
+			short[] destination, int offset) 
+	throws IOException
+	{
+		if (pixelBytes != 2)
+			throw new IllegalStateException("Not a 16-bit volume");
+		readRegionRows(z, c, x, y, width, height, destination, offset);
+	}
+	
+	/**
+	 * Reads a rectangle of one Z-slice of a 32-bit volume, in native order.
+	 * 
+	 * @param destination receives <code>height</code> rows of 
+	 * <code>width</code> values each, starting at <code>offset</code>
+	 * @throws IOException
+	 */
+	public void readSliceRegion(int z, int c, int x, int y, int width, int height, 
+			float[] destination, int offset) 
+	throws IOException
+	{
+		if (pixelBytes != 4)
+			throw new IllegalStateException("Not a 32-bit volume");
+		readRegionRows(z, c, x, y, width, height, destination, offset);
+	}
+	
+	/**
+	 * Common part of the readSliceRegion methods.
+	 * 
+	 * @param destination byte[] for file-order bytes, or short[] or float[]
+	 * @param offset in elements of <code>destination</code>
+	 */
+	private void readRegionRows(int z, int c, int x, int y, int width, int height, 
+			Object destination, int offset) 
+	throws IOException
+	{
+		checkReader();
+		if ( (z < 0) || (z >= dimensions[2]) || (c < 0) || (c >= dimensions[3]) )
+			throw new IndexOutOfBoundsException("No slice at z=" + z + ", c=" + c);
+		if ( (x < 0) || (y < 0) || (width < 1) || (height < 1) 
+				|| (x + width > dimensions[0]) || (y + height > dimensions[1]) )
+			throw new IndexOutOfBoundsException("Region is outside the slice");
+		long sliceIndex = (long)c * dimensions[2] + z;
+		long rowBytes = (long)dimensions[0] * pixelBytes;
+		int regionRowBytes = width * pixelBytes;
+		// destination elements per region row
+		int rowLength = (destination instanceof byte[]) ? regionRowBytes : width;
+		if ( (format == Format.FORMAT_PENG_RAW) && randomAccess ) {
+			long sliceStart = HEADER_BYTES + sliceIndex * getSliceByteCount() 
+					+ y * rowBytes + (long)x * pixelBytes;
+			// Whole rows are contiguous, and can be read at once
+			int rowsPerRead = (width == dimensions[0]) ? height : 1;
+			for (int row = 0; row < height; row += rowsPerRead)
+				readRegionBytes(destination, offset + row * rowLength, 
+						rowsPerRead * regionRowBytes, sliceStart + row * rowBytes);
+			// as after readSlice, sequential reading continues with the next slice
+			source.position(HEADER_BYTES + (sliceIndex + 1) * getSliceByteCount());
+			nextSliceIndex = sliceIndex + 1;
+			nextRow = 0;
+			return;
+		}
+		if ( (sliceIndex != nextSliceIndex) || (nextRow > 0) )
+			seekSlice(sliceIndex);
+		long consumed = y * rowBytes + (long)x * pixelBytes;
+		skipDataBytes(consumed);
+		for (int row = 0; row < height; ++row) {
+			if (row > 0) {
+				skipDataBytes(rowBytes - regionRowBytes);
+				consumed += rowBytes - regionRowBytes;
+			}
+			readRegionBytes(destination, offset + row * rowLength, regionRowBytes, -1);
+			consumed += regionRowBytes;
+		}
+		skipDataBytes(getSliceByteCount() - consumed);
+		++nextSliceIndex;
+	}
+	
+	/**
+	 * Reads voxel bytes into a byte[] as they are, or into a short[] or 
+	 * float[] converted to native order through the scratch buffer.
+	 * 
+	 * @param position file offset for a positional read, or -1 to read 
+	 * the data stream sequentially
+	 */
+	private void readRegionBytes(Object destination, int offset, int byteCount, long position) 
+	throws IOException
+	{
+		if (destination instanceof byte[]) {
+			if (position < 0)
+				readDataFully((byte[])destination, offset, byteCount);
+			else
+				source.readFully(ByteBuffer.wrap((byte[])destination, offset, byteCount), position);
+			return;
+		}
+		byte[] scratch = getScratchBuffer();
+		while (byteCount > 0) {
+			int count = Math.min(byteCount, scratch.length); // whole voxels: SCRATCH_BYTES is a multiple of 4
+			if (position < 0)
+				readDataFully(scratch, 0, count);
+			else {
+				source.readFully(ByteBuffer.wrap(scratch, 0, count), position);
+				position += count;
+			}
+			ByteBuffer bb = ByteBuffer.wrap(scratch, 0, count).order(endian);
+			if (pixelBytes == 2)
+				bb.asShortBuffer().get((short[])destination, offset, count / 2);
+			else
+				bb.asFloatBuffer().get((float[])destination, offset, count / 4);
+			offset += count / pixelBytes;
+			byteCount -= count;
+		}
+	}
+	
+	/**
+	 * Reads one Z-slice at reduced resolution, combining each 
+	 * <code>bin</code> by <code>bin</code> block of pixels into one.
+	 * 
+	 * Only the one full-resolution slice buffer is used. Edge blocks that
+	 * extend past the slice combine only the pixels inside it. Slices 
+	 * between the current position and <code>z</code> are skipped as in 
+	 * <code>readSlice</code>, so reading every Nth slice of a raw file 
+	 * opened from a File reads only those slices.
+	 * 
+	 * @return pixel array of ceil(sizeX / bin) * ceil(sizeY / bin) values:
+	 * byte[], short[] or float[] for 8-, 16- or 32-bit volumes
+	 * @throws IOException
+	 */
+	public Object readSliceBinned(int z, int c, int bin, BinMode mode) 
+	throws IOException
+	{
+		checkReader();
+		if (bin < 1)
+			throw new IllegalArgumentException("Bin size must be positive");
+		if ( (z < 0) || (z >= dimensions[2]) || (c < 0) || (c >= dimensions[3]) )
+			throw new IndexOutOfBoundsException("No slice at z=" + z + ", c=" + c);
+		int sizeX = dimensions[0];
+		int sizeY = dimensions[1];
+		int binnedX = (sizeX + bin - 1) / bin;
+		int binnedY = (sizeY + bin - 1) / bin;
+		double[] row = new double[binnedX];
+		double[] binned = new double[toArrayLength((long)binnedX * binnedY, "Binned slice")];
+		// Stream the slice one row at a time, so its size is not limited
+		byte[] rowBytes = new byte[toArrayLength((long)sizeX * pixelBytes, "Row")];
+		ByteBuffer rowBuffer = ByteBuffer.wrap(rowBytes).order(endian);
+		long sliceIndex = (long)c * dimensions[2] + z;
+		if ( (sliceIndex != nextSliceIndex) || (nextRow > 0) )
+			seekSlice(sliceIndex);
+		for (int by = 0; by < binnedY; ++by) {
+			Arrays.fill(row, (mode == BinMode.MAX) ? -Double.MAX_VALUE : 0);
+			int yEnd = Math.min(sizeY, (by + 1) * bin);
+			for (int y = by * bin; y < yEnd; ++y) {
+				readSliceRows(rowBytes, 0, 1);
+				for (int x = 0; x < sizeX; ++x) {
+					double value;
+					if (pixelBytes == 1)
+						value = rowBytes[x] & 0xff;
+					else if (pixelBytes == 2)
+						value = rowBuffer.getShort(2 * x) & 0xffff;
+					else
+						value = rowBuffer.getFloat(4 * x);
+					int bx = x / bin;
+					if (mode == BinMode.MAX)
+						row[bx] = Math.max(row[bx], value);
+					else
+						row[bx] += value;
+				}
+			}
+			for (int bx = 0; bx < binnedX; ++bx) {
+				double value = row[bx];
+				if (mode == BinMode.MEAN)
+					value /= (Math.min(sizeX, (bx + 1) * bin) - bx * bin) * (yEnd - by * bin);
+				binned[by * binnedX + bx] = value;
+			}
+		}
+		switch (pixelBytes) {
+		case 1:
+			byte[] ar8 = new byte[binned.length];
+			for (int i = 0; i < binned.length; ++i)
+				ar8[i] = (byte)Math.round(binned[i]);
+			return ar8;
+		case 2:
+			short[] ar16 = new short[binned.length];
+			for (int i = 0; i < binned.length; ++i)
+				ar16[i] = (short)Math.round(binned[i]);
+			return ar16;
+		default:
+			float[] ar32 = new float[binned.length];
+			for (int i = 0; i < binned.length; ++i)
+				ar32[i] = (float)binned[i];
+			return ar32;
+		}
+	}
+	
+	/**
+	 * Reads a sub-volume.
+	 * 
+	 * @return one array per slice of the region, channel by channel as in 
+	 * the file, each holding <code>width * height</code> voxels in file 
+	 * byte order
+	 * @throws IOException
+	 */
+	public byte[][] readRegion(int x, int y, int z, int c, 
+			int width, int height, int depth, int channels) 
+	throws IOException
+	{
+		byte[][] planes = new byte[depth * channels][];
+		for (int ci = 0; ci < channels; ++ci) {
+			for (int zi = 0; zi < depth; ++zi) {
+				byte[] plane = new byte[toArrayLength((long)width * height * pixelBytes, "Region plane")];
+				readSliceRegion(z + zi, c + ci, x, y, width, height, plane, 0);
+				planes[ci * depth + zi] = plane;
+			}
+		}
+		return planes;
+	}
+	
+	/**
+	 * Advances the data stream by a number of uncompressed bytes.
+	 */
+	private void skipDataBytes(long byteCount) 
+	throws IOException
+	{
+		if (byteCount < 1)
+			return;
+		// PBD decoders skip by run arithmetic, without producing the 
+		// skipped voxels, so both formats simply skip here.
+		while (byteCount > 0) {
+			long skipped = inStream.skip(byteCount);
+			if (skipped < 1) {
+				if (inStream.read() < 0)
+					throw new EOFException(format == Format.FORMAT_PENG_RAW 
+							? "v3draw stream is truncated" 
+							: "v3dpbd stream is truncated");
+				skipped = 1;
+			}
+			byteCount -= skipped;
+		}
 	}
 	
 	/**
@@ -269,7 +1160,7 @@ public class V3dRawImageStream
 		 */
 		public Slice(int sizeX, int sizeY, int pixelBytes, ByteOrder byteOrder) 
 		{
-			sliceByteCount = sizeX * sizeY * pixelBytes;
+			sliceByteCount = toArrayLength((long)sizeX * sizeY * pixelBytes, "Slice");
 			byte[] buffer0 = new byte[sliceByteCount];
 			sliceBuffer = ByteBuffer.wrap(buffer0);
 			sliceBuffer.order(byteOrder);
@@ -320,12 +1211,18 @@ public class V3dRawImageStream
 		 * 3D volume image data.
 		 * 
 		 * @param inStream <code>InputStream</code> representing the input volume
-		 * @throws IOException
+		 * @throws EOFException if the volume ends before the slice does
 		 */
 		public void read(InputStream inStream) 
 		throws IOException
 		{
-			inStream.read(sliceBuffer.array(), 0, sliceByteCount);
+			int pos = 0;
+			while (pos < sliceByteCount) {
+				int count = inStream.read(sliceBuffer.array(), pos, sliceByteCount - pos);
+				if (count < 0)
+					throw new EOFException("v3draw data end early");
+				pos += count;
+			}
 			++sliceIndex;
 		}
 	}
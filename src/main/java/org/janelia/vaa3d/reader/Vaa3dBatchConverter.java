@@ -0,0 +1,508 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Command line tool to convert many volumes between v3dpbd and v3draw.
+ * 
+ * Usage: Vaa3dBatchConverter [options] file|directory|glob...
+ * 
+ * Directories contribute the .v3draw and .v3dpbd files directly inside 
+ * them, including gzipped ones (.v3draw.gz, .v3dpbd.gz), which are inflated
+ * as they are read. Compressed files become uncompressed and vice versa, 
+ * unless "-to" names one target format. Output goes beside each input, or into 
+ * the "-out" directory, and appears only once complete. Files are skipped,
+ * and the rest of the batch still converted, when they are already in the 
+ * target format, when their output would be another input of the batch or 
+ * is written by an earlier input, or when their output exists and "-force" 
+ * is not given.
+ * 
+ * Several files are converted at once on a fixed pool of worker threads. 
+ * Each file's throughput is reported as it finishes, followed by a
+ * summary. The exit status is 1 if any file failed; skipped files do not 
+ * count as failures.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class Vaa3dBatchConverter 
+{
+	public static final String RAW_EXTENSION = ".v3draw";
+	public static final String PBD_EXTENSION = ".v3dpbd";
+	public static final String GZIP_EXTENSION = ".gz";
+	private static final int IO_BUFFER_SIZE = 1 << 20;
+	private static final int PREFETCH_DEPTH = 2;
+	
+	private static final String USAGE = 
+			"Usage: Vaa3dBatchConverter [-threads N] [-to raw|pbd] [-out directory] [-force] file|directory|glob...";
+	
+	/**
+	 * Converts one file, refusing to replace an existing output file.
+	 * 
+	 * @see #convert(File, File, V3dRawImageStream.Format, ForkJoinPool, boolean)
+	 */
+	public static long convert(File inputFile, File outputFile, 
+			V3dRawImageStream.Format target, ForkJoinPool encoderPool) 
+	throws IOException
+	{
+		return convert(inputFile, outputFile, target, encoderPool, false);
+	}
+	
+	/**
+	 * Converts one file, compressing with <code>encoderPool</code>.
+	 * 
+	 * @see #convert(File, File, V3dRawImageStream.Format, ParallelPbdEncoder, boolean)
+	 */
+	public static long convert(File inputFile, File outputFile, 
+			V3dRawImageStream.Format target, ForkJoinPool encoderPool, boolean replace) 
+	throws IOException
+	{
+		return convert(inputFile, outputFile, target, new ParallelPbdEncoder(encoderPool), replace);
+	}
+	
+	/**
+	 * Converts one file. 
+	 * 
+	 * The result is written next to <code>outputFile</code> and renamed 
+	 * into place when complete, so an interrupted run leaves no partial 
+	 * volume behind.
+	 * 
+	 * @param target FORMAT_PENG_RAW or FORMAT_MURPHY_PBD
+	 * @param encoder PBD compressor, which concurrent conversions may share
+	 * @param replace true to replace <code>outputFile</code> if it exists
+	 * @return number of uncompressed voxel bytes converted
+	 * @throws FileAlreadyExistsException if the output exists and 
+	 * <code>replace</code> is false
+	 */
+	public static long convert(File inputFile, File outputFile, 
+			V3dRawImageStream.Format target, ParallelPbdEncoder encoder, boolean replace) 
+	throws IOException
+	{
+		if (target == V3dRawImageStream.Format.FORMAT_MYERS_PBD)
+			throw new IllegalArgumentException("Cannot write Myers' pbd");
+		if (isSameFile(inputFile, outputFile))
+			throw new IOException("Output would replace the input");
+		if ( !replace && outputFile.exists() )
+			throw new FileAlreadyExistsException(outputFile.getPath(), null, 
+					"output exists; use -force to replace it");
+		File partFile = new File(outputFile.getPath() + ".part");
+		V3dRawImageStream source = new V3dRawImageStream(inputFile);
+		long dataBytes = source.getSliceByteCount() 
+				* source.getDimension(2) * source.getDimension(3);
+		try {
+			FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, 
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 
+						IO_BUFFER_SIZE);
+				if (target == V3dRawImageStream.Format.FORMAT_MURPHY_PBD)
+					encoder.encode(source, out);
+				else {
+					source.writeHeader(out, target);
+					out.flush();
+					// Decoding overlaps writing only when there is a core to spare
+					if (Runtime.getRuntime().availableProcessors() > 1)
+						copySlices(source, channel);
+					else
+						copyData(source.getDataInputStream(), dataBytes, channel);
+				}
+			}
+			finally {
+				channel.close();
+			}
+		}
+		catch (IOException exc) {
+			partFile.delete();
+			throw exc;
+		}
+		catch (RuntimeException exc) {
+			partFile.delete();
+			throw exc;
+		}
+		finally {
+			source.close();
+		}
+		try {
+			if (replace)
+				Files.deleteIfExists(outputFile.toPath());
+			Files.move(partFile.toPath(), outputFile.toPath());
+		}
+		catch (IOException exc) {
+			partFile.delete();
+			throw exc;
+		}
+		return dataBytes;
+	}
+	
+	/**
+	 * Copies decoded voxel data to the output channel in large blocks.
+	 */
+	private static void copyData(InputStream data, long byteCount, FileChannel channel) 
+	throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+		while (byteCount > 0) {
+			int count = data.read(buffer.array(), buffer.position(), 
+					(int)Math.min(buffer.remaining(), byteCount));
+			if (count < 0)
+				throw new IOException("Volume data end early");
+			buffer.position(buffer.position() + count);
+			byteCount -= count;
+			if ( (! buffer.hasRemaining()) || (byteCount == 0) ) {
+				buffer.flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				buffer.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Copies decoded slices to the output channel, writing each slice 
+	 * while the next ones decode on a background thread.
+	 */
+	private static void copySlices(V3dRawImageStream source, FileChannel channel) 
+	throws IOException
+	{
+		SlicePrefetcher prefetcher = source.prefetch(PREFETCH_DEPTH);
+		try {
+			V3dRawImageStream.Slice slice;
+			while ( (slice = prefetcher.take()) != null ) {
+				ByteBuffer buffer = slice.getByteBuffer().duplicate();
+				buffer.clear();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				prefetcher.release(slice);
+			}
+		}
+		finally {
+			prefetcher.close();
+		}
+	}
+	
+	/**
+	 * @return the target format of one input: the other format, unless
+	 * <code>forcedTarget</code> names one
+	 */
+	static V3dRawImageStream.Format getTarget(File inputFile, V3dRawImageStream.Format forcedTarget) {
+		if (forcedTarget != null)
+			return forcedTarget;
+		String name = inputFile.getName().toLowerCase();
+		if (name.endsWith(GZIP_EXTENSION))
+			name = name.substring(0, name.length() - GZIP_EXTENSION.length());
+		return name.endsWith(PBD_EXTENSION)
+				? V3dRawImageStream.Format.FORMAT_PENG_RAW 
+				: V3dRawImageStream.Format.FORMAT_MURPHY_PBD;
+	}
+	
+	/**
+	 * Finds the files of a batch that should be left alone: those already 
+	 * in the target format, those whose output is another input of the 
+	 * batch (even when forced), those whose output an earlier input 
+	 * already writes, and, unless <code>force</code> is true, those whose 
+	 * output exists.
+	 * 
+	 * @return the reason for skipping each skipped file, in batch order
+	 */
+	static Map<File, String> findSkipped(List<File> files, V3dRawImageStream.Format forcedTarget, 
+			File outputDirectory, boolean force) 
+	{
+		Map<Path, File> inputs = new HashMap<Path, File>();
+		for (File file : files)
+			inputs.put(getCanonicalPath(file), file);
+		Map<Path, File> outputs = new HashMap<Path, File>();
+		Map<File, String> skipped = new LinkedHashMap<File, String>();
+		for (File file : files) {
+			File outputFile = getOutputFile(file, getTarget(file, forcedTarget), outputDirectory);
+			if (outputFile == null) {
+				skipped.put(file, "already in the target format");
+				continue;
+			}
+			Path output = getCanonicalPath(outputFile);
+			if (inputs.containsKey(output))
+				skipped.put(file, "output " + outputFile.getName() + " is another input");
+			else if (outputs.containsKey(output))
+				skipped.put(file, "output " + outputFile.getName() + " is also written from " + outputs.get(output));
+			else if ( !force && outputFile.exists() )
+				skipped.put(file, "output " + outputFile.getName() + " exists; use -force to replace it");
+			else
+				outputs.put(output, file);
+		}
+		return skipped;
+	}
+	
+	private static Path getCanonicalPath(File file) {
+		try {
+			return file.getCanonicalFile().toPath();
+		}
+		catch (IOException exc) {
+			return file.getAbsoluteFile().toPath().normalize();
+		}
+	}
+	
+	private static boolean isSameFile(File a, File b) {
+		return getCanonicalPath(a).equals(getCanonicalPath(b));
+	}
+	
+	/**
+	 * @return the output file for one input, or null if the input is 
+	 * already in the target format. Gzipped inputs are always converted, 
+	 * if only to inflate them.
+	 */
+	static File getOutputFile(File inputFile, V3dRawImageStream.Format target, File outputDirectory) {
+		String name = inputFile.getName();
+		String extension = (target == V3dRawImageStream.Format.FORMAT_PENG_RAW) 
+				? RAW_EXTENSION : PBD_EXTENSION;
+		boolean gzipped = name.toLowerCase().endsWith(GZIP_EXTENSION);
+		if (gzipped)
+			name = name.substring(0, name.length() - GZIP_EXTENSION.length());
+		else if (name.toLowerCase().endsWith(extension))
+			return null;
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		File directory = (outputDirectory != null) ? outputDirectory : inputFile.getAbsoluteFile().getParentFile();
+		return new File(directory, name + extension);
+	}
+	
+	/**
+	 * Expands command line arguments into a list of volume files.
+	 */
+	static List<File> findInputFiles(List<String> args) 
+	throws IOException
+	{
+		List<File> files = new ArrayList<File>();
+		for (String arg : args) {
+			File file = new File(arg);
+			if (file.isDirectory()) {
+				DirectoryStream<Path> entries = Files.newDirectoryStream(file.toPath());
+				try {
+					for (Path entry : entries) {
+						if (isVolumeFile(entry))
+							files.add(entry.toFile());
+					}
+				}
+				finally {
+					entries.close();
+				}
+			}
+			else if (file.exists())
+				files.add(file);
+			else if (arg.matches(".*[*?\\[{].*"))
+				files.addAll(findGlobMatches(arg));
+			else
+				throw new IOException("No such file: " + arg);
+		}
+		return files;
+	}
+	
+	private static List<File> findGlobMatches(String glob) 
+	throws IOException
+	{
+		// Walk from the deepest directory named before any wildcard
+		int wildcard = glob.replaceAll("[*?\\[{].*", "").lastIndexOf(File.separatorChar);
+		Path base = Paths.get(wildcard < 0 ? "." : glob.substring(0, wildcard + 1));
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" 
+				+ (wildcard < 0 ? "./" + glob : glob));
+		// Only "**" matches across directory levels
+		int depth = Integer.MAX_VALUE;
+		if (! glob.contains("**"))
+			depth = glob.substring(wildcard + 1).split("[/\\\\]").length;
+		List<File> files = new ArrayList<File>();
+		Stream<Path> paths = Files.walk(base, depth);
+		try {
+			for (Object entry : paths.toArray()) {
+				Path path = (Path)entry;
+				if (matcher.matches(path) && isVolumeFile(path))
+					files.add(path.toFile());
+			}
+		}
+		finally {
+			paths.close();
+		}
+		return files;
+	}
+	
+	static boolean isVolumeFile(Path path) {
+		String name = path.getFileName().toString().toLowerCase();
+		if (name.endsWith(GZIP_EXTENSION))
+			name = name.substring(0, name.length() - GZIP_EXTENSION.length());
+		return Files.isRegularFile(path) 
+				&& (name.endsWith(RAW_EXTENSION) || name.endsWith(PBD_EXTENSION));
+	}
+	
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		V3dRawImageStream.Format forcedTarget = null;
+		File outputDirectory = null;
+		boolean force = false;
+		List<String> inputs = new ArrayList<String>();
+		try {
+			for (int a = 0; a < args.length; ++a) {
+				if (args[a].equals("-threads"))
+					threads = Integer.parseInt(args[++a]);
+				else if (args[a].equals("-to")) {
+					String to = args[++a];
+					if (to.equals("raw"))
+						forcedTarget = V3dRawImageStream.Format.FORMAT_PENG_RAW;
+					else if (to.equals("pbd"))
+						forcedTarget = V3dRawImageStream.Format.FORMAT_MURPHY_PBD;
+					else
+						throw new IllegalArgumentException(to);
+				}
+				else if (args[a].equals("-out"))
+					outputDirectory = new File(args[++a]);
+				else if (args[a].equals("-force"))
+					force = true;
+				else
+					inputs.add(args[a]);
+			}
+			if ( (threads < 1) || inputs.isEmpty() )
+				throw new IllegalArgumentException();
+		}
+		catch (RuntimeException exc) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		
+		List<File> files;
+		try {
+			files = findInputFiles(inputs);
+		}
+		catch (IOException exc) {
+			System.err.println(exc.getMessage());
+			System.exit(2);
+			return;
+		}
+		System.exit(convertAll(files, forcedTarget, outputDirectory, threads, force) > 0 ? 1 : 0);
+	}
+	
+	/**
+	 * Converts files concurrently without replacing existing files.
+	 */
+	static int convertAll(List<File> files, V3dRawImageStream.Format forcedTarget, 
+			File outputDirectory, int threads) 
+	{
+		return convertAll(files, forcedTarget, outputDirectory, threads, false);
+	}
+	
+	/**
+	 * Converts files concurrently, reporting progress on standard output.
+	 * 
+	 * Files chosen by {@link #findSkipped} are reported and left alone.
+	 * 
+	 * @param forcedTarget target format, or null to switch each file's format
+	 * @param force true to replace existing output files
+	 * @return number of files that failed
+	 */
+	static int convertAll(List<File> files, final V3dRawImageStream.Format forcedTarget, 
+			final File outputDirectory, int threads, final boolean force) 
+	{
+		Map<File, String> skipped = findSkipped(files, forcedTarget, outputDirectory, force);
+		for (Map.Entry<File, String> skip : skipped.entrySet())
+			System.out.println(skip.getKey() + ": skipped, " + skip.getValue());
+		List<File> toConvert = new ArrayList<File>();
+		for (File file : files) {
+			if (! skipped.containsKey(file))
+				toConvert.add(file);
+		}
+		final ForkJoinPool encoderPool = new ForkJoinPool(threads);
+		// Files compress side by side on one pool; share out the slabs one 
+		// file would keep in flight, so memory does not grow with threads^2
+		final ParallelPbdEncoder encoder = new ParallelPbdEncoder(encoderPool);
+		int concurrentFiles = Math.max(1, Math.min(threads, toConvert.size()));
+		encoder.setMaxSlabsInFlight(Math.max(1, 2 * threads / concurrentFiles));
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		long start = System.nanoTime();
+		for (final File inputFile : toConvert) {
+			results.add(workers.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws IOException {
+					V3dRawImageStream.Format target = getTarget(inputFile, forcedTarget);
+					File outputFile = getOutputFile(inputFile, target, outputDirectory);
+					long fileStart = System.nanoTime();
+					long bytes = convert(inputFile, outputFile, target, encoder, force);
+					double seconds = (System.nanoTime() - fileStart) / 1e9;
+					System.out.println(String.format("%s -> %s: %.1f MB in %.2f s (%.1f MB/s)", 
+							inputFile, outputFile.getName(), bytes / 1e6, seconds, bytes / 1e6 / seconds));
+					return bytes;
+				}
+			}));
+		}
+		workers.shutdown();
+		
+		int failures = 0;
+		long totalBytes = 0;
+		for (int i = 0; i < toConvert.size(); ++i) {
+			try {
+				totalBytes += results.get(i).get();
+			}
+			catch (ExecutionException exc) {
+				System.err.println(toConvert.get(i) + ": " + exc.getCause().getMessage());
+				++failures;
+			}
+			catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				System.err.println(toConvert.get(i) + ": interrupted");
+				++failures;
+			}
+		}
+		encoderPool.shutdown();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d converted, %d skipped, %d failed: %.1f MB in %.2f s (%.1f MB/s)", 
+				toConvert.size() - failures, skipped.size(), failures, totalBytes / 1e6, seconds, totalBytes / 1e6 / seconds));
+		return failures;
+	}
+}
@@ -0,0 +1,283 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Lists the metadata of every Vaa3D volume under some directories.
+ * 
+ * Usage: Vaa3dCatalog [-threads N] [-json] [-out file] directory...
+ * 
+ * Only file headers are read, with <code>V3dRawHeader.probe</code>, on a 
+ * pool of threads, so even archives of many thousands of volumes are 
+ * listed quickly. The catalog is written as CSV, or as JSON with "-json", 
+ * sorted by path. Files whose header cannot be read are listed with the 
+ * reason, and make the exit status 1.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class Vaa3dCatalog 
+{
+	private static final String USAGE = 
+			"Usage: Vaa3dCatalog [-threads N] [-json] [-out file] directory...";
+	
+	/**
+	 * One line of the catalog.
+	 */
+	public static final class Entry 
+	{
+		private final File file;
+		private final long fileLength;
+		private final V3dRawHeader header; // null if unreadable
+		private final String error; // null if readable
+		
+		Entry(File file, long fileLength, V3dRawHeader header, String error) {
+			this.file = file;
+			this.fileLength = fileLength;
+			this.header = header;
+			this.error = error;
+		}
+		
+		public File getFile() {
+			return file;
+		}
+		
+		public long getFileLength() {
+			return fileLength;
+		}
+		
+		/**
+		 * @return the file's metadata, or null if its header could not be read
+		 */
+		public V3dRawHeader getHeader() {
+			return header;
+		}
+		
+		public String getError() {
+			return error;
+		}
+	}
+	
+	/**
+	 * Probes every .v3draw and .v3dpbd file, gzipped or not, below the given 
+	 * directories.
+	 * 
+	 * @return one entry per file, sorted by path
+	 */
+	public static List<Entry> scan(List<File> directories, int threads) 
+	throws IOException
+	{
+		List<File> files = new ArrayList<File>();
+		for (File directory : directories) {
+			Stream<Path> paths = Files.walk(directory.toPath());
+			try {
+				for (Object entry : paths.toArray()) {
+					if (Vaa3dBatchConverter.isVolumeFile((Path)entry))
+						files.add(((Path)entry).toFile());
+				}
+			}
+			finally {
+				paths.close();
+			}
+		}
+		Collections.sort(files);
+		
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		List<Future<Entry>> results = new ArrayList<Future<Entry>>();
+		for (final File file : files) {
+			results.add(workers.submit(new Callable<Entry>() {
+				@Override
+				public Entry call() {
+					try {
+						return new Entry(file, file.length(), V3dRawHeader.probe(file), null);
+					}
+					catch (IOException exc) {
+						return new Entry(file, file.length(), null, exc.getMessage());
+					}
+				}
+			}));
+		}
+		workers.shutdown();
+		List<Entry> entries = new ArrayList<Entry>();
+		try {
+			for (Future<Entry> result : results)
+				entries.add(result.get());
+		}
+		catch (InterruptedException exc) {
+			workers.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while scanning", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new IOException(exc.getCause());
+		}
+		return entries;
+	}
+	
+	public static void writeCsv(List<Entry> entries, Writer out) 
+	throws IOException
+	{
+		out.write("path,format,byte_order,bits,size_x,size_y,size_z,size_c,gzipped,file_bytes,error\n");
+		for (Entry entry : entries) {
+			out.write(quoteCsv(entry.file.getPath()));
+			V3dRawHeader h = entry.header;
+			if (h != null) {
+				out.write("," + getFormatName(h) + "," + h.getByteOrder() + "," + (8 * h.getPixelBytes()));
+				for (int d = 0; d < 4; ++d)
+					out.write("," + h.getDimension(d));
+				out.write("," + h.isGzipped());
+			}
+			else
+				out.write(",,,,,,,,");
+			out.write("," + entry.fileLength + ",");
+			if (entry.error != null)
+				out.write(quoteCsv(entry.error));
+			out.write("\n");
+		}
+	}
+	
+	public static void writeJson(List<Entry> entries, Writer out) 
+	throws IOException
+	{
+		out.write("[");
+		for (int i = 0; i < entries.size(); ++i) {
+			Entry entry = entries.get(i);
+			out.write(i == 0 ? "\n" : ",\n");
+			out.write("  {\"path\": " + quoteJson(entry.file.getPath()));
+			V3dRawHeader h = entry.header;
+			if (h != null) {
+				out.write(", \"format\": \"" + getFormatName(h) + "\""
+						+ ", \"byte_order\": \"" + h.getByteOrder() + "\""
+						+ ", \"bits\": " + (8 * h.getPixelBytes())
+						+ ", \"size\": [" + h.getDimension(0) + ", " + h.getDimension(1) 
+						+ ", " + h.getDimension(2) + ", " + h.getDimension(3) + "]"
+						+ ", \"gzipped\": " + h.isGzipped());
+			}
+			out.write(", \"file_bytes\": " + entry.fileLength);
+			if (entry.error != null)
+				out.write(", \"error\": " + quoteJson(entry.error));
+			out.write("}");
+		}
+		out.write("\n]\n");
+	}
+	
+	private static String getFormatName(V3dRawHeader header) {
+		switch (header.getFormat()) {
+		case FORMAT_PENG_RAW: return "v3draw";
+		case FORMAT_MURPHY_PBD: return "v3dpbd";
+		default: return "myers_pbd";
+		}
+	}
+	
+	private static String quoteCsv(String text) {
+		if (! text.matches("(?s).*[,\"\\n\\r].*"))
+			return text;
+		return "\"" + text.replace("\"", "\"\"") + "\"";
+	}
+	
+	private static String quoteJson(String text) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char ch : text.toCharArray()) {
+			if ( (ch == '"') || (ch == '\\') )
+				quoted.append('\\').append(ch);
+			else if (ch < 0x20)
+				quoted.append(String.format("\\u%04x", (int)ch));
+			else
+				quoted.append(ch);
+		}
+		return quoted.append('"').toString();
+	}
+	
+	public static void main(String[] args) {
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		boolean json = false;
+		File outputFile = null;
+		List<File> directories = new ArrayList<File>();
+		try {
+			for (int a = 0; a < args.length; ++a) {
+				if (args[a].equals("-threads"))
+					threads = Integer.parseInt(args[++a]);
+				else if (args[a].equals("-json"))
+					json = true;
+				else if (args[a].equals("-out"))
+					outputFile = new File(args[++a]);
+				else
+					directories.add(new File(args[a]));
+			}
+			if ( (threads < 1) || directories.isEmpty() )
+				throw new IllegalArgumentException();
+		}
+		catch (RuntimeException exc) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		
+		int failures = 0;
+		try {
+			long start = System.currentTimeMillis();
+			List<Entry> entries = scan(directories, threads);
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+					(outputFile != null) ? Files.newOutputStream(outputFile.toPath()) : System.out, 
+					StandardCharsets.UTF_8));
+			if (json)
+				writeJson(entries, out);
+			else
+				writeCsv(entries, out);
+			out.flush();
+			if (outputFile != null)
+				out.close();
+			for (Entry entry : entries) {
+				if (entry.error != null)
+					++failures;
+			}
+			System.err.println(entries.size() + " volumes cataloged, " + failures + " unreadable, in " 
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (IOException exc) {
+			System.err.println(exc.getMessage());
+			System.exit(1);
+		}
+		if (failures > 0)
+			System.exit(1);
+	}
+}
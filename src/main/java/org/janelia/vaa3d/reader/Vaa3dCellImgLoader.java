@@ -0,0 +1,284 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Exposes a .v3draw or .v3dpbd file as a lazily loaded ImgLib2 image,
+ * so ImgLib2 algorithms and viewers can work on volumes larger than the 
+ * Java heap.
+ * 
+ * The image has four axes, X, Y, Z and channel, and is divided into 
+ * cells that are read from the file the first time they are accessed.
+ * By default each cell is a band of whole rows of one XY plane of one 
+ * channel, of at most 4 MB and at most an eighth of the cache. Loaded cells are 
+ * kept in a bounded least-recently-used cache, or, with a cache size of 
+ * zero, held by soft references until the garbage collector needs the
+ * memory.
+ * 
+ * Cells are read with <code>V3dRawImageStream.readSliceRegion</code>,
+ * straight into the cell's own array.
+ * Uncompressed files are read at each row's offset. Compressed files are
+ * indexed once when the loader first opens them, and the index is saved 
+ * as a sidecar file where the directory allows, so any plane can be 
+ * decoded without decoding those before it.
+ * Several threads may load cells at once; each borrows its own stream.
+ * 
+ * The loader must stay open while its images are in use.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class Vaa3dCellImgLoader implements Closeable 
+{
+	public static final long DEFAULT_CACHE_BYTES = 256L << 20;
+	public static final int DEFAULT_CELL_BYTES = 4 << 20;
+	// at least this many default cells fit in a bounded cache
+	private static final int MIN_CACHED_CELLS = 8;
+	
+	private final File file;
+	private final V3dRawHeader header;
+	private final PbdSliceIndex sliceIndex; // for compressed files
+	private final BlockingQueue<V3dRawImageStream> idleStreams = 
+			new LinkedBlockingQueue<V3dRawImageStream>();
+	private final List<V3dRawImageStream> openStreams = new ArrayList<V3dRawImageStream>();
+	private int[] cellDimensions; // null for the default, sized to the cache
+	private long cacheBytes = DEFAULT_CACHE_BYTES;
+	private boolean closed = false;
+	
+	/**
+	 * @param file .v3draw or .v3dpbd volume image
+	 * @throws IOException
+	 */
+	public Vaa3dCellImgLoader(File file) 
+	throws IOException
+	{
+		this.file = file;
+		V3dRawImageStream stream = new V3dRawImageStream(file);
+		header = stream.getHeader();
+		try {
+			int pixelBytes = header.getPixelBytes();
+			if ( (pixelBytes != 1) && (pixelBytes != 2) && (pixelBytes != 4) )
+				throw new IOException("Unsupported number of bytes per pixel: " + pixelBytes);
+			if ( (stream.getFormat() == V3dRawImageStream.Format.FORMAT_MURPHY_PBD)
+					&& (stream.getSliceIndex() == null) && !stream.isGzipped() )
+				stream.setSliceIndex(PbdSliceIndex.buildAndSave(file));
+		}
+		catch (IOException exc) {
+			stream.close();
+			throw exc;
+		}
+		sliceIndex = stream.getSliceIndex();
+		openStreams.add(stream);
+		idleStreams.add(stream);
+	}
+	
+	public V3dRawHeader getHeader() {
+		return header;
+	}
+	
+	/**
+	 * Sets the size of each cell of images created afterwards. Cells
+	 * always hold a single channel.
+	 */
+	public void setCellDimensions(int sizeX, int sizeY, int sizeZ) {
+		if ( (sizeX < 1) || (sizeY < 1) || (sizeZ < 1) )
+			throw new IllegalArgumentException("Cell dimensions must be positive");
+		V3dRawImageStream.toArrayLength((long)sizeX * sizeY * sizeZ * header.getPixelBytes(), "Cell");
+		cellDimensions = new int[] {sizeX, sizeY, sizeZ, 1};
+	}
+	
+	/**
+	 * 
+	 * @return the dimensions set with setCellDimensions, or else the 
+	 * default: as many whole rows as fit in the default cell size
+	 */
+	public int[] getCellDimensions() {
+		if (cellDimensions != null)
+			return cellDimensions.clone();
+		long cellBytes = DEFAULT_CELL_BYTES;
+		if (cacheBytes > 0)
+			cellBytes = Math.min(cellBytes, cacheBytes / MIN_CACHED_CELLS);
+		int pixelBytes = header.getPixelBytes();
+		int sizeX = (int)Math.max(1, Math.min(header.getDimension(0), cellBytes / pixelBytes));
+		int sizeY = (int)Math.max(1, Math.min(header.getDimension(1), 
+				cellBytes / ((long)sizeX * pixelBytes)));
+		return new int[] {sizeX, sizeY, 1, 1};
+	}
+	
+	/**
+	 * Sets the cache size of images created afterwards.
+	 * 
+	 * @param cacheBytes approximate memory to spend on loaded cells, 
+	 * keeping the most recently used; at least one cell is always kept.
+	 * Zero keeps cells by soft reference instead, bounded only by the heap.
+	 */
+	public void setCacheBytes(long cacheBytes) {
+		if (cacheBytes < 0)
+			throw new IllegalArgumentException("Cache size cannot be negative");
+		this.cacheBytes = cacheBytes;
+	}
+	
+	public long getCacheBytes() {
+		return cacheBytes;
+	}
+	
+	/**
+	 * Creates a lazily loaded image of the whole volume.
+	 * 
+	 * The pixel type follows the file: UnsignedByteType, UnsignedShortType
+	 * or FloatType.
+	 * 
+	 * @return X, Y, Z, channel image
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public <T extends NativeType<T>> CachedCellImg<T, ?> createImg() {
+		long[] dimensions = new long[4];
+		for (int d = 0; d < 4; ++d)
+			dimensions[d] = header.getDimension(d);
+		int[] cellDimensions = getCellDimensions();
+		ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions(cellDimensions);
+		if (cacheBytes > 0) {
+			long cellBytes = (long)header.getPixelBytes() * cellDimensions[0] 
+					* cellDimensions[1] * cellDimensions[2];
+			options = options.cacheType(CacheType.BOUNDED)
+					.maxCacheSize(Math.max(1, cacheBytes / cellBytes));
+		}
+		else
+			options = options.cacheType(CacheType.SOFTREF);
+		NativeType type;
+		switch (header.getPixelBytes()) {
+		case 1:
+			type = new UnsignedByteType();
+			break;
+		case 2:
+			type = new UnsignedShortType();
+			break;
+		default:
+			type = new FloatType();
+		}
+		CellLoader<T> loader = new CellLoader<T>() {
+			@Override
+			public void load(SingleCellArrayImg<T, ?> cell) 
+			throws Exception
+			{
+				loadCell(cell);
+			}
+		};
+		return new ReadOnlyCachedCellImgFactory(options).create(dimensions, (T)type, loader);
+	}
+	
+	/**
+	 * Fills one cell, one plane of one channel at a time.
+	 */
+	private void loadCell(SingleCellArrayImg<?, ?> cell) 
+	throws IOException
+	{
+		int x = (int)cell.min(0), y = (int)cell.min(1);
+		int z0 = (int)cell.min(2), c0 = (int)cell.min(3);
+		int width = (int)cell.dimension(0), height = (int)cell.dimension(1);
+		int depth = (int)cell.dimension(2), channels = (int)cell.dimension(3);
+		Object storage = cell.update(null).getCurrentStorageArray();
+		int pixelBytes = header.getPixelBytes();
+		int planePixels = width * height; // cell sizes are checked in setCellDimensions
+		
+		V3dRawImageStream stream = borrowStream();
+		try {
+			// In file order: channel by channel
+			for (int c = 0; c < channels; ++c) {
+				for (int z = 0; z < depth; ++z) {
+					int offset = (c * depth + z) * planePixels;
+					if (pixelBytes == 1)
+						stream.readSliceRegion(z0 + z, c0 + c, x, y, width, height, 
+								(byte[])storage, offset);
+					else if (pixelBytes == 2)
+						stream.readSliceRegion(z0 + z, c0 + c, x, y, width, height, 
+								(short[])storage, offset);
+					else
+						stream.readSliceRegion(z0 + z, c0 + c, x, y, width, height, 
+								(float[])storage, offset);
+				}
+			}
+		}
+		finally {
+			idleStreams.add(stream);
+		}
+	}
+	
+	/**
+	 * @return a stream no other thread is using, opening one if need be
+	 */
+	private V3dRawImageStream borrowStream() 
+	throws IOException
+	{
+		V3dRawImageStream stream = idleStreams.poll();
+		if (stream != null)
+			return stream;
+		synchronized (openStreams) {
+			if (closed)
+				throw new IOException("Vaa3d cell loader is closed");
+			stream = new V3dRawImageStream(file);
+			if (sliceIndex != null)
+				stream.setSliceIndex(sliceIndex);
+			openStreams.add(stream);
+		}
+		return stream;
+	}
+	
+	/**
+	 * Closes the file. Cells not yet loaded can no longer be read.
+	 */
+	@Override
+	public void close() 
+	throws IOException
+	{
+		synchronized (openStreams) {
+			closed = true;
+			for (V3dRawImageStream stream : openStreams)
+				stream.close();
+			openStreams.clear();
+			idleStreams.clear();
+		}
+	}
+}
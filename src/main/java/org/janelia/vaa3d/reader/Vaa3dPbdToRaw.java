@@ -1,43 +1,35 @@
 package org.janelia.vaa3d.reader;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * Convert a compressed v3dpbd file to an uncompressed v3draw file
+ * Convert a compressed v3dpbd file to an uncompressed v3draw file.
+ * 
+ * Kept for existing scripts; Vaa3dBatchConverter converts many files,
+ * in either direction.
+ * 
  * @author brunsc
  *
  */
 public class Vaa3dPbdToRaw {
 
     /**
-     * @param args
+     * @param args input .v3dpbd file and output .v3draw file
      */
     public static void main(String[] args) {
-        String fileNameIn = args[0];
-        String fileNameOut = args[1];
+        if (args.length != 2) {
+            System.err.println("Usage: Vaa3dPbdToRaw input.v3dpbd output.v3draw");
+            System.exit(2);
+        }
         try {
-            FileInputStream in = new FileInputStream(fileNameIn);
-            FileOutputStream out = new FileOutputStream(fileNameOut);
-            
-            V3dRawImageStream v3d = new V3dRawImageStream(in);
-            v3d.writeHeader(out, V3dRawImageStream.Format.FORMAT_PENG_RAW);
-            int sliceCount = v3d.getDimension(2) * v3d.getDimension(3); // z * c
-            for (int s = 0; s < sliceCount; ++s) {
-                v3d.loadNextSlice();
-                ByteBuffer bb = v3d.getCurrentSlice().getByteBuffer();
-                out.write(bb.array(), 0, bb.capacity());
-            }
-            
-            in.close();
-            out.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            // The output is named explicitly, so it may replace an older file
+            Vaa3dBatchConverter.convert(new File(args[0]), new File(args[1]), 
+                    V3dRawImageStream.Format.FORMAT_PENG_RAW, ForkJoinPool.commonPool(), true);
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println(args[0] + ": " + e.getMessage());
+            System.exit(1);
         }
     }
 
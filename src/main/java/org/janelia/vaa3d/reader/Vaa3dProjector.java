@@ -0,0 +1,259 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import ij.IJ;
+import ij.macro.Interpreter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes Z projections of every channel of a volume, streaming the 
+ * slices instead of loading the whole stack.
+ * 
+ * Only two decoded planes and one projection accumulator are held at a
+ * time, so the memory needed does not grow with the number of slices.
+ * The calling thread decodes slices in file order, while worker threads
+ * fold the previous slice into the accumulator, one strip of rows each.
+ * 
+ * Maximum and minimum projections keep the pixel type of the volume;
+ * mean and sum projections are 32-bit float, as in ImageJ's ZProjector.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class Vaa3dProjector 
+{
+	public enum Method {MAX, MIN, MEAN, SUM}
+	
+	private final Method method;
+	private int threadCount;
+	
+	public Vaa3dProjector(Method method) {
+		this.method = method;
+		threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	}
+	
+	public Method getMethod() {
+		return method;
+	}
+	
+	/**
+	 * @param threadCount number of threads folding slices into the 
+	 * projection, besides the thread decoding them
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1)
+			throw new IllegalArgumentException("Thread count must be positive");
+		this.threadCount = threadCount;
+	}
+	
+	/**
+	 * Projects every channel of a volume along Z.
+	 * 
+	 * Reads each remaining slice of the stream once, so the stream must
+	 * not have delivered any slices yet.
+	 * 
+	 * @return one projected plane per channel: byte[], short[] or float[]
+	 * @throws IOException
+	 */
+	public Object[] project(V3dRawImageStream sliceStream) 
+	throws IOException
+	{
+		final int sizeX = sliceStream.getDimension(0);
+		final int sizeY = sliceStream.getDimension(1);
+		int sizeZ = sliceStream.getDimension(2);
+		int n_channels = sliceStream.getDimension(3);
+		int pixelBytes = sliceStream.getPixelBytes();
+		if ( (pixelBytes != 1) && (pixelBytes != 2) && (pixelBytes != 4) )
+			throw new IllegalArgumentException("Unsupported number of bytes per pixel: " 
+					+ pixelBytes);
+		final int planePixels = V3dRawImageStream.toArrayLength((long)sizeX * sizeY, "Slice");
+		Object[] planes = {createPlane(pixelBytes, planePixels), 
+				createPlane(pixelBytes, planePixels)};
+		Object[] projections = new Object[n_channels];
+		
+		ExecutorService workers = Executors.newFixedThreadPool(threadCount);
+		List<Future<Object>> pending = new ArrayList<Future<Object>>();
+		try {
+			for (int c = 0; c < n_channels; ++c) {
+				final Object accumulator = createAccumulator(pixelBytes, planePixels);
+				for (int z = 0; z < sizeZ; ++z) {
+					// Decode while the workers fold the other plane
+					final Object plane = planes[z % 2];
+					readSliceInto(sliceStream, plane);
+					finish(pending);
+					int stripRows = (sizeY + threadCount - 1) / threadCount;
+					for (int y = 0; y < sizeY; y += stripRows) {
+						final int begin = y * sizeX;
+						final int end = Math.min(sizeY, y + stripRows) * sizeX;
+						pending.add(workers.submit(new Callable<Object>() {
+							@Override
+							public Object call() {
+								fold(plane, accumulator, begin, end);
+								return null;
+							}
+						}));
+					}
+					if (!Interpreter.isBatchMode())
+						IJ.showProgress(c * sizeZ + z + 1, n_channels * sizeZ);
+				}
+				finish(pending);
+				projections[c] = toProjection(accumulator, sizeZ);
+			}
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Projection interrupted", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new IOException(exc.getCause());
+		}
+		finally {
+			workers.shutdownNow();
+		}
+		return projections;
+	}
+	
+	private static void finish(List<Future<Object>> pending) 
+	throws InterruptedException, ExecutionException
+	{
+		for (Future<Object> result : pending)
+			result.get();
+		pending.clear();
+	}
+	
+	private static Object createPlane(int pixelBytes, int size) {
+		switch (pixelBytes) {
+		case 1: return new byte[size];
+		case 2: return new short[size];
+		default: return new float[size];
+		}
+	}
+	
+	private static void readSliceInto(V3dRawImageStream sliceStream, Object plane) 
+	throws IOException
+	{
+		if (plane instanceof byte[])
+			sliceStream.readSliceInto((byte[])plane);
+		else if (plane instanceof short[])
+			sliceStream.readSliceInto((short[])plane);
+		else
+			sliceStream.readSliceInto((float[])plane);
+	}
+	
+	/**
+	 * Creates the running projection of one channel: a plane of the 
+	 * volume's pixel type for MAX and MIN, or a double sum otherwise.
+	 */
+	private Object createAccumulator(int pixelBytes, int size) {
+		if ( (method == Method.MEAN) || (method == Method.SUM) )
+			return new double[size];
+		Object accumulator = createPlane(pixelBytes, size);
+		if (method == Method.MIN) {
+			if (accumulator instanceof byte[])
+				Arrays.fill((byte[])accumulator, (byte)0xff);
+			else if (accumulator instanceof short[])
+				Arrays.fill((short[])accumulator, (short)0xffff);
+			else
+				Arrays.fill((float[])accumulator, Float.POSITIVE_INFINITY);
+		}
+		else if (accumulator instanceof float[])
+			Arrays.fill((float[])accumulator, Float.NEGATIVE_INFINITY);
+		return accumulator;
+	}
+	
+	/**
+	 * Folds pixels <code>begin</code> to <code>end</code> of one plane
+	 * into the accumulator. Integer pixels are unsigned.
+	 */
+	private void fold(Object plane, Object accumulator, int begin, int end) {
+		if (accumulator instanceof double[]) {
+			double[] sum = (double[])accumulator;
+			if (plane instanceof byte[]) {
+				byte[] p = (byte[])plane;
+				for (int i = begin; i < end; ++i)
+					sum[i] += p[i] & 0xff;
+			}
+			else if (plane instanceof short[]) {
+				short[] p = (short[])plane;
+				for (int i = begin; i < end; ++i)
+					sum[i] += p[i] & 0xffff;
+			}
+			else {
+				float[] p = (float[])plane;
+				for (int i = begin; i < end; ++i)
+					sum[i] += p[i];
+			}
+			return;
+		}
+		boolean max = (method == Method.MAX);
+		if (plane instanceof byte[]) {
+			byte[] p = (byte[])plane;
+			byte[] a = (byte[])accumulator;
+			for (int i = begin; i < end; ++i) {
+				int v = p[i] & 0xff;
+				if (max ? (v > (a[i] & 0xff)) : (v < (a[i] & 0xff)))
+					a[i] = p[i];
+			}
+		}
+		else if (plane instanceof short[]) {
+			short[] p = (short[])plane;
+			short[] a = (short[])accumulator;
+			for (int i = begin; i < end; ++i) {
+				int v = p[i] & 0xffff;
+				if (max ? (v > (a[i] & 0xffff)) : (v < (a[i] & 0xffff)))
+					a[i] = p[i];
+			}
+		}
+		else {
+			float[] p = (float[])plane;
+			float[] a = (float[])accumulator;
+			for (int i = begin; i < end; ++i) {
+				if (max ? (p[i] > a[i]) : (p[i] < a[i])) // skips NaN
+					a[i] = p[i];
+			}
+		}
+	}
+	
+	private Object toProjection(Object accumulator, int sizeZ) {
+		if (! (accumulator instanceof double[]))
+			return accumulator;
+		double[] sum = (double[])accumulator;
+		double scale = ( (method == Method.MEAN) && (sizeZ > 0) ) ? 1.0 / sizeZ : 1.0;
+		float[] result = new float[sum.length];
+		for (int i = 0; i < sum.length; ++i)
+			result[i] = (float)(sum[i] * scale);
+		return result;
+	}
+}
@@ -0,0 +1,255 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.macro.Interpreter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads every plane of a volume into an ImageJ stack, measuring the 
+ * intensity statistics of each channel along the way.
+ * 
+ * Streamed volumes are read on the calling thread alone: slices are 
+ * decoded, in file order, straight into the pixel arrays that the stack 
+ * will keep, and the stream counts their statistics in the same pass, so 
+ * no per-plane work is left to hand to other threads.
+ * 
+ * Memory-mapped planes are copied into pixel arrays by worker threads, 
+ * which count them while copying. Each worker keeps its own statistics 
+ * per channel, merged into the stream's totals once at the end.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+class Vaa3dStackLoader 
+{
+	private V3dRawImageStream sliceStream;
+	private MappedV3dRawImage mappedImage;
+	private int threadCount;
+	// Pixels copied from a mapped plane between statistics updates
+	private static final int COPY_PIXELS = 16384;
+	
+	/**
+	 * @param sliceStream source of the volume header, and of the voxels 
+	 * too unless <code>mappedImage</code> is given
+	 * @param mappedImage optional memory mapping of the same volume
+	 */
+	Vaa3dStackLoader(V3dRawImageStream sliceStream, MappedV3dRawImage mappedImage) {
+		this.sliceStream = sliceStream;
+		this.mappedImage = mappedImage;
+		threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	}
+	
+	/**
+	 * Fills a stack with every plane of the volume.
+	 * 
+	 * Afterwards <code>sliceStream.getChannelStatistics()</code> covers 
+	 * every plane loaded.
+	 * 
+	 * @param stack stack of <code>n_channels * n_slices</code> planes, 
+	 * with channels varying fastest
+	 * @throws IOException
+	 */
+	void load(final ImageStack stack) 
+	throws IOException
+	{
+		if (mappedImage == null)
+			loadStreamed(stack);
+		else
+			loadMapped(stack);
+	}
+	
+	/**
+	 * Decodes every slice on the calling thread, with the stream counting
+	 * statistics as it decodes.
+	 */
+	private void loadStreamed(ImageStack stack) 
+	throws IOException
+	{
+		int n_slices = sliceStream.getDimension(2);
+		int n_channels = sliceStream.getDimension(3);
+		boolean wasCollecting = sliceStream.isCollectingStatistics();
+		sliceStream.setCollectStatistics(true);
+		try {
+			for (int c = 0; c < n_channels; ++c) {
+				for (int z = 0; z < n_slices; ++z) {
+					stack.setPixels(readNextPixels(), z * n_channels + c + 1);
+	    	    	if (!Interpreter.isBatchMode()) {
+	    	    		IJ.showProgress(c * n_slices + z, n_channels*n_slices);
+	    	    	}
+				}
+			}
+		}
+		finally {
+			sliceStream.setCollectStatistics(wasCollecting);
+		}
+	}
+	
+	/**
+	 * Copies mapped planes into pixel arrays on the worker threads.
+	 */
+	private void loadMapped(final ImageStack stack) 
+	throws IOException
+	{
+		final int n_slices = sliceStream.getDimension(2);
+		final int n_channels = sliceStream.getDimension(3);
+		// Statistics of mapped planes, one set per worker thread
+		final List<ChannelStatistics[]> workerStatistics = 
+				Collections.synchronizedList(new ArrayList<ChannelStatistics[]>());
+		final ThreadLocal<ChannelStatistics[]> localStatistics = new ThreadLocal<ChannelStatistics[]>() {
+			@Override
+			protected ChannelStatistics[] initialValue() {
+				ChannelStatistics[] statistics = new ChannelStatistics[n_channels];
+				for (int c = 0; c < n_channels; ++c)
+					statistics[c] = new ChannelStatistics(sliceStream.getPixelBytes());
+				workerStatistics.add(statistics);
+				return statistics;
+			}
+		};
+		
+		ExecutorService workers = Executors.newFixedThreadPool(threadCount);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		try {
+			for (int c = 0; c < n_channels; ++c) {
+				for (int z = 0; z < n_slices; ++z) {
+					// workers copy straight from the mapped plane
+					final ByteBuffer bb = mappedImage.getPlane(z, c);
+					final int planeIndex = c * n_slices + z;
+					final int channel = c;
+					final int stackIndex = z * n_channels + c + 1;
+					results.add(workers.submit(new Callable<Object>() {
+						@Override
+						public Object call() {
+							stack.setPixels(toPixels(bb, localStatistics.get()[channel]), stackIndex);
+							return null;
+						}
+					}));
+	    	    	if (!Interpreter.isBatchMode()) {
+	    	    		IJ.showProgress(planeIndex, n_channels*n_slices);
+	    	    	}
+				}
+			}
+			for (Future<Object> result : results)
+				result.get();
+			ChannelStatistics[] channelStatistics = sliceStream.getChannelStatistics();
+			for (ChannelStatistics[] statistics : workerStatistics) {
+				for (int c = 0; c < n_channels; ++c)
+					channelStatistics[c].merge(statistics[c]);
+			}
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Volume load interrupted", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new IOException(exc.getCause());
+		}
+		finally {
+			workers.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Decodes the next slice of the stream straight into a new pixel array.
+	 */
+	private Object readNextPixels() 
+	throws IOException
+	{
+		int nSlicePixels = V3dRawImageStream.toArrayLength(
+				(long)sliceStream.getDimension(0) * sliceStream.getDimension(1), "Slice");
+		switch (sliceStream.getPixelBytes()) {
+		case 1:
+			byte[] ar8 = new byte[nSlicePixels];
+			sliceStream.readSliceInto(ar8);
+			return ar8;
+		case 2:
+			short[] ar16 = new short[nSlicePixels];
+			sliceStream.readSliceInto(ar16);
+			return ar16;
+		case 4:
+			float[] ar32 = new float[nSlicePixels];
+			sliceStream.readSliceInto(ar32);
+			return ar32;
+		default:
+			throw new IllegalArgumentException("Unsupported number of bytes per pixel: " 
+					+ sliceStream.getPixelBytes());
+		}
+	}
+	
+	/**
+	 * Copies a mapped plane into a new pixel array, counting each piece 
+	 * into <code>statistics</code> as it is copied.
+	 */
+	private Object toPixels(ByteBuffer bb, ChannelStatistics statistics) {
+		bb.rewind();
+		int nSlicePixels = V3dRawImageStream.toArrayLength(
+				(long)sliceStream.getDimension(0) * sliceStream.getDimension(1), "Slice");
+		switch (sliceStream.getPixelBytes()) {
+		case 1:
+			byte[] ar8 = new byte[nSlicePixels];
+			for (int pos = 0; pos < nSlicePixels; pos += COPY_PIXELS) {
+				int count = Math.min(COPY_PIXELS, nSlicePixels - pos);
+				bb.get(ar8, pos, count);
+				statistics.add(ar8, pos, count);
+			}
+			return ar8;
+		case 2:
+			short[] ar16 = new short[nSlicePixels];
+			ShortBuffer sb = bb.asShortBuffer();
+			for (int pos = 0; pos < nSlicePixels; pos += COPY_PIXELS) {
+				int count = Math.min(COPY_PIXELS, nSlicePixels - pos);
+				sb.get(ar16, pos, count);
+				statistics.add(ar16, pos, count);
+			}
+			return ar16;
+		case 4:
+			float[] ar32 = new float[nSlicePixels];
+			FloatBuffer fb = bb.asFloatBuffer();
+			for (int pos = 0; pos < nSlicePixels; pos += COPY_PIXELS) {
+				int count = Math.min(COPY_PIXELS, nSlicePixels - pos);
+				fb.get(ar32, pos, count);
+				statistics.add(ar32, pos, count);
+			}
+			return ar32;
+		default:
+			throw new IllegalArgumentException("Unsupported number of bytes per pixel: " 
+					+ sliceStream.getPixelBytes());
+		}
+	}
+}
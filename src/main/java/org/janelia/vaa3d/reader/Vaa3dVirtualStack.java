@@ -0,0 +1,255 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ImageJ virtual stack backed by a .v3draw or .v3dpbd file.
+ * 
+ * Planes are read only when ImageJ asks for them, and a bounded number of 
+ * recently used planes is cached, so volumes much larger than the Java 
+ * heap can be browsed.
+ * 
+ * Uncompressed files are memory mapped. Compressed files are indexed 
+ * once when the stack is first opened, and the index is saved as a 
+ * sidecar file where the directory allows, so that any plane can then be 
+ * decoded without decoding those before it.
+ * Gzip-wrapped files cannot be indexed, and are inflated again from the
+ * start whenever a plane before the last one read is needed.
+ * 
+ * Stack positions follow the ImageJ hyperstack convention, with channels
+ * varying fastest.
+ * 
+ * Each processor holds its own copy of the plane, so editing it does not
+ * change the cached plane. Close the stack when its image is closed, to
+ * release the file and its memory mapping.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class Vaa3dVirtualStack extends VirtualStack implements Closeable 
+{
+	public static final long DEFAULT_CACHE_BYTES = 256L << 20;
+	
+	private MappedV3dRawImage mappedImage; // for uncompressed files
+	private V3dRawImageStream sliceStream; // for compressed files
+	private int width, height, sizeZ, sizeC, pixelBytes;
+	private Map<Integer, Object> cache;
+	private boolean closed = false;
+	
+	/**
+	 * Opens a virtual stack with a plane cache of about 
+	 * <code>DEFAULT_CACHE_BYTES</code>.
+	 */
+	public Vaa3dVirtualStack(File file) 
+	throws IOException
+	{
+		this(file, DEFAULT_CACHE_BYTES);
+	}
+	
+	/**
+	 * @param file .v3draw or .v3dpbd volume image
+	 * @param cacheBytes approximate memory to spend on cached planes; 
+	 * at least one plane is always cached.
+	 * @throws IOException
+	 */
+	public Vaa3dVirtualStack(File file, long cacheBytes) 
+	throws IOException
+	{
+		super();
+		V3dRawImageStream stream = new V3dRawImageStream(file);
+		try {
+			if ( (stream.getFormat() == V3dRawImageStream.Format.FORMAT_PENG_RAW) 
+					&& !stream.isGzipped() ) {
+				stream.close();
+				stream = null;
+				mappedImage = new MappedV3dRawImage(file);
+				width = mappedImage.getDimension(0);
+				height = mappedImage.getDimension(1);
+				sizeZ = mappedImage.getDimension(2);
+				sizeC = mappedImage.getDimension(3);
+				pixelBytes = mappedImage.getPixelBytes();
+			}
+			else {
+				sliceStream = stream;
+				stream = null; // now closed by close()
+				if ( (sliceStream.getSliceIndex() == null) && !sliceStream.isGzipped() )
+					sliceStream.setSliceIndex(PbdSliceIndex.buildAndSave(file));
+				width = sliceStream.getDimension(0);
+				height = sliceStream.getDimension(1);
+				sizeZ = sliceStream.getDimension(2);
+				sizeC = sliceStream.getDimension(3);
+				pixelBytes = sliceStream.getPixelBytes();
+			}
+			if ( (pixelBytes != 1) && (pixelBytes != 2) && (pixelBytes != 4) )
+				throw new IOException("Unsupported number of bytes per pixel: " + pixelBytes);
+		}
+		catch (IOException exc) {
+			if (stream != null)
+				stream.close();
+			close();
+			throw exc;
+		}
+		
+		final long planeBytes = Math.max(1, (long)width * height * pixelBytes);
+		final int maxCachedPlanes = (int)Math.max(1, Math.min(Integer.MAX_VALUE, cacheBytes / planeBytes));
+		cache = new LinkedHashMap<Integer, Object>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+				return size() > maxCachedPlanes;
+			}
+		};
+	}
+	
+	public int getNChannels() {
+		return sizeC;
+	}
+	
+	public int getNSlices() {
+		return sizeZ;
+	}
+	
+	@Override
+	public int getWidth() {
+		return width;
+	}
+	
+	@Override
+	public int getHeight() {
+		return height;
+	}
+	
+	@Override
+	public int getSize() {
+		return sizeC * sizeZ;
+	}
+	
+	@Override
+	public int getBitDepth() {
+		return 8 * pixelBytes;
+	}
+	
+	@Override
+	public String getSliceLabel(int n) {
+		return null;
+	}
+	
+	@Override
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+	
+	/**
+	 * Returns a copy of one plane, reading it from the file unless it is 
+	 * cached.
+	 * 
+	 * @param n one-based stack position, channels varying fastest
+	 */
+	@Override
+	public synchronized ImageProcessor getProcessor(int n) {
+		if ( (n < 1) || (n > getSize()) )
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		Object pixels = cache.get(n);
+		if (pixels == null) {
+			try {
+				pixels = readPixels((n - 1) / sizeC, (n - 1) % sizeC);
+			}
+			catch (IOException exc) {
+				throw new RuntimeException(exc);
+			}
+			cache.put(n, pixels);
+		}
+		switch (pixelBytes) {
+		case 1:
+			return new ByteProcessor(width, height, ((byte[])pixels).clone(), null);
+		case 2:
+			return new ShortProcessor(width, height, ((short[])pixels).clone(), null);
+		default:
+			return new FloatProcessor(width, height, ((float[])pixels).clone(), null);
+		}
+	}
+	
+	/**
+	 * Closes the file and releases its memory mapping. Cached planes can 
+	 * still be read; other planes can no longer be.
+	 */
+	@Override
+	public synchronized void close() 
+	throws IOException
+	{
+		closed = true;
+		if (sliceStream != null) {
+			sliceStream.close();
+			sliceStream = null;
+		}
+		if (mappedImage != null) {
+			mappedImage.close();
+			mappedImage = null;
+		}
+	}
+	
+	private Object readPixels(int z, int c) 
+	throws IOException
+	{
+		if (closed)
+			throw new IOException("Vaa3d virtual stack is closed");
+		ByteBuffer bb;
+		if (mappedImage != null) {
+			bb = mappedImage.getPlane(z, c);
+		}
+		else {
+			bb = sliceStream.readSlice(z, c).getByteBuffer();
+			bb.rewind();
+		}
+		int nSlicePixels = V3dRawImageStream.toArrayLength((long)width * height, "Slice");
+		switch (pixelBytes) {
+		case 1:
+			byte[] ar8 = new byte[nSlicePixels];
+			bb.get(ar8, 0, nSlicePixels);
+			return ar8;
+		case 2:
+			short[] ar16 = new short[nSlicePixels];
+			bb.asShortBuffer().get(ar16);
+			return ar16;
+		default:
+			float[] ar32 = new float[nSlicePixels];
+			bb.asFloatBuffer().get(ar32);
+			return ar32;
+		}
+	}
+}
@@ -26,27 +26,33 @@ package org.janelia.vaa3d.reader;
 
 import ij.CompositeImage;
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
-import ij.gui.NewImage;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
 import ij.io.OpenDialog;
 import ij.macro.Interpreter;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
-import ij.process.ByteProcessor;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 
 /**
  * Vaa3d_Reader class is a Fiji/ImageJ plugin for loading 
  * .v3draw (uncompressed) and .v3dpbd (compressed) 3D volume images.
+ * Either may also be wrapped in gzip compression, as in .v3draw.gz.
+ *
+ * Run with the argument "virtual" to open a local file as a virtual
+ * stack, which reads planes on demand instead of loading the whole volume.
+ * Run with the argument "crop" to choose a sub-volume to load, 
+ * "preview" for a quick reduced-resolution overview, or "project" for
+ * a Z projection of each channel that never holds the whole stack.
  *
  * Based on example at 
  * http://albert.rierol.net/imagej_programming_tutorials.html#How%20to%20integrate%20a%20new%20file%20format%20reader%20and%20writer
@@ -56,16 +62,44 @@ import java.nio.ByteBuffer;
  */
 public class Vaa3d_Reader extends ImagePlus implements PlugIn {
 	
+	public static final String VIRTUAL_ARG = "virtual";
+	public static final String CROP_ARG = "crop";
+	public static final String PREVIEW_ARG = "preview";
+	public static final String PROJECT_ARG = "project";
+	
 	/**
 	 * ImageJ plugin run() method, called by HandleExtraFileTypes class.
 	 */
 	@Override
 	public void run(String fileName) {
 		// System.out.println("Running Vaa3d_Reader plugin");
+		boolean virtual = VIRTUAL_ARG.equals(fileName);
+		boolean crop = CROP_ARG.equals(fileName);
+		boolean preview = PREVIEW_ARG.equals(fileName);
+		boolean project = PROJECT_ARG.equals(fileName);
+		if (virtual || crop || preview || project)
+			fileName = ""; // ask for the file
 		URL url = getUrl(fileName);
 		if (null == url)
 			return;
-        if (! parse(url)) return;  
+		if (virtual) {
+			File file = getLocalFile(url);
+			if (null == file) {
+				IJ.error("Vaa3d Reader", "Virtual stacks can only be opened from local files.");
+				return;
+			}
+			if (! parseVirtual(file)) return;
+		}
+		else if (crop) {
+			if (! parseRegion(url)) return;
+		}
+		else if (preview) {
+			if (! parsePreview(url)) return;
+		}
+		else if (project) {
+			if (! parseProjection(url)) return;
+		}
+		else if (! parse(url)) return;  
         if (null == fileName || 0 == fileName.trim().length()) 
         	this.show(); // was opened by direct call to the plugin  
                          // not via HandleExtraFileTypes which would  
@@ -89,7 +123,7 @@ public class Vaa3d_Reader extends ImagePlus implements PlugIn {
         // else, ask:
     	// Is there a GUI? You don't know!
     	if (!Interpreter.isBatchMode()) {
-	        OpenDialog od = new OpenDialog("Choose a .v3draw file", null);
+	        OpenDialog od = new OpenDialog("Choose a .v3draw, .v3dpbd or gzipped volume", null);
 	        String dir = od.getDirectory();
 	        if (null == dir)
 	        	return null;
@@ -103,6 +137,22 @@ public class Vaa3d_Reader extends ImagePlus implements PlugIn {
         return null;
     }  
 
+
+    /**
+     * @return the file behind a "file:" URL, or null for other URLs.
+     */
+    private static File getLocalFile(URL url) {
+        if (! "file".equals(url.getProtocol()))
+            return null;
+        try {
+            File file = new File(url.toURI());
+            if (file.isFile())
+                return file;
+        }
+        catch (URISyntaxException exc) {}
+        catch (IllegalArgumentException exc) {}
+        return null;
+    }
   
     /**
      * Reads a volume image and populates this <code>ImagePlus</code>.
@@ -113,84 +163,92 @@ public class Vaa3d_Reader extends ImagePlus implements PlugIn {
     private boolean parse(URL url) {
         // Open file and read header
     	V3dRawImageStream sliceStream;
+        File localFile = getLocalFile(url);
         try {
-            InputStream is = url.openStream();
-    		sliceStream = new V3dRawImageStream(is);
+            if (localFile != null)
+                sliceStream = new V3dRawImageStream(localFile); // read ahead from a channel
+            else
+                sliceStream = new V3dRawImageStream(url.openStream());
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }  
         
+        try {
+            return parseStack(url, localFile, sliceStream);
+        } finally {
+            try {
+                sliceStream.close();
+            } catch (IOException exc) {}
+        }
+    }
+    
+    /**
+     * Loads every plane of an opened volume into this <code>ImagePlus</code>.
+     * 
+     * @return <code>true</code> on success
+     */
+    private boolean parseStack(URL url, File localFile, V3dRawImageStream sliceStream) {
         int width = sliceStream.getDimension(0);
         int height = sliceStream.getDimension(1);
         int n_slices = sliceStream.getDimension(2);
         int n_channels = sliceStream.getDimension(3);
         int bytesPerPixel  = sliceStream.getPixelBytes();
+        if ( (bytesPerPixel != 1) && (bytesPerPixel != 2) && (bytesPerPixel != 4) )
+            return false;
+        // ImageJ holds each plane in one array, and counts planes in an int
+        if ( ((long)width * height * bytesPerPixel > V3dRawImageStream.MAX_ARRAY_LENGTH)
+                || ((long)n_channels * n_slices > Integer.MAX_VALUE) ) {
+            IJ.error("Vaa3d Reader", "This volume is too large for an ImageJ stack.\n"
+                    + "Open a cropped or binned preview of it instead.");
+            return false;
+        }
 
+        // Local uncompressed files are read straight from a file mapping,
+        // skipping the intermediate slice buffer.
+        MappedV3dRawImage mappedImage = null;
+        if ( (localFile != null) && !sliceStream.isGzipped()
+                && (sliceStream.getFormat() == V3dRawImageStream.Format.FORMAT_PENG_RAW) ) {
+            try {
+                mappedImage = new MappedV3dRawImage(localFile);
+            } catch (IOException exc) {
+                mappedImage = null; // fall back to streaming
+            }
+            if (mappedImage != null) {
+                try {
+                    sliceStream.getDataInputStream().close();
+                } catch (IOException exc) {}
+            }
+        }
+        
         // actually parse image file
     	if (!Interpreter.isBatchMode())
-    		IJ.showStatus("Allocating volume memory...");
-        ImagePlus hyperStack = NewImage.createImage(
-			new File(url.getPath()).getName(),
-			width, height, n_channels * n_slices,
-			8 * bytesPerPixel, NewImage.FILL_BLACK);
+    		IJ.showStatus("Loading volume...");
+        // Each plane's pixel array is allocated as it is loaded.
+        ImageStack stack = new ImageStack(width, height, n_channels * n_slices);
+        Vaa3dStackLoader loader = new Vaa3dStackLoader(sliceStream, mappedImage);
+        boolean loaded = true;
+        try {
+            loader.load(stack);
+        } catch (IOException exc) {
+            IJ.error("Vaa3d Reader", "Could not read " + url + ":\n" + exc.getMessage());
+            loaded = false;
+        }
+        if (mappedImage != null) {
+        	try {
+        		mappedImage.close();
+        	} catch (IOException exc) {}
+        }
+        if (! loaded)
+            return false;
+        // Intensity statistics were measured as the planes were decoded
+        ChannelStatistics[] statistics = sliceStream.getChannelStatistics();
+        ImagePlus hyperStack = new ImagePlus(new File(url.getPath()).getName(), stack);
 	if (n_channels > 1) {
 		hyperStack.setDimensions(n_channels, n_slices, 1);
 		hyperStack = new CompositeImage(hyperStack, CompositeImage.COMPOSITE);
 		hyperStack.setOpenAsHyperStack(true);
 	}
-    	if (!Interpreter.isBatchMode())
-    		IJ.showStatus("Loading volume...");
-        int nSlicePixels = width * height;
-        ImageProcessor ip;
-		double max[] = new double[n_channels]; // track maximum intensity in each channel for display calibration
-        for (int c = 0; c < n_channels; ++c) {
-        	max[c] = -Double.MAX_VALUE;
-        	hyperStack.setC(c + 1);
-        	for (int z  = 0; z < n_slices; ++z) {
-        		hyperStack.setZ(z + 1);
-        		try {
-        			sliceStream.loadNextSlice();
-        	    	if (!Interpreter.isBatchMode()) {
-        	    		IJ.showProgress(c*n_slices+z, n_channels*n_slices);
-        	    	}
-        			ByteBuffer bb = sliceStream.getCurrentSlice().getByteBuffer();
-        			bb.rewind();
-        			switch (bytesPerPixel) {
-        			case 1:
-        				ip = new ByteProcessor(width, height);
-        				byte[] ar8 = new byte[nSlicePixels];
-        				// assert(bb.capacity() == nSlicePixels);
-        				bb.get(ar8, 0, nSlicePixels);
-        				ip.setPixels(ar8);
-        				break;
-        			case 2:
-        				ip = new ShortProcessor(width, height);
-        				short[] ar16 = new short[nSlicePixels];
-        				bb.asShortBuffer().get(ar16);
-        				ip.setPixels(ar16);
-        				break;
-        			case 4:
-        				ip = new FloatProcessor(width, height);
-        				float[] ar32 = new float[nSlicePixels];
-        				bb.asFloatBuffer().get(ar32);
-        				ip.setPixels(ar32);
-        				break;
-        			default:
-        				return false;
-        			}
-        			ip.resetMinAndMax();
-        			if (ip.getMax() > max[c]) {
-        				max[c] = ip.getMax();
-        			}
-        			hyperStack.setProcessor(ip);
-        		} catch (IOException exc) {
-        			return false;
-        		}
-        	}
-        }
-        hyperStack.setC(1);
-        hyperStack.setZ(1);
     	if (!Interpreter.isBatchMode())
     		IJ.showStatus("Volume load complete.");
     	if (!Interpreter.isBatchMode()) {
@@ -206,12 +264,349 @@ public class Vaa3d_Reader extends ImagePlus implements PlugIn {
         setType(hyperStack.getType());
         */
 
-        // Adjust display range for each channel
-        setCalibration(new Calibration(this));
+        setDisplayRanges(statistics);
+        
+        setOpenAsHyperStack(true); // don't interleave channel slices
+        
+        return true;  
+    }  
+    
+    /**
+     * Asks for a sub-volume, and loads only that region of the file.
+     * 
+     * @return <code>true</code> on success
+     */
+    private boolean parseRegion(URL url) {
+        V3dRawImageStream sliceStream;
+        try {
+            File localFile = getLocalFile(url);
+            if (localFile != null)
+                sliceStream = new V3dRawImageStream(localFile); // permits positional reads
+            else
+                sliceStream = new V3dRawImageStream(url.openStream());
+        } catch (IllegalArgumentException exc) {
+            IJ.error("Vaa3d Reader", exc.getMessage());
+            return false;
+        } catch (IOException exc) {
+            IJ.error("Vaa3d Reader", "Could not open " + url + ":\n" + exc.getMessage());
+            return false;
+        }
+        try {
+            int sizeX = sliceStream.getDimension(0);
+            int sizeY = sliceStream.getDimension(1);
+            int sizeZ = sliceStream.getDimension(2);
+            int sizeC = sliceStream.getDimension(3);
+            GenericDialog gd = new GenericDialog("Vaa3d Crop");
+            gd.addMessage(sizeX + " x " + sizeY + " pixels, " + sizeZ + " slices, " 
+                    + sizeC + " channels");
+            gd.addNumericField("X", 0, 0);
+            gd.addNumericField("Y", 0, 0);
+            gd.addNumericField("Width", sizeX, 0);
+            gd.addNumericField("Height", sizeY, 0);
+            gd.addNumericField("First slice", 1, 0);
+            gd.addNumericField("Last slice", sizeZ, 0);
+            gd.addNumericField("First channel", 1, 0);
+            gd.addNumericField("Last channel", sizeC, 0);
+            gd.showDialog();
+            if (gd.wasCanceled())
+                return false;
+            int x = (int)gd.getNextNumber();
+            int y = (int)gd.getNextNumber();
+            int width = (int)gd.getNextNumber();
+            int height = (int)gd.getNextNumber();
+            int z0 = (int)gd.getNextNumber() - 1;
+            int n_slices = (int)gd.getNextNumber() - z0;
+            int c0 = (int)gd.getNextNumber() - 1;
+            int n_channels = (int)gd.getNextNumber() - c0;
+            if ( (x < 0) || (y < 0) || (width < 1) || (height < 1) 
+                    || (x + width > sizeX) || (y + height > sizeY)
+                    || (z0 < 0) || (n_slices < 1) || (z0 + n_slices > sizeZ)
+                    || (c0 < 0) || (n_channels < 1) || (c0 + n_channels > sizeC) ) {
+                IJ.error("Vaa3d Reader", "The crop region must lie inside the volume.");
+                return false;
+            }
+            
+            if (!Interpreter.isBatchMode())
+                IJ.showStatus("Loading region...");
+            ImageStack stack = new ImageStack(width, height, n_channels * n_slices);
+            int pixelBytes = sliceStream.getPixelBytes();
+            if ((long)width * height * pixelBytes > V3dRawImageStream.MAX_ARRAY_LENGTH) {
+                IJ.error("Vaa3d Reader", "The crop region is too large for one ImageJ plane.");
+                return false;
+            }
+            byte[] region = new byte[width * height * pixelBytes];
+            ByteBuffer bb = ByteBuffer.wrap(region).order(sliceStream.getByteOrder());
+            ChannelStatistics[] statistics = new ChannelStatistics[n_channels];
+            // In file order: channel by channel
+            for (int c = 0; c < n_channels; ++c) {
+                statistics[c] = new ChannelStatistics(pixelBytes);
+                for (int z = 0; z < n_slices; ++z) {
+                    sliceStream.readSliceRegion(z0 + z, c0 + c, x, y, width, height, region, 0);
+                    Object pixels;
+                    if (pixelBytes == 1)
+                        pixels = region.clone();
+                    else if (pixelBytes == 2) {
+                        pixels = new short[width * height];
+                        bb.asShortBuffer().get((short[])pixels);
+                    }
+                    else {
+                        pixels = new float[width * height];
+                        bb.asFloatBuffer().get((float[])pixels);
+                    }
+                    statistics[c].add(pixels);
+                    stack.setPixels(pixels, z * n_channels + c + 1);
+                    if (!Interpreter.isBatchMode())
+                        IJ.showProgress(c * n_slices + z + 1, n_channels * n_slices);
+                }
+            }
+            ImagePlus hyperStack = new ImagePlus(new File(url.getPath()).getName(), stack);
+            hyperStack.setDimensions(n_channels, n_slices, 1);
+            if (n_channels > 1) {
+                hyperStack = new CompositeImage(hyperStack, CompositeImage.COMPOSITE);
+                hyperStack.setOpenAsHyperStack(true);
+            }
+            setImage(hyperStack);
+            setTitle(hyperStack.getTitle());
+            setDisplayRanges(statistics);
+            setOpenAsHyperStack(true); // don't interleave channel slices
+            if (!Interpreter.isBatchMode())
+                IJ.showStatus("Region load complete.");
+            return true;
+        } catch (IOException exc) {
+            IJ.error("Vaa3d Reader", "Could not read " + url + ":\n" + exc.getMessage());
+            return false;
+        } finally {
+            try {
+                sliceStream.close();
+            } catch (IOException exc) {}
+        }
+    }
+    
+    /**
+     * Asks for binning and slice step, and loads a reduced-resolution 
+     * copy of the volume, one slice at a time.
+     * 
+     * @return <code>true</code> on success
+     */
+    private boolean parsePreview(URL url) {
+        V3dRawImageStream sliceStream;
+        try {
+            File localFile = getLocalFile(url);
+            if (localFile != null)
+                sliceStream = new V3dRawImageStream(localFile); // skipped raw slices are never read
+            else
+                sliceStream = new V3dRawImageStream(url.openStream());
+        } catch (IllegalArgumentException exc) {
+            IJ.error("Vaa3d Reader", exc.getMessage());
+            return false;
+        } catch (IOException exc) {
+            IJ.error("Vaa3d Reader", "Could not open " + url + ":\n" + exc.getMessage());
+            return false;
+        }
+        try {
+            int sizeZ = sliceStream.getDimension(2);
+            int n_channels = sliceStream.getDimension(3);
+            GenericDialog gd = new GenericDialog("Vaa3d Preview");
+            gd.addMessage(sliceStream.getDimension(0) + " x " + sliceStream.getDimension(1) 
+                    + " pixels, " + sizeZ + " slices, " + n_channels + " channels");
+            gd.addNumericField("XY binning", 4, 0);
+            gd.addChoice("Combine by", new String[] {"Mean", "Max"}, "Mean");
+            gd.addNumericField("Slice step", 4, 0);
+            gd.showDialog();
+            if (gd.wasCanceled())
+                return false;
+            int bin = (int)gd.getNextNumber();
+            V3dRawImageStream.BinMode mode = (gd.getNextChoiceIndex() == 1)
+                    ? V3dRawImageStream.BinMode.MAX : V3dRawImageStream.BinMode.MEAN;
+            int step = (int)gd.getNextNumber();
+            if ( (bin < 1) || (step < 1) ) {
+                IJ.error("Vaa3d Reader", "Binning and slice step must be positive.");
+                return false;
+            }
+            
+            if (!Interpreter.isBatchMode())
+                IJ.showStatus("Loading preview...");
+            int n_slices = (sizeZ + step - 1) / step;
+            int width = (sliceStream.getDimension(0) + bin - 1) / bin;
+            int height = (sliceStream.getDimension(1) + bin - 1) / bin;
+            ImageStack stack = new ImageStack(width, height, n_channels * n_slices);
+            ChannelStatistics[] statistics = new ChannelStatistics[n_channels];
+            // In file order: channel by channel
+            for (int c = 0; c < n_channels; ++c) {
+                statistics[c] = new ChannelStatistics(sliceStream.getPixelBytes());
+                for (int z = 0; z < n_slices; ++z) {
+                    Object pixels = sliceStream.readSliceBinned(z * step, c, bin, mode);
+                    statistics[c].add(pixels);
+                    stack.setPixels(pixels, z * n_channels + c + 1);
+                    if (!Interpreter.isBatchMode())
+                        IJ.showProgress(c * n_slices + z + 1, n_channels * n_slices);
+                }
+            }
+            ImagePlus hyperStack = new ImagePlus(new File(url.getPath()).getName(), stack);
+            hyperStack.setDimensions(n_channels, n_slices, 1);
+            if (n_channels > 1) {
+                hyperStack = new CompositeImage(hyperStack, CompositeImage.COMPOSITE);
+                hyperStack.setOpenAsHyperStack(true);
+            }
+            setImage(hyperStack);
+            setTitle(hyperStack.getTitle());
+            setDisplayRanges(statistics);
+            setOpenAsHyperStack(true); // don't interleave channel slices
+            if (!Interpreter.isBatchMode())
+                IJ.showStatus("Preview load complete.");
+            return true;
+        } catch (IOException exc) {
+            IJ.error("Vaa3d Reader", "Could not read " + url + ":\n" + exc.getMessage());
+            return false;
+        } finally {
+            try {
+                sliceStream.close();
+            } catch (IOException exc) {}
+        }
+    }
+    
+    /**
+     * Populates this <code>ImagePlus</code> with a Z projection of each 
+     * channel, computed while streaming the slices.
+     * 
+     * @return <code>true</code> on success
+     */
+    private boolean parseProjection(URL url) {
+        GenericDialog gd = new GenericDialog("Vaa3d Projection");
+        String[] methods = {"Max Intensity", "Min Intensity", "Average Intensity", "Sum Slices"};
+        gd.addChoice("Projection type", methods, methods[0]);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return false;
+        Vaa3dProjector.Method method = Vaa3dProjector.Method.values()[gd.getNextChoiceIndex()];
+        String[] prefixes = {"MAX_", "MIN_", "AVG_", "SUM_"};
+        
+        V3dRawImageStream sliceStream;
+        try {
+            File localFile = getLocalFile(url);
+            if (localFile != null)
+                sliceStream = new V3dRawImageStream(localFile);
+            else
+                sliceStream = new V3dRawImageStream(url.openStream());
+        } catch (IllegalArgumentException exc) {
+            IJ.error("Vaa3d Reader", exc.getMessage());
+            return false;
+        } catch (IOException exc) {
+            IJ.error("Vaa3d Reader", "Could not open " + url + ":\n" + exc.getMessage());
+            return false;
+        }
+        try {
+            if (!Interpreter.isBatchMode())
+                IJ.showStatus("Projecting volume...");
+            Object[] projections = new Vaa3dProjector(method).project(sliceStream);
+            int n_channels = projections.length;
+            ImageStack stack = new ImageStack(sliceStream.getDimension(0), 
+                    sliceStream.getDimension(1), n_channels);
+            ChannelStatistics[] statistics = new ChannelStatistics[n_channels];
+            for (int c = 0; c < n_channels; ++c) {
+                statistics[c] = ChannelStatistics.of(projections[c]);
+                stack.setPixels(projections[c], c + 1);
+            }
+            String title = prefixes[method.ordinal()] + new File(url.getPath()).getName();
+            ImagePlus hyperStack = new ImagePlus(title, stack);
+            hyperStack.setDimensions(n_channels, 1, 1);
+            if (n_channels > 1) {
+                hyperStack = new CompositeImage(hyperStack, CompositeImage.COMPOSITE);
+                hyperStack.setOpenAsHyperStack(true);
+            }
+            setImage(hyperStack);
+            setTitle(hyperStack.getTitle());
+            setDisplayRanges(statistics);
+            setOpenAsHyperStack(true);
+            if (!Interpreter.isBatchMode())
+                IJ.showStatus("Projection complete.");
+            return true;
+        } catch (IllegalArgumentException exc) {
+            IJ.error("Vaa3d Reader", exc.getMessage());
+            return false;
+        } catch (IOException exc) {
+            IJ.error("Vaa3d Reader", "Could not read " + url + ":\n" + exc.getMessage());
+            return false;
+        } finally {
+            try {
+                sliceStream.close();
+            } catch (IOException exc) {}
+        }
+    }
+    
+    /**
+     * Populates this <code>ImagePlus</code> with a virtual stack, 
+     * which reads planes from the file only as they are displayed.
+     * 
+     * @param file local .v3draw or .v3dpbd volume image
+     * @return <code>true</code> on success
+     */
+    private boolean parseVirtual(File file) {
+    	if (!Interpreter.isBatchMode())
+    		IJ.showStatus("Opening virtual stack...");
+        final Vaa3dVirtualStack stack;
+        try {
+            stack = new Vaa3dVirtualStack(file);
+        } catch (IOException exc) {
+            IJ.error("Vaa3d Reader", "Could not open " + file + ":\n" + exc.getMessage());
+            return false;
+        }
+        // Release the file and its mapping when the image is closed
+        ImagePlus.addImageListener(new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus imp) {}
+            
+            @Override
+            public void imageUpdated(ImagePlus imp) {}
+            
+            @Override
+            public void imageClosed(ImagePlus imp) {
+                if (imp.getStack() != stack)
+                    return;
+                ImagePlus.removeImageListener(this);
+                try {
+                    stack.close();
+                } catch (IOException exc) {}
+            }
+        });
+        int n_channels = stack.getNChannels();
+        int n_slices = stack.getNSlices();
+        ImagePlus hyperStack = new ImagePlus(file.getName(), stack);
+        hyperStack.setDimensions(n_channels, n_slices, 1);
+        if (n_channels > 1) {
+            hyperStack = new CompositeImage(hyperStack, CompositeImage.COMPOSITE);
+            hyperStack.setOpenAsHyperStack(true);
+        }
+        setImage(hyperStack);
+        setTitle(hyperStack.getTitle());
+        
+        // Estimate display ranges from the middle plane of each channel,
+        // rather than reading the whole volume
+        ChannelStatistics[] statistics = new ChannelStatistics[n_channels];
         for (int c = 0; c < n_channels; ++c) {
+            ImageProcessor ip = stack.getProcessor((n_slices / 2) * n_channels + c + 1);
+            statistics[c] = ChannelStatistics.of(ip.getPixels());
+        }
+        setDisplayRanges(statistics);
+        
+        setOpenAsHyperStack(true); // don't interleave channel slices
+    	if (!Interpreter.isBatchMode())
+    		IJ.showStatus("");
+        return true;
+    }
+    
+    /**
+     * Adjusts the display range for each channel.
+     * 
+     * @param statistics intensity statistics of each channel
+     */
+    private void setDisplayRanges(ChannelStatistics[] statistics) {
+        setCalibration(new Calibration(this));
+        for (int c = 0; c < statistics.length; ++c) {
         	setC(c+1);
-        	if (max[c] > 0) {
-        		setDisplayRange(0, max[c]);
+        	double max = statistics[c].getMax();
+        	if (max > 0) {
+        		setDisplayRange(0, max);
         		continue;
         	}
         	// I guess measuring max failed.
@@ -222,9 +617,5 @@ public class Vaa3d_Reader extends ImagePlus implements PlugIn {
         	}
         }
         setC(1);
-        
-        setOpenAsHyperStack(true); // don't interleave channel slices
-        
-        return true;  
-    }  
+    }
 }
@@ -0,0 +1,352 @@
+/*
+Copyright (c) 2012, Christopher M. Bruns and Howard Hughes Medical Institute
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.janelia.vaa3d.reader;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.io.SaveDialog;
+import ij.macro.Interpreter;
+import ij.plugin.PlugIn;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Vaa3d_Writer class is a Fiji/ImageJ plugin for saving 8-, 16- and 32-bit
+ * stacks and hyperstacks as .v3draw (uncompressed) or .v3dpbd (compressed) 
+ * 3D volume images. The file name extension selects the format.
+ * 
+ * Planes are taken from the stack one at a time, so a virtual stack is 
+ * saved without ever being loaded whole. Uncompressed planes are sent to 
+ * the file in large gathered writes; compressed planes are encoded on 
+ * worker threads by <code>ParallelPbdEncoder</code>.
+ * 
+ * @author Christopher M. Bruns
+ *
+ */
+public class Vaa3d_Writer implements PlugIn 
+{
+	// Bytes of plane data collected before each gathered write
+	private static final int GATHER_BYTES = 16 << 20;
+	
+	/**
+	 * ImageJ plugin run() method.
+	 * 
+	 * @param fileName where to save the current image; ask if empty.
+	 */
+	@Override
+	public void run(String fileName) {
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (null == imp) {
+			IJ.error("Vaa3d Writer", "No image is open.");
+			return;
+		}
+		File file;
+		if ( (null != fileName) && (fileName.trim().length() > 0) )
+			file = new File(fileName);
+		else {
+			if (Interpreter.isBatchMode())
+				return;
+			SaveDialog sd = new SaveDialog("Save as Vaa3d volume", imp.getTitle(), ".v3draw");
+			if (null == sd.getDirectory())
+				return;
+			file = new File(sd.getDirectory(), sd.getFileName());
+		}
+		try {
+			if (!Interpreter.isBatchMode())
+				IJ.showStatus("Saving volume...");
+			save(imp, file);
+			if (!Interpreter.isBatchMode())
+				IJ.showStatus("Volume save complete.");
+		}
+		catch (IOException exc) {
+			IJ.error("Vaa3d Writer", "Could not save " + file + ":\n" + exc.getMessage());
+		}
+		catch (IllegalArgumentException exc) {
+			IJ.error("Vaa3d Writer", exc.getMessage());
+		}
+	}
+	
+	/**
+	 * Saves an image as a v3dpbd file if the name ends with ".v3dpbd"
+	 * or ".v3dpbd.gz", or as a v3draw file otherwise. Names ending with 
+	 * ".gz" are block-gzipped (see <code>BgzfOutputStream</code>).
+	 * 
+	 * @throws IllegalArgumentException for images with several time points,
+	 * or of a type Vaa3d files cannot hold
+	 */
+	public static void save(ImagePlus imp, File file) 
+	throws IOException
+	{
+		if (imp.getNFrames() > 1)
+			throw new IllegalArgumentException("Vaa3d volumes cannot hold more than one time point");
+		String name = file.getName().toLowerCase();
+		boolean compress = name.endsWith(".v3dpbd") || name.endsWith(".v3dpbd.gz");
+		save(imp.getStack(), imp.getNChannels(), imp.getNSlices(), file, compress);
+	}
+	
+	/**
+	 * Saves a stack with ImageJ's usual channel-fastest plane order.
+	 * 
+	 * The file is block-gzipped if its name ends with ".gz".
+	 * 
+	 * @param compress true for v3dpbd, false for v3draw
+	 */
+	public static void save(ImageStack stack, int nChannels, int nSlices, File file, boolean compress) 
+	throws IOException
+	{
+		if (stack.getSize() != nChannels * nSlices)
+			throw new IllegalArgumentException("Stack size does not match its dimensions");
+		int pixelBytes = getPixelBytes(stack.getPixels(1));
+		if (compress && (pixelBytes > 2))
+			throw new IllegalArgumentException("Only 8- and 16-bit images can be saved as v3dpbd");
+		ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+		int[] dimensions = {stack.getWidth(), stack.getHeight(), nSlices, nChannels};
+		
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteArrayOutputStream header = new ByteArrayOutputStream(V3dRawImageStream.HEADER_BYTES);
+			V3dRawImageStream.writeHeader(header, 
+					compress ? V3dRawImageStream.Format.FORMAT_MURPHY_PBD 
+							: V3dRawImageStream.Format.FORMAT_PENG_RAW,
+					byteOrder, pixelBytes, dimensions);
+			if (file.getName().toLowerCase().endsWith(".gz")) {
+				OutputStream out = new BgzfOutputStream(new BufferedOutputStream(
+						Channels.newOutputStream(channel), 1 << 20));
+				header.writeTo(out);
+				StackInputStream data = new StackInputStream(stack, nChannels, nSlices, byteOrder);
+				if (compress) {
+					long totalBytes = (long)stack.getWidth() * stack.getHeight() 
+							* pixelBytes * stack.getSize();
+					new ParallelPbdEncoder().encodeData(data, totalBytes, pixelBytes, byteOrder, out);
+				}
+				else {
+					byte[] buffer = new byte[BgzfOutputStream.BLOCK_DATA_BYTES];
+					int count;
+					while ((count = data.read(buffer)) > 0)
+						out.write(buffer, 0, count);
+				}
+				out.close();
+				return;
+			}
+			writeFully(channel, new ByteBuffer[] {ByteBuffer.wrap(header.toByteArray())});
+			if (compress) {
+				OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20);
+				long totalBytes = (long)stack.getWidth() * stack.getHeight() 
+						* pixelBytes * stack.getSize();
+				new ParallelPbdEncoder().encodeData(
+						new StackInputStream(stack, nChannels, nSlices, byteOrder),
+						totalBytes, pixelBytes, byteOrder, out);
+			}
+			else
+				writePlanes(channel, stack, nChannels, nSlices, byteOrder);
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Writes uncompressed planes in v3draw order, one channel after another.
+	 * 
+	 * 8-bit pixel arrays are written in place. Wider pixels are converted
+	 * into one reusable buffer, a bounded chunk at a time, so memory use
+	 * depends on neither the volume nor the plane size.
+	 */
+	private static void writePlanes(FileChannel channel, ImageStack stack, 
+			int nChannels, int nSlices, ByteOrder byteOrder) 
+	throws IOException
+	{
+		int pixelBytes = getPixelBytes(stack.getPixels(1));
+		int chunkPixels = GATHER_BYTES / pixelBytes;
+		ByteBuffer converted = ByteBuffer.allocateDirect(GATHER_BYTES);
+		converted.order(byteOrder);
+		List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+		long pendingBytes = 0;
+		int planeCount = 0;
+		for (int c = 0; c < nChannels; ++c) {
+			for (int z = 0; z < nSlices; ++z) {
+				Object pixels = stack.getPixels(z * nChannels + c + 1);
+				if (pixels instanceof byte[]) {
+					pending.add(ByteBuffer.wrap((byte[])pixels));
+					pendingBytes += ((byte[])pixels).length;
+				}
+				else {
+					int pixelCount = Array.getLength(pixels);
+					for (int from = 0; from < pixelCount; from += chunkPixels) {
+						int count = Math.min(chunkPixels, pixelCount - from);
+						if (converted.remaining() < count * pixelBytes) {
+							writeFully(channel, pending.toArray(new ByteBuffer[pending.size()]));
+							pending.clear();
+							pendingBytes = 0;
+							converted.clear();
+						}
+						int start = converted.position();
+						putPixels(pixels, from, count, converted);
+						ByteBuffer view = converted.duplicate();
+						view.position(start);
+						view.limit(converted.position());
+						pending.add(view);
+						pendingBytes += count * pixelBytes;
+					}
+				}
+				if (pendingBytes >= GATHER_BYTES) {
+					writeFully(channel, pending.toArray(new ByteBuffer[pending.size()]));
+					pending.clear();
+					pendingBytes = 0;
+					converted.clear();
+				}
+				if (!Interpreter.isBatchMode())
+					IJ.showProgress(++planeCount, stack.getSize());
+			}
+		}
+		writeFully(channel, pending.toArray(new ByteBuffer[pending.size()]));
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer[] buffers) 
+	throws IOException
+	{
+		if (buffers.length == 0)
+			return;
+		ByteBuffer last = buffers[buffers.length - 1];
+		while (last.hasRemaining())
+			channel.write(buffers);
+	}
+	
+	private static int getPixelBytes(Object pixels) {
+		if (pixels instanceof byte[])
+			return 1;
+		if (pixels instanceof short[])
+			return 2;
+		if (pixels instanceof float[])
+			return 4;
+		throw new IllegalArgumentException("Only 8-, 16- and 32-bit images can be saved as Vaa3d volumes");
+	}
+	
+	/**
+	 * Appends one plane of pixels to a buffer, in the buffer's byte order.
+	 */
+	static void putPixels(Object pixels, ByteBuffer buffer) {
+		putPixels(pixels, 0, Array.getLength(pixels), buffer);
+	}
+	
+	/**
+	 * Appends <code>count</code> pixels of a plane, starting at 
+	 * <code>from</code>, to a buffer in the buffer's byte order.
+	 */
+	static void putPixels(Object pixels, int from, int count, ByteBuffer buffer) {
+		if (pixels instanceof byte[])
+			buffer.put((byte[])pixels, from, count);
+		else if (pixels instanceof short[]) {
+			buffer.asShortBuffer().put((short[])pixels, from, count);
+			buffer.position(buffer.position() + 2 * count);
+		}
+		else {
+			buffer.asFloatBuffer().put((float[])pixels, from, count);
+			buffer.position(buffer.position() + 4 * count);
+		}
+	}
+	
+	/**
+	 * Presents the planes of a stack as uncompressed v3draw voxel data, 
+	 * converting a bounded chunk of one plane at a time.
+	 */
+	static class StackInputStream extends InputStream 
+	{
+		private ImageStack stack;
+		private int nChannels;
+		private int nSlices;
+		private int nextPlane = 0; // in v3draw order
+		private Object pixels; // plane being converted
+		private int nextPixel = 0; // first pixel of pixels not yet converted
+		private int chunkPixels;
+		private ByteBuffer plane; // converted chunk
+		private byte[] singleByte = new byte[1]; // reused by the one-byte read()
+		
+		StackInputStream(ImageStack stack, int nChannels, int nSlices, ByteOrder byteOrder) {
+			this.stack = stack;
+			this.nChannels = nChannels;
+			this.nSlices = nSlices;
+			int pixelBytes = getPixelBytes(stack.getPixels(1));
+			long planeBytes = (long)stack.getWidth() * stack.getHeight() * pixelBytes;
+			int chunkBytes = (int)Math.max(pixelBytes, Math.min(planeBytes, GATHER_BYTES));
+			chunkPixels = chunkBytes / pixelBytes;
+			plane = ByteBuffer.allocate(chunkBytes).order(byteOrder);
+			plane.limit(0);
+		}
+		
+		@Override
+		public int read() 
+		throws IOException
+		{
+			if (read(singleByte, 0, 1) < 1)
+				return -1;
+			return singleByte[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) 
+		{
+			if (len < 1)
+				return 0;
+			while (! plane.hasRemaining()) {
+				if ( (pixels == null) || (nextPixel >= Array.getLength(pixels)) ) {
+					if (nextPlane >= stack.getSize())
+						return -1;
+					int c = nextPlane / nSlices;
+					int z = nextPlane % nSlices;
+					pixels = stack.getPixels(z * nChannels + c + 1);
+					nextPixel = 0;
+					++nextPlane;
+					if (!Interpreter.isBatchMode())
+						IJ.showProgress(nextPlane, stack.getSize());
+				}
+				int count = Math.min(chunkPixels, Array.getLength(pixels) - nextPixel);
+				plane.clear();
+				putPixels(pixels, nextPixel, count, plane);
+				plane.flip();
+				nextPixel += count;
+			}
+			int count = Math.min(len, plane.remaining());
+			plane.get(b, off, count);
+			return count;
+		}
+	}
+}
@@ -1,10 +1,36 @@
 package org.janelia.vaa3d.reader;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import ij.ImageStack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 
 import org.junit.Test;
 
@@ -82,6 +108,894 @@ public class TestVaa3d_Reader {
         testVaa3dDataEquality("/testSliceDiffBoundary.v3draw", "/testSliceDiffBoundary.v3dpbd", 256);
     }
     
+    /**
+     * Decoding straight into a short array must give the same voxels as 
+     * the uncompressed file, even when reads end part way through a run.
+     */
+    @Test
+    public void testPbd16ShortReadMatchesRaw() throws IOException {
+        V3dRawImageStream rawStream = new V3dRawImageStream(ClassLoader.class.getResourceAsStream("/testSliceDiffBoundary.v3draw"));
+        byte[] rawBytes = new byte[32768];
+        assertEquals(rawBytes.length, countStreamBytes(rawStream.getDataInputStream(), rawBytes));
+        short[] expected = new short[rawBytes.length / 2];
+        ByteBuffer.wrap(rawBytes).order(rawStream.getByteOrder()).asShortBuffer().get(expected);
+        
+        Pbd16InputStream pbd = (Pbd16InputStream) new V3dRawImageStream(ClassLoader.class.getResourceAsStream("/testSliceDiffBoundary.v3dpbd")).getDataInputStream();
+        short[] actual = new short[expected.length];
+        int pos = 0;
+        while (pos < actual.length) {
+            int count = pbd.read(actual, pos, Math.min(7, actual.length - pos));
+            assertTrue(count > 0);
+            pos += count;
+        }
+        assertArrayEquals(expected, actual);
+        assertEquals(-1, pbd.read(actual, 0, 1));
+    }
+    
+    /**
+     * Values above 32767 are ordinary voxels, not end-of-stream markers.
+     */
+    @Test
+    public void testPbd16HighValues() throws IOException {
+        byte[] compressed = {
+                1, (byte)0x80, 0x01, (byte)0xff, (byte)0xff, // literal 0x8001, 0xffff
+                33, 0x3c, // difference +1, -3
+                (byte)225, (byte)0xf0, 0x00 // repeat 0xf000 three times
+        };
+        Pbd16InputStream pbd = new Pbd16InputStream(new ByteArrayInputStream(compressed), ByteOrder.BIG_ENDIAN);
+        short[] actual = new short[8];
+        assertEquals(7, pbd.read(actual, 0, 8));
+        short[] expected = {(short)0x8001, (short)0xffff, 0x0000, (short)0xfffd, 
+                (short)0xf000, (short)0xf000, (short)0xf000, 0};
+        assertArrayEquals(expected, actual);
+    }
+    
+    /**
+     * The 8-bit decoder must give the same answer whatever the read size, 
+     * including reads that end inside a packed difference byte.
+     */
+    @Test
+    public void testPbd8SmallReads() throws IOException {
+        byte[] compressed = {
+                2, 10, 20, 30, // literal
+                38, 57, 7, // difference +1 +2 -1 0 -1 +1
+                (byte)130, (byte)200 // repeat three times
+        };
+        byte[] expected = {10, 20, 30, 31, 33, 32, 32, 31, 32, 
+                (byte)200, (byte)200, (byte)200};
+        for (int bufSize = 1; bufSize <= 13; ++bufSize) {
+            InputStream pbd = new Pbd8InputStream(new ByteArrayInputStream(compressed));
+            byte[] actual = new byte[expected.length];
+            int pos = 0;
+            while (pos < actual.length) {
+                int count = pbd.read(actual, pos, Math.min(bufSize, actual.length - pos));
+                assertTrue(count > 0);
+                pos += count;
+            }
+            assertArrayEquals(expected, actual);
+            assertEquals(-1, pbd.read());
+        }
+    }
+    
+    @Test
+    public void testMappedPlanesMatchStream() throws IOException, URISyntaxException {
+        MappedV3dRawImage mapped = new MappedV3dRawImage(getResourceFile("/123stack16.v3draw"));
+        V3dRawImageStream stream = new V3dRawImageStream(ClassLoader.class.getResourceAsStream("/123stack16.v3draw"));
+        try {
+            for (int z = 0; z < stream.getDimension(2); ++z) {
+                stream.loadNextSlice();
+                ByteBuffer expected = stream.getCurrentSlice().getByteBuffer();
+                expected.rewind();
+                ByteBuffer actual = mapped.getPlane(z, 0);
+                assertEquals(expected.capacity(), actual.remaining());
+                assertTrue(expected.equals(actual));
+            }
+        } finally {
+            mapped.close();
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void testMappingCompressedFileFails() throws IOException, URISyntaxException {
+        new MappedV3dRawImage(getResourceFile("/123stack16.v3dpbd"));
+    }
+    
+    @Test
+    public void testRandomAccessSlices() throws IOException, URISyntaxException {
+        for (String resourceName : new String[] {"/testSliceDiffBoundary.v3draw", "/testSliceDiffBoundary.v3dpbd"}) {
+            byte[][] expected = readAllSlices(resourceName);
+            V3dRawImageStream stream = new V3dRawImageStream(getResourceFile(resourceName));
+            try {
+                int sizeZ = stream.getDimension(2);
+                int[] order = {37, 5, 63, 0, 36, 17, 17, 62};
+                for (int s : order) {
+                    V3dRawImageStream.Slice slice = stream.readSlice(s % sizeZ, s / sizeZ);
+                    assertEquals(s, slice.getSliceIndex());
+                    assertArrayEquals(expected[s], slice.getByteBuffer().array());
+                }
+                // sequential reading continues after the last random access
+                stream.loadNextSlice();
+                assertArrayEquals(expected[63], stream.getCurrentSlice().getByteBuffer().array());
+            } finally {
+                stream.close();
+            }
+        }
+    }
+    
+    @Test
+    public void testReadSliceIntoShortArray() throws IOException {
+        for (String resourceName : new String[] {"/testSliceDiffBoundary.v3draw", "/testSliceDiffBoundary.v3dpbd"}) {
+            byte[][] expected = readAllSlices(resourceName);
+            V3dRawImageStream stream = new V3dRawImageStream(
+                    getClass().getResourceAsStream(resourceName));
+            try {
+                short[] pixels = new short[stream.getDimension(0) * stream.getDimension(1)];
+                for (byte[] slice : expected) {
+                    stream.readSliceInto(pixels);
+                    short[] expectedPixels = new short[pixels.length];
+                    ByteBuffer.wrap(slice).order(ByteOrder.LITTLE_ENDIAN)
+                            .asShortBuffer().get(expectedPixels);
+                    assertArrayEquals(expectedPixels, pixels);
+                }
+            } finally {
+                stream.close();
+            }
+        }
+    }
+    
+    @Test
+    public void testPbdSliceIndexRandomAccess() throws IOException, URISyntaxException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        File pbdFile = getResourceFile("/testSliceDiffBoundary.v3dpbd");
+        PbdSliceIndex index = PbdSliceIndex.build(pbdFile);
+        assertEquals(expected.length, index.getSliceCount());
+        // round trip through the sidecar format
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        index.write(saved);
+        index = PbdSliceIndex.read(new ByteArrayInputStream(saved.toByteArray()));
+        
+        V3dRawImageStream stream = new V3dRawImageStream(pbdFile);
+        try {
+            stream.setSliceIndex(index);
+            for (int s : new int[] {63, 1, 40, 39, 39, 0, 17}) {
+                V3dRawImageStream.Slice slice = stream.readSlice(s % 16, s / 16);
+                assertArrayEquals(expected[s], slice.getByteBuffer().array());
+            }
+            stream.loadNextSlice();
+            assertArrayEquals(expected[18], stream.getCurrentSlice().getByteBuffer().array());
+        } finally {
+            stream.close();
+        }
+    }
+    
+    @Test
+    public void testPbdSidecarIndexIsLoaded() throws IOException, URISyntaxException {
+        File dir = Files.createTempDirectory("vaa3d").toFile();
+        File pbdFile = new File(dir, "volume.v3dpbd");
+        Files.copy(getResourceFile("/testSliceDiffBoundary.v3dpbd").toPath(), pbdFile.toPath(), 
+                StandardCopyOption.REPLACE_EXISTING);
+        try {
+            PbdSliceIndex.createSidecar(pbdFile);
+            V3dRawImageStream stream = new V3dRawImageStream(pbdFile);
+            assertTrue(stream.getSliceIndex() != null);
+            stream.close();
+            
+            // re-encoded in place to the same length: the sidecar is stale
+            byte[] bytes = Files.readAllBytes(pbdFile.toPath());
+            long modified = pbdFile.lastModified();
+            bytes[bytes.length - 1] ^= 1;
+            Files.write(pbdFile.toPath(), bytes);
+            assertTrue(pbdFile.setLastModified(modified));
+            assertNull(PbdSliceIndex.loadSidecar(pbdFile));
+            // as is one whose file was touched
+            PbdSliceIndex.createSidecar(pbdFile);
+            assertTrue(PbdSliceIndex.loadSidecar(pbdFile) != null);
+            assertTrue(pbdFile.setLastModified(modified + 60000));
+            assertNull(PbdSliceIndex.loadSidecar(pbdFile));
+        } finally {
+            PbdSliceIndex.getSidecarFile(pbdFile).delete();
+            pbdFile.delete();
+            dir.delete();
+        }
+    }
+    
+    @Test
+    public void testParallelDecodeMatchesSequential() throws IOException, URISyntaxException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        File pbdFile = getResourceFile("/testSliceDiffBoundary.v3dpbd");
+        for (boolean useIndex : new boolean[] {false, true}) {
+            ParallelPbdDecoder decoder = new ParallelPbdDecoder(pbdFile);
+            decoder.setSegmentBytes(100); // force many small segments
+            if (useIndex)
+                decoder.setSliceIndex(PbdSliceIndex.build(pbdFile));
+            byte[][] actual = decoder.decodeSlices();
+            assertEquals(expected.length, actual.length);
+            for (int s = 0; s < expected.length; ++s)
+                assertArrayEquals(expected[s], actual[s]);
+        }
+    }
+    
+    @Test
+    public void testVirtualStackPlanes() throws IOException, URISyntaxException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        File dir = Files.createTempDirectory("vaa3d").toFile();
+        for (String resourceName : new String[] {"/testSliceDiffBoundary.v3draw", "/testSliceDiffBoundary.v3dpbd"}) {
+            File file = new File(dir, resourceName.substring(1));
+            Files.copy(getResourceFile(resourceName).toPath(), file.toPath());
+            // cache only two planes, so that planes are re-read
+            Vaa3dVirtualStack stack = new Vaa3dVirtualStack(file, 2 * 16 * 16 * 2);
+            // the compressed file's index is kept for next time
+            assertEquals(resourceName.endsWith(".v3dpbd"), 
+                    PbdSliceIndex.loadSidecar(file) != null);
+            assertEquals(64, stack.getSize());
+            for (int n : new int[] {1, 64, 2, 5, 64, 1, 33}) {
+                // channels vary fastest in the ImageJ stack
+                int c = (n - 1) % 4;
+                int z = (n - 1) / 4;
+                short[] pixels = (short[])stack.getPixels(n);
+                short[] plane = new short[pixels.length];
+                ByteBuffer.wrap(expected[c * 16 + z]).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(plane);
+                assertArrayEquals(plane, pixels);
+                // edits do not reach the cached plane
+                pixels[0] = (short)~pixels[0];
+                assertArrayEquals(plane, (short[])stack.getPixels(n));
+            }
+            stack.close();
+            try {
+                stack.getPixels(9);
+                fail("closed stack read a plane");
+            } catch (RuntimeException exc) {}
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void testStreamCannotSeekBackwards() throws IOException {
+        V3dRawImageStream stream = new V3dRawImageStream(ClassLoader.class.getResourceAsStream("/testSliceDiffBoundary.v3dpbd"));
+        stream.readSlice(3, 1);
+        stream.readSlice(2, 1);
+    }
+    
+    @Test
+    public void testPbdEncoderRoundTrip() throws IOException {
+        java.util.Random random = new java.util.Random(42);
+        for (int pixelBytes = 1; pixelBytes <= 2; ++pixelBytes) {
+            // smooth stretches, flat stretches and noise
+            byte[] raw = new byte[pixelBytes * 20000];
+            int value = 0;
+            for (int i = 0; i < raw.length; i += pixelBytes) {
+                int kind = (i / (pixelBytes * 500)) % 3;
+                if (kind == 0)
+                    value += random.nextInt(5) - 2;
+                else if (kind == 2)
+                    value = random.nextInt(65536);
+                raw[i] = (byte)value;
+                if (pixelBytes == 2)
+                    raw[i + 1] = (byte)(value >> 8);
+            }
+            ByteArrayOutputStream rawFile = new ByteArrayOutputStream();
+            V3dRawImageStream.writeHeader(rawFile, V3dRawImageStream.Format.FORMAT_PENG_RAW,
+                    ByteOrder.LITTLE_ENDIAN, pixelBytes, new int[] {100, 20, 5, 2});
+            rawFile.write(raw);
+            
+            ParallelPbdEncoder encoder = new ParallelPbdEncoder();
+            encoder.setSlabBytes(3001); // slabs that split a voxel and a row
+            encoder.setMaxSlabsInFlight(pixelBytes); // as when sharing a pool with other files
+            ByteArrayOutputStream pbdFile = new ByteArrayOutputStream();
+            encoder.encode(new V3dRawImageStream(new ByteArrayInputStream(rawFile.toByteArray())), pbdFile);
+            assertTrue(pbdFile.size() < rawFile.size());
+            
+            V3dRawImageStream decoded = new V3dRawImageStream(new ByteArrayInputStream(pbdFile.toByteArray()));
+            assertEquals(V3dRawImageStream.Format.FORMAT_MURPHY_PBD, decoded.getFormat());
+            byte[] copy = new byte[raw.length];
+            int pos = 0;
+            for (int s = 0; s < 10; ++s) {
+                decoded.loadNextSlice();
+                byte[] slice = decoded.getCurrentSlice().getByteBuffer().array();
+                System.arraycopy(slice, 0, copy, pos, slice.length);
+                pos += slice.length;
+            }
+            assertArrayEquals(raw, copy);
+        }
+    }
+    
+    @Test
+    public void testPbdSkipMatchesRead() throws IOException {
+        java.util.Random random = new java.util.Random(7);
+        for (int pixelBytes = 1; pixelBytes <= 2; ++pixelBytes) {
+            // smooth stretches, flat stretches and noise
+            byte[] raw = new byte[pixelBytes * 20000];
+            int value = 0;
+            for (int i = 0; i < raw.length; i += pixelBytes) {
+                int kind = (i / (pixelBytes * 300)) % 3;
+                if (kind == 0)
+                    value += random.nextInt(7) - 3;
+                else if (kind == 2)
+                    value = random.nextInt(65536);
+                raw[i] = (byte)value;
+                if (pixelBytes == 2)
+                    raw[i + 1] = (byte)(value >> 8);
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            PbdOutputStream encoder = (pixelBytes == 1)
+                    ? new Pbd8OutputStream(compressed)
+                    : new Pbd16OutputStream(compressed, ByteOrder.LITTLE_ENDIAN);
+            encoder.write(raw);
+            encoder.close();
+            
+            // small block size, so skips also cross compressed blocks
+            for (int trial = 0; trial < 20; ++trial) {
+                InputStream in = new ByteArrayInputStream(compressed.toByteArray());
+                PbdInputStream decoder = (pixelBytes == 1)
+                        ? new Pbd8InputStream(in, 97)
+                        : new Pbd16InputStream(in, ByteOrder.LITTLE_ENDIAN, 97);
+                int pos = 0;
+                while (pos < raw.length) {
+                    int count = random.nextInt(trial < 10 ? 9 : 700);
+                    if (random.nextBoolean()) {
+                        long skipped = decoder.skip(count);
+                        assertEquals(Math.min(count, raw.length - pos), skipped);
+                        pos += skipped;
+                    }
+                    else {
+                        byte[] chunk = new byte[Math.min(count, raw.length - pos)];
+                        int got = decoder.read(chunk, 0, chunk.length);
+                        if (chunk.length > 0) {
+                            assertEquals(chunk.length, got);
+                            assertArrayEquals(Arrays.copyOfRange(raw, pos, pos + got), chunk);
+                            pos += got;
+                        }
+                    }
+                }
+                assertEquals(0, decoder.skip(10));
+                decoder.close();
+            }
+        }
+    }
+    
+    @Test
+    public void testWriterRoundTrip() throws IOException {
+        int width = 7, height = 5, nChannels = 2, nSlices = 3;
+        ImageStack stack = new ImageStack(width, height, nChannels * nSlices);
+        for (int n = 1; n <= stack.getSize(); ++n) {
+            short[] pixels = new short[width * height];
+            for (int i = 0; i < pixels.length; ++i)
+                pixels[i] = (short)(1000 * n + (i % 4) * 300);
+            stack.setPixels(pixels, n);
+        }
+        for (String extension : new String[] {".v3draw", ".v3dpbd", ".v3draw.gz", ".v3dpbd.gz"}) {
+            File file = File.createTempFile("writer", extension);
+            file.deleteOnExit();
+            Vaa3d_Writer.save(stack, nChannels, nSlices, file, extension.startsWith(".v3dpbd"));
+            V3dRawImageStream stream = new V3dRawImageStream(file);
+            try {
+                assertEquals(nSlices, stream.getDimension(2));
+                assertEquals(nChannels, stream.getDimension(3));
+                short[] pixels = new short[width * height];
+                for (int c = 0; c < nChannels; ++c) {
+                    for (int z = 0; z < nSlices; ++z) {
+                        stream.readSliceInto(pixels);
+                        assertArrayEquals((short[])stack.getPixels(z * nChannels + c + 1), pixels);
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+        }
+    }
+    
+    @Test
+    public void testGzipVolumes() throws IOException, URISyntaxException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        for (String resourceName : new String[] {"/testSliceDiffBoundary.v3draw", "/testSliceDiffBoundary.v3dpbd"}) {
+            byte[] volume = Files.readAllBytes(getResourceFile(resourceName).toPath());
+            for (boolean block : new boolean[] {true, false}) {
+                File file = File.createTempFile("gzip", resourceName.substring(resourceName.indexOf('.')) + ".gz");
+                file.deleteOnExit();
+                OutputStream out = block 
+                        ? new BgzfOutputStream(new FileOutputStream(file)) 
+                        : new GZIPOutputStream(new FileOutputStream(file));
+                out.write(volume);
+                out.close();
+                V3dRawImageStream stream = new V3dRawImageStream(file);
+                try {
+                    assertTrue(stream.isGzipped());
+                    byte[] slice = new byte[512];
+                    for (int s = 0; s < 8; ++s) {
+                        stream.readSliceInto(slice);
+                        assertArrayEquals(expected[s], slice);
+                    }
+                    // moving backwards inflates the file again
+                    ByteBuffer bb = stream.readSlice(3, 0).getByteBuffer();
+                    bb.rewind();
+                    bb.get(slice);
+                    assertArrayEquals(expected[3], slice);
+                } finally {
+                    stream.close();
+                }
+            }
+        }
+        // Several blocks, inflated in parallel and by an ordinary gzip reader
+        byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte)((i * 7919) >> ((i / 1000) % 9));
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = new BgzfOutputStream(compressed, Deflater.DEFAULT_COMPRESSION, new ForkJoinPool(3));
+        out.write(data, 0, 70000);
+        out.flush(); // a short block in the middle
+        out.write(data, 70000, data.length - 70000);
+        out.close();
+        InputStream in = new BgzfInputStream(new ByteArrayInputStream(compressed.toByteArray()), new ForkJoinPool(3));
+        byte[] copy = new byte[data.length + 1];
+        assertEquals(data.length, countStreamBytes(in, copy));
+        assertArrayEquals(data, Arrays.copyOf(copy, data.length));
+        in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        assertEquals(data.length, countStreamBytes(in, copy));
+        assertArrayEquals(data, Arrays.copyOf(copy, data.length));
+    }
+    
+    @Test
+    public void testChannelSource() throws IOException, URISyntaxException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        for (String resourceName : new String[] {"/testSliceDiffBoundary.v3draw", "/testSliceDiffBoundary.v3dpbd"}) {
+            // A channel that delivers a few bytes at a time, sometimes none
+            final InputStream in = getClass().getResourceAsStream(resourceName);
+            ReadableByteChannel trickle = new ReadableByteChannel() {
+                private int calls = 0;
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    if (++calls % 3 == 0)
+                        return 0;
+                    byte[] b = new byte[Math.min(dst.remaining(), calls % 7 + 1)];
+                    int count = in.read(b);
+                    if (count > 0)
+                        dst.put(b, 0, count);
+                    return count;
+                }
+                @Override
+                public boolean isOpen() { return true; }
+                @Override
+                public void close() throws IOException { in.close(); }
+            };
+            V3dRawImageStream stream = new V3dRawImageStream(new ChannelSource(trickle, 100));
+            try {
+                byte[] slice = new byte[512];
+                for (int s = 0; s < expected.length; ++s) {
+                    stream.loadNextSlice();
+                    stream.getCurrentSlice().getByteBuffer().get(slice);
+                    stream.getCurrentSlice().getByteBuffer().rewind();
+                    assertArrayEquals(expected[s], slice);
+                }
+            } finally {
+                stream.close();
+            }
+            // Random access through a small read-ahead buffer
+            stream = new V3dRawImageStream(ChannelSource.open(getResourceFile(resourceName), 100));
+            try {
+                byte[] slice = new byte[512];
+                for (int s : new int[] {40, 3, 4, 63, 0}) {
+                    ByteBuffer bb = stream.readSlice(s % 16, s / 16).getByteBuffer();
+                    bb.rewind();
+                    bb.get(slice);
+                    assertArrayEquals(expected[s], slice);
+                }
+            } finally {
+                stream.close();
+            }
+        }
+    }
+    
+    @Test
+    public void testBatchConverterRoundTrip() throws IOException, URISyntaxException {
+        File inputDirectory = Files.createTempDirectory("batch").toFile();
+        File rawDirectory = Files.createTempDirectory("batch").toFile();
+        File pbdDirectory = Files.createTempDirectory("batch").toFile();
+        File pbd = new File(inputDirectory, "testSliceDiffBoundary.v3dpbd");
+        Files.copy(getResourceFile("/testSliceDiffBoundary.v3dpbd").toPath(), pbd.toPath());
+        // pbd to raw matches the uncompressed copy of the same volume
+        List<File> inputs = Vaa3dBatchConverter.findInputFiles(Arrays.asList(inputDirectory.getPath()));
+        assertEquals(1, inputs.size());
+        assertEquals(0, Vaa3dBatchConverter.convertAll(inputs, null, rawDirectory, 2));
+        File raw = new File(rawDirectory, "testSliceDiffBoundary.v3draw");
+        assertArrayEquals(Files.readAllBytes(getResourceFile("/testSliceDiffBoundary.v3draw").toPath()),
+                Files.readAllBytes(raw.toPath()));
+        // and back again
+        inputs = Vaa3dBatchConverter.findInputFiles(Arrays.asList(rawDirectory.getPath() + File.separator + "*.v3draw"));
+        assertEquals(0, Vaa3dBatchConverter.convertAll(inputs, null, pbdDirectory, 2));
+        assertEquals(0, Vaa3dBatchConverter.convertAll(Arrays.asList(new File(pbdDirectory, "testSliceDiffBoundary.v3dpbd")), 
+                V3dRawImageStream.Format.FORMAT_PENG_RAW, inputDirectory, 1));
+        assertArrayEquals(Files.readAllBytes(raw.toPath()),
+                Files.readAllBytes(new File(inputDirectory, "testSliceDiffBoundary.v3draw").toPath()));
+        // a file already in the target format is skipped, not failed
+        assertEquals(0, Vaa3dBatchConverter.convertAll(Arrays.asList(raw), 
+                V3dRawImageStream.Format.FORMAT_PENG_RAW, null, 1));
+        // existing outputs are skipped unless forced
+        Files.write(raw.toPath(), new byte[] {1, 2, 3});
+        assertEquals(0, Vaa3dBatchConverter.convertAll(Arrays.asList(pbd), null, rawDirectory, 1));
+        assertEquals(3, raw.length());
+        assertEquals(0, Vaa3dBatchConverter.convertAll(Arrays.asList(pbd), null, rawDirectory, 1, true));
+        assertArrayEquals(Files.readAllBytes(getResourceFile("/testSliceDiffBoundary.v3draw").toPath()),
+                Files.readAllBytes(raw.toPath()));
+        // files that are each other's outputs are skipped, even when forced,
+        // and the rest of the batch is still converted
+        File other = new File(inputDirectory, "other.v3dpbd");
+        Files.copy(pbd.toPath(), other.toPath());
+        inputs = Vaa3dBatchConverter.findInputFiles(Arrays.asList(inputDirectory.getPath()));
+        assertEquals(3, inputs.size());
+        assertEquals(2, Vaa3dBatchConverter.findSkipped(inputs, null, null, true).size());
+        long pbdModified = pbd.lastModified();
+        assertEquals(0, Vaa3dBatchConverter.convertAll(inputs, null, null, 2, true));
+        assertEquals(pbdModified, pbd.lastModified());
+        assertArrayEquals(Files.readAllBytes(raw.toPath()),
+                Files.readAllBytes(new File(inputDirectory, "other.v3draw").toPath()));
+        assertEquals(0, Vaa3dBatchConverter.findSkipped(Arrays.asList(pbd), null, null, true).size());
+    }
+    
+    @Test
+    public void testHeaderProbeAndCatalog() throws IOException, URISyntaxException {
+        File pbdFile = getResourceFile("/testSliceDiffBoundary.v3dpbd");
+        V3dRawHeader header = V3dRawHeader.probe(pbdFile);
+        assertEquals(V3dRawImageStream.Format.FORMAT_MURPHY_PBD, header.getFormat());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, header.getByteOrder());
+        assertEquals(2, header.getPixelBytes());
+        assertEquals(4, header.getDimension(3));
+        assertEquals(32768, header.getDataByteCount());
+        
+        File directory = Files.createTempDirectory("catalog").toFile();
+        Files.copy(pbdFile.toPath(), new File(directory, "a.v3dpbd").toPath());
+        Files.write(new File(directory, "broken.v3draw").toPath(), new byte[10]);
+        List<Vaa3dCatalog.Entry> entries = Vaa3dCatalog.scan(Arrays.asList(directory), 2);
+        assertEquals(2, entries.size());
+        assertEquals(16, entries.get(0).getHeader().getDimension(2));
+        assertEquals(null, entries.get(1).getHeader());
+        java.io.StringWriter csv = new java.io.StringWriter();
+        Vaa3dCatalog.writeCsv(entries, csv);
+        assertTrue(csv.toString().contains("a.v3dpbd,v3dpbd,LITTLE_ENDIAN,16,16,16,16,4,false,30415,\n"));
+        
+        // gzip-wrapped volumes are probed through their first member
+        File rawFile = getResourceFile("/testSliceDiffBoundary.v3draw");
+        File gzFile = new File(directory, "c.v3draw.gz");
+        OutputStream gz = new BgzfOutputStream(new FileOutputStream(gzFile));
+        try {
+            Files.copy(rawFile.toPath(), gz);
+        }
+        finally {
+            gz.close();
+        }
+        V3dRawHeader gzHeader = V3dRawHeader.probe(gzFile);
+        assertTrue(gzHeader.isGzipped());
+        assertEquals(V3dRawImageStream.Format.FORMAT_PENG_RAW, gzHeader.getFormat());
+        assertEquals(header.getDataByteCount(), gzHeader.getDataByteCount());
+        entries = Vaa3dCatalog.scan(Arrays.asList(directory), 2);
+        assertEquals(3, entries.size());
+        Vaa3dCatalog.Entry gzEntry = entries.get(2);
+        assertEquals(null, gzEntry.getError());
+        assertTrue(gzEntry.getHeader().isGzipped());
+        assertEquals(4, gzEntry.getHeader().getDimension(3));
+        java.io.StringWriter json = new java.io.StringWriter();
+        Vaa3dCatalog.writeJson(entries, json);
+        assertTrue(json.toString().contains("\"gzipped\": true"));
+    }
+    
+    @Test
+    public void testRegionReadMatchesSlices() throws IOException, URISyntaxException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        int sizeX = 16, x = 3, y = 5, width = 6, height = 4;
+        for (String resourceName : new String[] {"/testSliceDiffBoundary.v3draw", "/testSliceDiffBoundary.v3dpbd"}) {
+            V3dRawImageStream[] streams = {
+                    new V3dRawImageStream(getResourceFile(resourceName)),
+                    new V3dRawImageStream(getClass().getResourceAsStream(resourceName))};
+            for (V3dRawImageStream stream : streams) {
+                try {
+                    byte[][] region = stream.readRegion(x, y, 2, 1, width, height, 3, 2);
+                    assertEquals(6, region.length);
+                    for (int c = 0; c < 2; ++c) {
+                        for (int z = 0; z < 3; ++z) {
+                            byte[] slice = expected[(1 + c) * 16 + 2 + z];
+                            for (int row = 0; row < height; ++row) {
+                                for (int b = 0; b < 2 * width; ++b)
+                                    assertEquals(slice[2 * ((y + row) * sizeX + x) + b], 
+                                            region[c * 3 + z][row * 2 * width + b]);
+                            }
+                        }
+                    }
+                    // whole rows, then sequential reading carries on
+                    byte[] rows = new byte[2 * sizeX * 2];
+                    stream.readSliceRegion(5, 3, 0, 14, sizeX, 2, rows, 0);
+                    assertArrayEquals(Arrays.copyOfRange(expected[53], 2 * sizeX * 14, 2 * sizeX * 16), rows);
+                    stream.loadNextSlice();
+                    assertArrayEquals(expected[54], stream.getCurrentSlice().getByteBuffer().array());
+                } finally {
+                    stream.close();
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testBinnedSlices() throws IOException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        V3dRawImageStream stream = new V3dRawImageStream(getClass().getResourceAsStream("/testSliceDiffBoundary.v3dpbd"));
+        try {
+            for (int z = 0; z < 15; z += 5) {
+                short[] mean = (short[])stream.readSliceBinned(z, 1, 3, V3dRawImageStream.BinMode.MEAN);
+                short[] max = (short[])stream.readSliceBinned(z + 1, 1, 3, V3dRawImageStream.BinMode.MAX);
+                assertEquals(36, mean.length); // 16 / 3, rounded up, squared
+                short[] plane = new short[256];
+                ByteBuffer.wrap(expected[16 + z]).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(plane);
+                // first block is 3x3; the last is the single corner pixel
+                int sum = 0;
+                for (int y = 0; y < 3; ++y)
+                    for (int x = 0; x < 3; ++x)
+                        sum += plane[y * 16 + x];
+                assertEquals(Math.round(sum / 9.0), mean[0]);
+                assertEquals(plane[255], mean[35]);
+                ByteBuffer.wrap(expected[16 + z + 1]).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(plane);
+                int blockMax = 0;
+                for (int y = 0; y < 3; ++y)
+                    for (int x = 0; x < 3; ++x)
+                        blockMax = Math.max(blockMax, plane[y * 16 + x]);
+                assertEquals(blockMax, max[0]);
+                assertEquals(plane[255], max[35]);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+    
+    @Test
+    public void testReadSliceRows() throws IOException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        V3dRawImageStream stream = new V3dRawImageStream(getClass().getResourceAsStream("/testSliceDiffBoundary.v3dpbd"));
+        try {
+            // 16 rows of 32 bytes, in uneven strips
+            for (int s = 0; s < 2; ++s) {
+                byte[] slice = new byte[512];
+                for (int row = 0; row < 16; row += 5)
+                    stream.readSliceRows(slice, row * 32, Math.min(5, 16 - row));
+                assertArrayEquals(expected[s], slice);
+            }
+            // whole-slice reads continue after the last strip
+            stream.loadNextSlice();
+            byte[] slice = new byte[512];
+            stream.getCurrentSlice().getByteBuffer().get(slice);
+            assertArrayEquals(expected[2], slice);
+            // and are refused part way through a slice
+            stream.readSliceRows(slice, 0, 3);
+            try {
+                stream.loadNextSlice();
+                fail("Whole-slice read inside a slice");
+            } catch (IllegalStateException exc) {}
+            // seeking finishes the partial slice first
+            ByteBuffer bb = stream.readSlice(5, 0).getByteBuffer();
+            bb.rewind();
+            bb.get(slice);
+            assertArrayEquals(expected[5], slice);
+        } finally {
+            stream.close();
+        }
+        try {
+            V3dRawImageStream.toArrayLength(3L << 30, "Slice");
+            fail("Oversized array length accepted");
+        } catch (IllegalArgumentException exc) {}
+    }
+    
+    @Test
+    public void testStreamingProjection() throws IOException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        for (Vaa3dProjector.Method method : Vaa3dProjector.Method.values()) {
+            V3dRawImageStream stream = new V3dRawImageStream(
+                    getClass().getResourceAsStream("/testSliceDiffBoundary.v3dpbd"));
+            Vaa3dProjector projector = new Vaa3dProjector(method);
+            projector.setThreadCount(3); // uneven row strips
+            Object[] projections = projector.project(stream);
+            stream.close();
+            assertEquals(4, projections.length);
+            for (int c = 0; c < 4; ++c) {
+                short[] plane = new short[256];
+                double[] reference = new double[256];
+                for (int z = 0; z < 16; ++z) {
+                    ByteBuffer.wrap(expected[c * 16 + z]).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(plane);
+                    for (int i = 0; i < 256; ++i) {
+                        int v = plane[i] & 0xffff;
+                        if (z == 0 || method == Vaa3dProjector.Method.MEAN || method == Vaa3dProjector.Method.SUM)
+                            reference[i] = (z == 0) ? v : reference[i] + v;
+                        else if (method == Vaa3dProjector.Method.MAX)
+                            reference[i] = Math.max(reference[i], v);
+                        else
+                            reference[i] = Math.min(reference[i], v);
+                    }
+                }
+                for (int i = 0; i < 256; ++i) {
+                    if (method == Vaa3dProjector.Method.MEAN)
+                        assertEquals(reference[i] / 16, ((float[])projections[c])[i], 1e-3);
+                    else if (method == Vaa3dProjector.Method.SUM)
+                        assertEquals(reference[i], ((float[])projections[c])[i], 0);
+                    else
+                        assertEquals((int)reference[i], ((short[])projections[c])[i] & 0xffff);
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testChannelStatistics() throws IOException, URISyntaxException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        // reference histograms, and two halves to merge
+        long[][] histograms = new long[4][65536];
+        ChannelStatistics[] firstHalf = new ChannelStatistics[4];
+        ChannelStatistics[] secondHalf = new ChannelStatistics[4];
+        for (int c = 0; c < 4; ++c) {
+            firstHalf[c] = new ChannelStatistics(2);
+            secondHalf[c] = new ChannelStatistics(2);
+            for (int z = 0; z < 16; ++z) {
+                short[] plane = new short[256];
+                ByteBuffer.wrap(expected[c * 16 + z]).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(plane);
+                for (short v : plane)
+                    histograms[c][v & 0xffff]++;
+                (z < 8 ? firstHalf[c] : secondHalf[c]).add(plane);
+            }
+            firstHalf[c].merge(secondHalf[c]);
+        }
+        
+        // Statistics collected by the stream, whichever way slices are read
+        V3dRawImageStream stream = new V3dRawImageStream(
+                getClass().getResourceAsStream("/testSliceDiffBoundary.v3dpbd"));
+        stream.setCollectStatistics(true);
+        short[] pixels = new short[256];
+        for (int s = 0; s < 64; ++s) {
+            if (s % 2 == 0)
+                stream.loadNextSlice();
+            else
+                stream.readSliceInto(pixels);
+        }
+        stream.close();
+        
+        // Statistics merged by the parallel stack loader
+        V3dRawImageStream loaded = new V3dRawImageStream(
+                getClass().getResourceAsStream("/testSliceDiffBoundary.v3draw"));
+        new Vaa3dStackLoader(loaded, null).load(new ImageStack(16, 16, 64));
+        loaded.close();
+        assertTrue(! loaded.isCollectingStatistics());
+        
+        // ... and by the workers copying memory-mapped planes
+        File rawFile = getResourceFile("/testSliceDiffBoundary.v3draw");
+        V3dRawImageStream mappedStream = new V3dRawImageStream(rawFile);
+        MappedV3dRawImage mapped = new MappedV3dRawImage(rawFile);
+        new Vaa3dStackLoader(mappedStream, mapped).load(new ImageStack(16, 16, 64));
+        mapped.close();
+        mappedStream.close();
+        
+        for (ChannelStatistics[] statistics : new ChannelStatistics[][] {
+                firstHalf, stream.getChannelStatistics(), loaded.getChannelStatistics(),
+                mappedStream.getChannelStatistics()}) {
+            for (int c = 0; c < 4; ++c) {
+                long[] h = statistics[c].getHistogram();
+                assertArrayEquals(histograms[c], h);
+                assertEquals(256 * 16, statistics[c].getCount());
+                double sum = 0;
+                int min = 65535, max = 0;
+                for (int v = 0; v < h.length; ++v) {
+                    if (h[v] == 0)
+                        continue;
+                    sum += (double)v * h[v];
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                assertEquals(min, statistics[c].getMin(), 0);
+                assertEquals(max, statistics[c].getMax(), 0);
+                assertEquals(sum / (256 * 16), statistics[c].getMean(), 1e-9);
+                assertEquals(max, statistics[c].getQuantile(1.0), 0);
+            }
+        }
+        
+        ChannelStatistics floats = ChannelStatistics.of(new float[] {2.5f, Float.NaN, -1f});
+        assertEquals(2, floats.getCount());
+        assertEquals(-1, floats.getMin(), 0);
+        assertEquals(0.75, floats.getMean(), 0);
+        assertTrue(Double.isNaN(new ChannelStatistics(1).getMax()));
+    }
+    
+    @Test
+    public void testSlicePrefetch() throws IOException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        V3dRawImageStream stream = new V3dRawImageStream(
+                getClass().getResourceAsStream("/testSliceDiffBoundary.v3dpbd"));
+        stream.loadNextSlice(); // prefetching starts after slice 0
+        SlicePrefetcher prefetcher = stream.prefetch(2);
+        try {
+            stream.loadNextSlice();
+            fail("Direct read allowed while prefetching");
+        } catch (IllegalStateException exc) {}
+        // Hold two slices at once; neither may be overwritten before release
+        for (int s = 1; s < 64; s += 2) {
+            V3dRawImageStream.Slice first = prefetcher.take();
+            V3dRawImageStream.Slice second = prefetcher.take();
+            assertArrayEquals(expected[s], first.getByteBuffer().array());
+            if (s + 1 < 64)
+                assertArrayEquals(expected[s + 1], second.getByteBuffer().array());
+            else
+                assertNull(second);
+            prefetcher.release(first);
+            if (second != null)
+                prefetcher.release(second);
+        }
+        assertNull(prefetcher.take());
+        prefetcher.close();
+        stream.close();
+        
+        // Closing early returns the stream to direct use
+        stream = new V3dRawImageStream(getClass().getResourceAsStream("/testSliceDiffBoundary.v3dpbd"));
+        prefetcher = stream.prefetch(3);
+        V3dRawImageStream.Slice slice = prefetcher.take();
+        assertArrayEquals(expected[0], slice.getByteBuffer().array());
+        prefetcher.close();
+        stream.loadNextSlice();
+        int next = stream.getCurrentSlice().getSliceIndex();
+        assertArrayEquals(expected[next], stream.getCurrentSlice().getByteBuffer().array());
+        stream.close();
+    }
+    
+    @Test
+    public void testCellImgLoader() throws IOException, URISyntaxException {
+        byte[][] expected = readAllSlices("/testSliceDiffBoundary.v3draw");
+        File dir = Files.createTempDirectory("vaa3d").toFile();
+        for (String resourceName : new String[] {"/testSliceDiffBoundary.v3draw", "/testSliceDiffBoundary.v3dpbd"}) {
+            File file = new File(dir, resourceName.substring(1));
+            Files.copy(getResourceFile(resourceName).toPath(), file.toPath());
+            Vaa3dCellImgLoader loader = new Vaa3dCellImgLoader(file);
+            assertEquals(resourceName.endsWith(".v3dpbd"), 
+                    PbdSliceIndex.loadSidecar(file) != null);
+            try {
+                // default cells are whole rows, several to a small cache
+                assertArrayEquals(new int[] {16, 16, 1, 1}, loader.getCellDimensions());
+                loader.setCacheBytes(1024);
+                assertArrayEquals(new int[] {16, 4, 1, 1}, loader.getCellDimensions());
+                // cells that do not divide the volume evenly, 
+                // and a cache too small to hold them all
+                loader.setCellDimensions(5, 7, 3);
+                loader.setCacheBytes(2 * 5 * 7 * 3 * 2);
+                for (CachedCellImg<UnsignedShortType, ?> img : Arrays.asList(
+                        loader.<UnsignedShortType>createImg(), cachedPlanes(loader))) {
+                    RandomAccess<UnsignedShortType> access = img.randomAccess();
+                    for (int c = 0; c < 4; ++c) {
+                        for (int z = 0; z < 16; ++z) {
+                            ByteBuffer plane = ByteBuffer.wrap(expected[c * 16 + z]).order(ByteOrder.LITTLE_ENDIAN);
+                            for (int y = 0; y < 16; y += 3) {
+                                for (int x = 0; x < 16; ++x) {
+                                    access.setPosition(new long[] {x, y, z, c});
+                                    assertEquals(plane.getShort(2 * (y * 16 + x)) & 0xffff, access.get().get());
+                                }
+                            }
+                        }
+                    }
+                }
+            } finally {
+                loader.close();
+            }
+        }
+    }
+    
+    /** Default whole-plane cells, held by soft references */
+    private static CachedCellImg<UnsignedShortType, ?> cachedPlanes(Vaa3dCellImgLoader loader) {
+        loader.setCellDimensions(16, 16, 1);
+        loader.setCacheBytes(0);
+        return loader.createImg();
+    }
+    
+    private static byte[][] readAllSlices(String resourceName) throws IOException {
+        V3dRawImageStream stream = new V3dRawImageStream(ClassLoader.class.getResourceAsStream(resourceName));
+        byte[][] slices = new byte[stream.getDimension(2) * stream.getDimension(3)][];
+        for (int s = 0; s < slices.length; ++s) {
+            stream.loadNextSlice();
+            slices[s] = stream.getCurrentSlice().getByteBuffer().array().clone();
+        }
+        return slices;
+    }
+    
+    private static File getResourceFile(String resourceName) throws URISyntaxException {
+        return new File(TestVaa3d_Reader.class.getResource(resourceName).toURI());
+    }
+    
     private void testVaa3dDataEquality(String res1, String res2, int bufSize) {
         byte[] buffer1 = new byte[bufSize];
         byte[] buffer2 = new byte[bufSize];
@@ -106,11 +1020,21 @@ public class TestVaa3d_Reader {
     }
     
     private static long countStreamBytes(InputStream stream) {
+        return countStreamBytes(stream, null);
+    }
+    
+    /**
+     * @param copy if not null, receives the first bytes of the stream
+     */
+    private static long countStreamBytes(InputStream stream, byte[] copy) {
         byte[] buffer= new byte[1024];
         long byteCount = 0;
         try {
             int readCount = stream.read(buffer);
             while (readCount > 0) {
+                if ( (copy != null) && (byteCount < copy.length) )
+                    System.arraycopy(buffer, 0, copy, (int)byteCount, 
+                            (int)Math.min(readCount, copy.length - byteCount));
                 byteCount += readCount;
                 readCount = stream.read(buffer);
             }